@@ -0,0 +1,51 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bench;
+
+import java.util.concurrent.TimeUnit;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Engine;
+import jp.classmethod.toys.interpreter.Values;
+import jp.classmethod.toys.parser.PrattParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 各エンジンで callMain にかかる時間を測る. エンジンの生成とリンクも含む */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+  // 種類と大きさの組. 大きさは 1 回の実行が数ミリ秒になる程度にしてある
+  @Param({"FIB:20", "FACT:10000", "LOOP:100000", "ARRAY:100000"})
+  public String workload;
+
+  @Param({"TREE_WALKING", "CLOSURE", "STACK", "BYTECODE", "REGISTER"})
+  public Engine.Kind engine;
+
+  private Ast.Program program;
+
+  @Setup
+  public void setUp() {
+    var parts = workload.split(":");
+    var source =
+        Workloads.generate(Workloads.Kind.valueOf(parts[0]), Integer.parseInt(parts[1]), 0);
+    program = PrattParser.parseProgram(source);
+  }
+
+  @Benchmark
+  public Values.Value callMain() {
+    return engine.create().callMain(program);
+  }
+}
@@ -0,0 +1,57 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bench;
+
+import java.util.concurrent.TimeUnit;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.parser.Parsers;
+import jp.classmethod.toys.parser.PrattParser;
+import org.javafp.parsecj.input.Input;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** global 定義の数を増やしながら, 各フロントエンドで {@link Ast.Program} を作るまでの時間を測る */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int definitions;
+
+  @Param({"42"})
+  public long seed;
+
+  private String source;
+
+  @Setup
+  public void setUp() {
+    source = Workloads.generate(Workloads.Kind.GLOBALS, definitions, seed);
+  }
+
+  @Benchmark
+  public Ast.Program parsers() throws Exception {
+    return Parsers.program().parse(Input.of(source)).getResult();
+  }
+
+  @Benchmark
+  public Ast.Program packrat() throws Exception {
+    return Parsers.parsePackrat(Parsers.program(), source).getResult();
+  }
+
+  @Benchmark
+  public Ast.Program pratt() {
+    return PrattParser.parseProgram(source);
+  }
+}
@@ -0,0 +1,71 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bench;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jp.classmethod.toys.interpreter.Values;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Values#wrap} の 1 回あたりの割り当てを測る. 割り当て量は GC プロファイラで見る.
+ *
+ * <pre>
+ * gradle jmh -Pjmh='ValuesBenchmark -prof gc'
+ * </pre>
+ *
+ * gc.alloc.rate.norm が 1 操作あたりのバイト数.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValuesBenchmark {
+
+  // キャッシュの範囲内と範囲外の整数. 定数畳み込みされないようフィールドに置く
+  private Integer small = 42;
+  private Integer large = 1_000_000;
+  private List<Values.Value> list;
+  private Map<Values.Value, Values.Value> map;
+
+  @Setup
+  public void setUp() {
+    list = List.of(Values.of(1), Values.of(2), Values.of(3), Values.of(4));
+    map = new HashMap<>();
+    for (int i = 0; i < 16; i++) {
+      map.put(Values.of(i), Values.of(i * i));
+    }
+  }
+
+  @Benchmark
+  public Values.Value wrapCachedInt() {
+    return Values.wrap(small);
+  }
+
+  @Benchmark
+  public Values.Value wrapInt() {
+    return Values.wrap(large);
+  }
+
+  @Benchmark
+  public Values.Value wrapList() {
+    return Values.wrap(list);
+  }
+
+  @Benchmark
+  public Values.Value wrapMap() {
+    return Values.wrap(map);
+  }
+}
@@ -0,0 +1,114 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bench;
+
+import java.util.Random;
+
+/**
+ * ベンチマーク用の toys スクリプトを引数から生成する. 同じ引数なら同じスクリプトになるので, 別のマシンでも同じ入力で測り直せる.
+ *
+ * <pre>
+ * gradle -q workload -Pworkload='globals 1000 42' > globals.toys
+ * </pre>
+ */
+public final class Workloads {
+
+  private Workloads() {}
+
+  /** 生成できるスクリプトの種類 */
+  public enum Kind {
+    // global 定義だけが並ぶスクリプト. Parsers.program() でも読める. size は定義の数
+    GLOBALS,
+    // 再帰の fib(size)
+    FIB,
+    // fact(12) を size 回呼ぶ
+    FACT,
+    // size 回まわる while で足し算する
+    LOOP,
+    // size 回まわる while で配列リテラルを作る
+    ARRAY
+  }
+
+  public static String generate(Kind kind, int size, long seed) {
+    return switch (kind) {
+      case GLOBALS -> globals(size, seed);
+      case FIB -> """
+          define main() { fib(%d); }
+          define fib(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); }
+          """
+          .formatted(size);
+      case FACT -> """
+          define main() { i = 0; r = 0; while (i < %d) { r = fact(12); i = i + 1; } r; }
+          define fact(n) { if (n < 2) 1; else n * fact(n - 1); }
+          """
+          .formatted(size);
+      case LOOP -> """
+          define main() { i = 0; total = 0; while (i < %d) { i = i + 1; total = total + i * 2 - 1; } total; }
+          """
+          .formatted(size);
+      case ARRAY -> """
+          define main() { i = 0; a = []; while (i < %d) { a = [i, i + 1, i * 2, [i, true]]; i = i + 1; } a; }
+          """
+          .formatted(size);
+    };
+  }
+
+  private static String globals(int count, long seed) {
+    var random = new Random(seed);
+    var source = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      source.append("// definition ").append(i).append('\n');
+      source.append("global v").append(i).append(" = ");
+      expression(random, 4, i, source);
+      source.append(";\n");
+    }
+    return source.toString();
+  }
+
+  // 定義済みのグローバル変数 (v0 .. v(defined - 1)) だけを参照する
+  private static void expression(Random random, int depth, int defined, StringBuilder out) {
+    var choice = depth == 0 ? random.nextInt(2) : random.nextInt(6);
+    switch (choice) {
+      case 0 -> out.append(random.nextInt(1000));
+      case 1 -> {
+        if (defined == 0) {
+          out.append(random.nextInt(1000));
+        } else {
+          out.append('v').append(random.nextInt(defined));
+        }
+      }
+      case 2 -> {
+        out.append('(');
+        expression(random, depth - 1, defined, out);
+        out.append(')');
+      }
+      case 3 -> {
+        out.append('[');
+        expression(random, depth - 1, defined, out);
+        out.append(", ");
+        expression(random, depth - 1, defined, out);
+        out.append(']');
+      }
+      default -> {
+        expression(random, depth - 1, defined, out);
+        out.append(' ').append("+-*".charAt(random.nextInt(3))).append(' ');
+        expression(random, depth - 1, defined, out);
+      }
+    }
+  }
+
+  /**
+   * スクリプトを標準出力に書く.
+   *
+   * @param args 種類 ({@link Kind} の名前, 大文字小文字は問わない), 大きさ, 乱数の種 (省略時 0)
+   */
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.err.println("usage: Workloads <globals|fib|fact|loop|array> <size> [seed]");
+      System.exit(2);
+    }
+    var kind = Kind.valueOf(args[0].toUpperCase());
+    var size = Integer.parseInt(args[1]);
+    var seed = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+    System.out.print(generate(kind, size, seed));
+  }
+}
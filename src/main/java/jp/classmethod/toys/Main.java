@@ -1,8 +1,91 @@
 /* Copyright (C) 2023 komuro-hiraku */
 package jp.classmethod.toys;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import jp.classmethod.toys.interpreter.ProgramImage;
+import jp.classmethod.toys.parser.PrattParser;
+import jp.classmethod.toys.server.ScriptServer;
+
+/**
+ * コマンドラインの入口.
+ *
+ * <pre>
+ * toys FILE                   スクリプトを一度だけ実行して main の値を表示する
+ * toys --server SOCKET        Unix ドメインソケットでスクリプトを受け付け続ける ({@link ScriptServer})
+ * toys --send SOCKET FILE     サーバにスクリプトを送って結果を表示する
+ * toys --train                CDS アーカイブを作るために代表的なスクリプトを実行する
+ * </pre>
+ *
+ * <p>gradle jar は jar と一緒に CDS アーカイブ build/libs/toys.jsa を作る. {@code java
+ * -XX:SharedArchiveFile=build/libs/toys.jsa -jar ...} で起動すると, 読み込むクラスを解析し直さないので一度だけの実行が速く始まる.
+ */
 public class Main {
+
+  // --train で実行する. 構文解析器とインタプリタの主なクラスを読み込ませる
+  private static final String TRAINING =
+      """
+      global base = 10;
+      define fib(n) { if (n < 2) n; else fib(n - 1) + fib(n - 2); }
+      define pick(x, y) { [x, y, true, false]; y; }
+      define main() {
+        total = 0;
+        i = 0;
+        while (i < 10) { i = i + 1; total = total + i; }
+        for (j in 1 to 3) total = total + j;
+        for (x in [1, 2, 3]) total = total + x;
+        total + fib(base) + pick[y = base, x = i] / 2;
+      }
+      """;
+
   public static void main(String[] args) {
-    System.out.println("Hello world!");
+    try {
+      System.exit(run(args));
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+  }
+
+  private static int run(String[] args) throws IOException {
+    if (args.length == 1 && args[0].equals("--train")) {
+      var server = new ScriptServer(Path.of("toys.sock"), 1);
+      // 二回目は解析済みのイメージを使う
+      server.evaluate(TRAINING);
+      System.out.print(server.evaluate(TRAINING).format());
+      return 0;
+    } else if (args.length == 2 && args[0].equals("--server")) {
+      var server = new ScriptServer(Path.of(args[1]), ScriptServer.DEFAULT_CAPACITY).bind();
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    try {
+                      server.close();
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                  }));
+      server.serve();
+      return 0;
+    } else if (args.length == 3 && args[0].equals("--send")) {
+      var response = ScriptServer.send(Path.of(args[1]), Files.readString(Path.of(args[2])));
+      System.out.print(response);
+      return response.startsWith("ok ") ? 0 : 1;
+    } else if (args.length == 1 && !args[0].startsWith("--")) {
+      try {
+        var image = ProgramImage.link(PrattParser.parseProgram(Path.of(args[0])));
+        System.out.println(ScriptServer.show(image.callMain()));
+        return 0;
+      } catch (RuntimeException | StackOverflowError e) {
+        System.err.println("error " + ScriptServer.describe(e));
+        return 1;
+      }
+    }
+    System.err.println(
+        "usage: toys FILE | toys --server SOCKET | toys --send SOCKET FILE | toys --train");
+    return 2;
   }
 }
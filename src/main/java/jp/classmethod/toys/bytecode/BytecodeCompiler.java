@@ -0,0 +1,482 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bytecode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import jp.classmethod.toys.bytecode.ClassAssembler.Code;
+import jp.classmethod.toys.bytecode.ClassAssembler.Label;
+import jp.classmethod.toys.bytecode.ClassAssembler.Unsupported;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Operator;
+import jp.classmethod.toys.interpreter.Resolver;
+import jp.classmethod.toys.interpreter.Values;
+
+/**
+ * {@link Ast.Program} を JVM のクラスに変換し, hidden class として読み込む.
+ *
+ * <p>各 {@link Ast.FunctionDefinition} は {@code static int name(int, ...)} のメソッドに, グローバル変数は static
+ * フィールドになる. 整数と真偽値しか扱わず, 値は全て int としてスタックに載せる (真偽値は 0/1). 配列や else のない if の値など,
+ * この表現に乗らないものが一つでもあればプログラム全体を諦めて {@link Optional#empty()} を返す. 呼び出し側は {@link
+ * jp.classmethod.toys.interpreter.Interpreter} にフォールバックする.
+ */
+public final class BytecodeCompiler {
+
+  private static final String CLASS_NAME = "jp/classmethod/toys/bytecode/ToysProgram";
+  private static final String GLOBAL_INITIALIZER = "$init";
+  private static final int MAX_ITERATIONS = 8;
+
+  public enum Type {
+    INT,
+    BOOL
+  }
+
+  /**
+   * 読み込み済みのプログラム. run のたびにグローバル変数を初期化してから main を呼ぶ. グローバル変数は生成したクラスの static
+   * フィールドで全ての実行が共有するので, run は同時に一つしか実行しない. 並列に実行するならプログラムごとにコンパイルし直す.
+   */
+  public static final record CompiledProgram(
+      MethodHandle initializer, MethodHandle main, Type type) {
+    public synchronized Values.Value run() {
+      try {
+        initializer.invokeExact();
+        int result = (int) main.invokeExact();
+        return type == Type.INT ? Values.of(result) : Values.of(result != 0);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private BytecodeCompiler() {}
+
+  /**
+   * プログラムをコンパイルして読み込む.
+   *
+   * @param program 対象のプログラム
+   * @return バイトコードにできなければ {@link Optional#empty()}
+   */
+  public static Optional<CompiledProgram> compile(Ast.Program program) {
+    try {
+      return Optional.of(new BytecodeCompiler().compileProgram(program));
+    } catch (Unsupported e) {
+      return Optional.empty();
+    }
+  }
+
+  //// プログラム全体
+  private final Resolver resolver = new Resolver();
+  private final Map<String, Resolver.ResolvedFunction> functions = new LinkedHashMap<>();
+  private final List<Ast.GlobalVariableDefinition> globalDefinitions = new ArrayList<>();
+  private final List<String> globalNames = new ArrayList<>();
+  private final BitSet definedGlobals = new BitSet();
+
+  // 型の仮定. 関数の戻り値やグローバル変数の型は使う側を先に変換することがあるので, 仮定してから検証し, 食い違えばやり直す
+  private Map<String, Type> assumedReturnTypes = new HashMap<>();
+  private Type[] assumedGlobalTypes;
+  private Map<String, Type> observedReturnTypes;
+  private Type[] observedGlobalTypes;
+  // 仮定が外れていると型が合わないことがある. 仮定が確定するまでは型エラーを記録するだけにして変換を続ける
+  private boolean typeError;
+
+  private CompiledProgram compileProgram(Ast.Program program) {
+    resolver.declareGlobals(program);
+    var resolvedGlobals = new ArrayList<Ast.Expression>();
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        functions.put(definition.name(), resolver.resolveFunction(definition));
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition definition) {
+        // 初期化式から関数を呼ぶと未初期化のグローバル変数を読みうるので対象外にする
+        if (containsCall(definition.expression())) {
+          throw new Unsupported("function call in global initializer");
+        }
+        globalDefinitions.add(definition);
+        resolvedGlobals.add(resolver.resolveTopLevel(definition.expression()));
+      }
+    }
+    if (!functions.containsKey("main") || !functions.get("main").definition().args().isEmpty()) {
+      throw new Unsupported("main() is missing");
+    }
+    for (var definition : globalDefinitions) {
+      definedGlobals.set(resolver.declareGlobal(definition.name()));
+    }
+    globalNames.addAll(resolver.globalNames());
+
+    assumedGlobalTypes = new Type[resolver.globalCount()];
+    for (int i = 0; i < MAX_ITERATIONS; i++) {
+      observedReturnTypes = new HashMap<>();
+      observedGlobalTypes = new Type[resolver.globalCount()];
+      typeError = false;
+      var assembler = assemble(resolvedGlobals);
+      if (observedReturnTypes.equals(assumedReturnTypes)
+          && Arrays.equals(observedGlobalTypes, assumedGlobalTypes)) {
+        if (typeError) {
+          throw new Unsupported("type error");
+        }
+        return load(assembler, observedReturnTypes.get("main"));
+      }
+      assumedReturnTypes = observedReturnTypes;
+      assumedGlobalTypes = observedGlobalTypes;
+    }
+    throw new Unsupported("types did not converge");
+  }
+
+  private ClassAssembler assemble(List<Ast.Expression> resolvedGlobals) {
+    var assembler = new ClassAssembler(CLASS_NAME);
+    for (var name : globalNames) {
+      assembler.addStaticField(fieldName(name), "I");
+    }
+
+    // グローバル変数の初期化. 定義順に評価し, まだ初期化していない変数は読めない
+    var initializer = new MethodCompiler(assembler, 0, new BitSet(), 0, false);
+    for (int i = 0; i < globalDefinitions.size(); i++) {
+      var name = globalDefinitions.get(i).name();
+      var slot = globalNames.indexOf(name);
+      var type = initializer.compile(resolvedGlobals.get(i), true);
+      initializer.observeGlobal(slot, type);
+      initializer.code.putStatic(fieldName(name));
+      initializer.assignedGlobals.set(slot);
+    }
+    initializer.code.op(Code.RETURN, 0);
+    assembler.addStaticMethod(GLOBAL_INITIALIZER, "()V", initializer.code);
+
+    for (var function : functions.values()) {
+      var definition = function.definition();
+      var arity = definition.args().size();
+      var isMain = definition.name().equals("main");
+      // main は初期化の後に呼ぶので, 初期化式の中で代入したグローバル変数も読める
+      var assignedGlobals = isMain ? initializer.assignedGlobals : definedGlobals;
+      var compiler =
+          new MethodCompiler(
+              assembler, function.frameSize(), (BitSet) assignedGlobals.clone(), 1, isMain);
+      for (int i = 0; i < arity; i++) {
+        compiler.localTypes[i] = Type.INT;
+        compiler.assignedLocals.set(i);
+      }
+      var type = compiler.compile(definition.body(), true);
+      observedReturnTypes.put(definition.name(), type);
+      compiler.code.op(Code.IRETURN, -1);
+      assembler.addStaticMethod(definition.name(), Code.descriptor(arity), compiler.code);
+    }
+    return assembler;
+  }
+
+  private static CompiledProgram load(ClassAssembler assembler, Type mainType) {
+    try {
+      var lookup = MethodHandles.lookup().defineHiddenClass(assembler.toByteArray(), true);
+      var initializer =
+          lookup.findStatic(
+              lookup.lookupClass(), GLOBAL_INITIALIZER, MethodType.methodType(void.class));
+      var main = lookup.findStatic(lookup.lookupClass(), "main", MethodType.methodType(int.class));
+      return new CompiledProgram(initializer, main, mainType);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      throw new Unsupported("failed to load generated class: " + e);
+    }
+  }
+
+  private static String fieldName(String globalName) {
+    return "g_" + globalName;
+  }
+
+  private static boolean containsCall(Ast.Expression expression) {
+    if (expression instanceof Ast.FunctionCall || expression instanceof Ast.LabelledCall) {
+      return true;
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return containsCall(e.lhs()) || containsCall(e.rhs());
+    } else if (expression instanceof Ast.Assignment e) {
+      return containsCall(e.expression());
+    } else if (expression instanceof Ast.IfExpression e) {
+      return containsCall(e.condition())
+          || containsCall(e.thenClause())
+          || e.elseClause().map(BytecodeCompiler::containsCall).orElse(false);
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return containsCall(e.condition()) || containsCall(e.body());
+    } else if (expression instanceof Ast.ForInExpression e) {
+      return containsCall(e.iterable()) || containsCall(e.body());
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return containsCall(e.from()) || containsCall(e.to());
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return e.elements().stream().anyMatch(BytecodeCompiler::containsCall);
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return e.items().stream().anyMatch(BytecodeCompiler::containsCall);
+    }
+    return false;
+  }
+
+  //// メソッド単位
+  private final class MethodCompiler {
+    private final Code code;
+    private final Type[] localTypes;
+    // 確実に代入済みの変数. 未代入の変数を読むとインタプリタはエラーになるが, JVM では 0 が読めてしまうので静的に弾く
+    private BitSet assignedLocals = new BitSet();
+    private BitSet assignedGlobals;
+    private final int globalDepth;
+    private final boolean isMain;
+
+    MethodCompiler(
+        ClassAssembler assembler,
+        int frameSize,
+        BitSet assignedGlobals,
+        int globalDepth,
+        boolean isMain) {
+      this.code = new Code(assembler, frameSize);
+      this.localTypes = new Type[frameSize];
+      this.assignedGlobals = assignedGlobals;
+      this.globalDepth = globalDepth;
+      this.isMain = isMain;
+    }
+
+    /**
+     * 式を変換する.
+     *
+     * @param expression 対象の式
+     * @param value 値をスタックに残すかどうか
+     * @return 式の型. value が false なら null のこともある
+     */
+    Type compile(Ast.Expression expression, boolean value) {
+      if (expression instanceof Ast.IntegerLiteral e) {
+        if (value) {
+          code.pushInt(e.value());
+        }
+        return Type.INT;
+      } else if (expression instanceof Ast.BoolLiteral e) {
+        if (value) {
+          code.pushInt(e.param() ? 1 : 0);
+        }
+        return Type.BOOL;
+      } else if (expression instanceof Ast.ResolvedIdentifier e) {
+        return compileRead(e, value);
+      } else if (expression instanceof Ast.ResolvedAssignment e) {
+        return compileWrite(e, value);
+      } else if (expression instanceof Ast.BinaryExpression e) {
+        var type = compileBinary(e);
+        if (!value) {
+          code.op(Code.POP, -1);
+        }
+        return type;
+      } else if (expression instanceof Ast.IfExpression e) {
+        return compileIf(e, value);
+      } else if (expression instanceof Ast.WhileExpression e) {
+        var start = new Label();
+        var end = new Label();
+        code.bind(start);
+        compileCondition(e.condition(), end);
+        var afterCondition = (BitSet) assignedLocals.clone();
+        var afterConditionGlobals = (BitSet) assignedGlobals.clone();
+        compile(e.body(), false);
+        code.jump(Code.GOTO, start, 0);
+        code.bind(end);
+        // 本体は一度も実行されないかもしれない
+        assignedLocals = afterCondition;
+        assignedGlobals = afterConditionGlobals;
+        if (value) {
+          code.pushInt(1);
+        }
+        return Type.BOOL;
+      } else if (expression instanceof Ast.BlockExpression e) {
+        var elements = e.elements();
+        if (elements.isEmpty()) {
+          if (value) {
+            throw new Unsupported("value of empty block");
+          }
+          return null;
+        }
+        for (int i = 0; i < elements.size() - 1; i++) {
+          compile(elements.get(i), false);
+        }
+        return compile(elements.get(elements.size() - 1), value);
+      } else if (expression instanceof Ast.LinkedCall e) {
+        var function = functions.get(e.name());
+        if (function == null || function.definition().args().size() != e.args().size()) {
+          throw new Unsupported("unknown function " + e.name());
+        }
+        for (var arg : e.args()) {
+          expect(compile(arg, true), Type.INT);
+        }
+        code.invokeStatic(e.name(), e.args().size());
+        if (!value) {
+          code.op(Code.POP, -1);
+        }
+        return assumedReturnTypes.getOrDefault(e.name(), Type.INT);
+      } else {
+        throw new Unsupported(expression.getClass().getSimpleName());
+      }
+    }
+
+    private Type compileRead(Ast.ResolvedIdentifier e, boolean value) {
+      if (e.depth() == globalDepth) {
+        // main 以外の関数からは, グローバル変数定義で初期化されたものしか読まない
+        if (!assignedGlobals.get(e.slot()) || (!isMain && !definedGlobals.get(e.slot()))) {
+          throw new Unsupported("global " + e.name() + " may be uninitialized");
+        }
+        var type = assumedGlobalTypes[e.slot()];
+        if (type == null) {
+          typeError = true;
+          type = Type.INT;
+        }
+        if (value) {
+          code.getStatic(fieldName(e.name()));
+        }
+        return type;
+      } else if (e.depth() == 0) {
+        if (!assignedLocals.get(e.slot())) {
+          throw new Unsupported("local " + e.name() + " may be uninitialized");
+        }
+        if (value) {
+          code.iload(e.slot());
+        }
+        return localTypes[e.slot()];
+      }
+      throw new Unsupported("unexpected depth");
+    }
+
+    private Type compileWrite(Ast.ResolvedAssignment e, boolean value) {
+      var type = compile(e.expression(), true);
+      if (type == null) {
+        throw new Unsupported("assignment of no value");
+      }
+      if (value) {
+        code.op(Code.DUP, 1);
+      }
+      if (e.depth() == globalDepth) {
+        observeGlobal(e.slot(), type);
+        code.putStatic(fieldName(e.name()));
+        assignedGlobals.set(e.slot());
+      } else if (e.depth() == 0) {
+        if (localTypes[e.slot()] == null) {
+          localTypes[e.slot()] = type;
+        } else {
+          expect(type, localTypes[e.slot()]);
+        }
+        code.istore(e.slot());
+        assignedLocals.set(e.slot());
+      } else {
+        throw new Unsupported("unexpected depth");
+      }
+      return type;
+    }
+
+    void observeGlobal(int slot, Type type) {
+      if (observedGlobalTypes[slot] == null) {
+        observedGlobalTypes[slot] = type;
+      } else {
+        expect(type, observedGlobalTypes[slot]);
+      }
+    }
+
+    private Type compileBinary(Ast.BinaryExpression e) {
+      var comparison = comparisonOpcode(e.operator());
+      expect(compile(e.lhs(), true), Type.INT);
+      expect(compile(e.rhs(), true), Type.INT);
+      if (comparison == 0) {
+        var opcode =
+            switch (e.operator()) {
+              case ADD -> Code.IADD;
+              case SUBTRACT -> Code.ISUB;
+              case MULTIPLY -> Code.IMUL;
+              default -> Code.IDIV;
+            };
+        code.op(opcode, -1);
+        return Type.INT;
+      }
+      // 比較結果を 0/1 にする
+      var base = code.stack() - 2;
+      var isTrue = new Label();
+      var end = new Label();
+      code.jump(comparison, isTrue, -2);
+      code.pushInt(0);
+      code.jump(Code.GOTO, end, 0);
+      code.resetStack(base);
+      code.bind(isTrue);
+      code.pushInt(1);
+      code.bind(end);
+      return Type.BOOL;
+    }
+
+    /** 条件が偽のとき ifFalse へ飛ぶ. 比較式は値を作らずに if_icmp 系の命令へ直接変換する */
+    private void compileCondition(Ast.Expression condition, Label ifFalse) {
+      if (condition instanceof Ast.BinaryExpression e && comparisonOpcode(e.operator()) != 0) {
+        expect(compile(e.lhs(), true), Type.INT);
+        expect(compile(e.rhs(), true), Type.INT);
+        code.jump(negate(comparisonOpcode(e.operator())), ifFalse, -2);
+      } else {
+        expect(compile(condition, true), Type.BOOL);
+        code.jump(Code.IFEQ, ifFalse, -1);
+      }
+    }
+
+    private Type compileIf(Ast.IfExpression e, boolean value) {
+      if (value && e.elseClause().isEmpty()) {
+        throw new Unsupported("value of if without else");
+      }
+      var otherwise = new Label();
+      var end = new Label();
+      compileCondition(e.condition(), otherwise);
+      var base = code.stack();
+      var beforeLocals = (BitSet) assignedLocals.clone();
+      var beforeGlobals = (BitSet) assignedGlobals.clone();
+
+      var thenType = compile(e.thenClause(), value);
+      var thenLocals = assignedLocals;
+      var thenGlobals = assignedGlobals;
+      code.jump(Code.GOTO, end, 0);
+
+      code.resetStack(base);
+      code.bind(otherwise);
+      assignedLocals = beforeLocals;
+      assignedGlobals = beforeGlobals;
+      Type elseType = null;
+      if (e.elseClause().isPresent()) {
+        elseType = compile(e.elseClause().get(), value);
+      }
+      code.bind(end);
+
+      // どちらの枝を通っても代入されている変数だけが確実に代入済み
+      assignedLocals.and(thenLocals);
+      assignedGlobals.and(thenGlobals);
+      if (value) {
+        expect(elseType, thenType);
+      }
+      return thenType;
+    }
+  }
+
+  private void expect(Type actual, Type expected) {
+    if (actual != expected) {
+      typeError = true;
+    }
+  }
+
+  private static int comparisonOpcode(Operator operator) {
+    return switch (operator) {
+      case LESS_THAN -> Code.IF_ICMPLT;
+      case LESS_OR_EQUAL -> Code.IF_ICMPLE;
+      case GREATER_THAN -> Code.IF_ICMPGT;
+      case GREATER_OR_EQUAL -> Code.IF_ICMPGE;
+      case EQUAL_EQUAL -> Code.IF_ICMPEQ;
+      case NOT_EQUAL -> Code.IF_ICMPNE;
+      default -> 0;
+    };
+  }
+
+  private static int negate(int opcode) {
+    return switch (opcode) {
+      case Code.IF_ICMPLT -> Code.IF_ICMPGE;
+      case Code.IF_ICMPGE -> Code.IF_ICMPLT;
+      case Code.IF_ICMPLE -> Code.IF_ICMPGT;
+      case Code.IF_ICMPGT -> Code.IF_ICMPLE;
+      case Code.IF_ICMPEQ -> Code.IF_ICMPNE;
+      default -> Code.IF_ICMPEQ;
+    };
+  }
+}
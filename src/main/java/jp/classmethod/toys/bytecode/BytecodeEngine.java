@@ -0,0 +1,18 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bytecode;
+
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Engine;
+import jp.classmethod.toys.interpreter.Interpreter;
+import jp.classmethod.toys.interpreter.Values;
+
+/** {@link BytecodeCompiler} で JVM のクラスにして実行する. 変換できないプログラムは {@link Interpreter} で実行する */
+public class BytecodeEngine implements Engine {
+
+  @Override
+  public Values.Value callMain(Ast.Program program) {
+    return BytecodeCompiler.compile(program)
+        .map(BytecodeCompiler.CompiledProgram::run)
+        .orElseGet(() -> new Interpreter().callMain(program));
+  }
+}
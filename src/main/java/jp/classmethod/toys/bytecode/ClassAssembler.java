@@ -0,0 +1,403 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * static フィールドと static メソッドだけを持つクラスファイルを組み立てる最小限のアセンブラ.
+ *
+ * <p>クラスファイルのバージョンは 50 (Java 6) にしている. 50 なら StackMapTable を省略しても型推論による検証にフォールバックしてくれるので,
+ * 分岐ごとのスタックマップを計算せずに済む.
+ */
+final class ClassAssembler {
+
+  private static final int MAGIC = 0xCAFEBABE;
+  private static final int VERSION = 50;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final String className;
+  private final int thisClass;
+  private final int superClass;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<byte[]> methods = new ArrayList<>();
+
+  /**
+   * @param className 内部形式のクラス名 (例: {@code jp/classmethod/toys/bytecode/ToysProgram})
+   */
+  ClassAssembler(String className) {
+    this.className = className;
+    this.thisClass = classConstant(className);
+    this.superClass = classConstant("java/lang/Object");
+  }
+
+  //// 定数プール
+  private int constant(String key, Writer writer) {
+    var index = poolIndex.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      writer.write(poolOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    poolIndex.put(key, poolCount);
+    return poolCount++;
+  }
+
+  private int utf8(String value) {
+    return constant(
+        "U" + value,
+        out -> {
+          out.writeByte(CONSTANT_UTF8);
+          out.writeUTF(value);
+        });
+  }
+
+  int intConstant(int value) {
+    return constant(
+        "I" + value,
+        out -> {
+          out.writeByte(CONSTANT_INTEGER);
+          out.writeInt(value);
+        });
+  }
+
+  private int classConstant(String name) {
+    var nameIndex = utf8(name);
+    return constant(
+        "C" + name,
+        out -> {
+          out.writeByte(CONSTANT_CLASS);
+          out.writeShort(nameIndex);
+        });
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    var nameIndex = utf8(name);
+    var descriptorIndex = utf8(descriptor);
+    return constant(
+        "N" + name + ":" + descriptor,
+        out -> {
+          out.writeByte(CONSTANT_NAME_AND_TYPE);
+          out.writeShort(nameIndex);
+          out.writeShort(descriptorIndex);
+        });
+  }
+
+  /** このクラス自身のメソッドへの参照 */
+  int methodRef(String name, String descriptor) {
+    var nat = nameAndType(name, descriptor);
+    return constant(
+        "M" + name + ":" + descriptor,
+        out -> {
+          out.writeByte(CONSTANT_METHODREF);
+          out.writeShort(thisClass);
+          out.writeShort(nat);
+        });
+  }
+
+  /** このクラス自身のフィールドへの参照 */
+  int fieldRef(String name, String descriptor) {
+    var nat = nameAndType(name, descriptor);
+    return constant(
+        "F" + name + ":" + descriptor,
+        out -> {
+          out.writeByte(CONSTANT_FIELDREF);
+          out.writeShort(thisClass);
+          out.writeShort(nat);
+        });
+  }
+
+  //// メンバー
+  void addStaticField(String name, String descriptor) {
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(ACC_STATIC);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  void addStaticMethod(String name, String descriptor, Code code) {
+    var codeAttribute = utf8("Code");
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(ACC_PUBLIC | ACC_STATIC);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(1); // attributes
+      var body = code.toByteArray();
+      out.writeShort(codeAttribute);
+      out.writeInt(2 + 2 + 4 + body.length + 2 + 2);
+      out.writeShort(code.maxStack());
+      out.writeShort(code.maxLocals());
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeShort(0); // exception table
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    methods.add(bytes.toByteArray());
+  }
+
+  byte[] toByteArray() {
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      out.writeShort(0); // minor
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      out.write(pool.toByteArray());
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(fields.size());
+      for (var field : fields) {
+        out.write(field);
+      }
+      out.writeShort(methods.size());
+      for (var method : methods) {
+        out.write(method);
+      }
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  String className() {
+    return className;
+  }
+
+  @FunctionalInterface
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** 分岐先. bind されるまでの参照は後から埋める */
+  static final class Label {
+    private int position = -1;
+    private final List<Integer> references = new ArrayList<>();
+  }
+
+  /** メソッド本体の命令列. スタックの深さを追跡して max_stack を求める */
+  static final class Code {
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ISTORE = 0x36;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKESTATIC = 0xb8;
+
+    private final ClassAssembler owner;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack;
+    private int maxStack;
+    private int maxLocals;
+
+    Code(ClassAssembler owner, int maxLocals) {
+      this.owner = owner;
+      this.maxLocals = maxLocals;
+    }
+
+    private void adjust(int delta) {
+      stack += delta;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    int stack() {
+      return stack;
+    }
+
+    /** 分岐の合流点ではスタックの深さを明示的に戻す */
+    void resetStack(int depth) {
+      stack = depth;
+    }
+
+    private void u1(int value) {
+      code.write(value);
+    }
+
+    private void u2(int value) {
+      code.write(value >>> 8);
+      code.write(value);
+    }
+
+    void pushInt(int value) {
+      if (-1 <= value && value <= 5) {
+        u1(ICONST_0 + value);
+      } else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+        u1(SIPUSH);
+        u2(value);
+      } else {
+        u1(LDC_W);
+        u2(owner.intConstant(value));
+      }
+      adjust(1);
+    }
+
+    void iload(int local) {
+      checkLocal(local);
+      u1(ILOAD);
+      u1(local);
+      adjust(1);
+      maxLocals = Math.max(maxLocals, local + 1);
+    }
+
+    void istore(int local) {
+      checkLocal(local);
+      u1(ISTORE);
+      u1(local);
+      adjust(-1);
+      maxLocals = Math.max(maxLocals, local + 1);
+    }
+
+    private static void checkLocal(int local) {
+      // wide 命令は使わないので 1 バイトで表せる範囲に限る
+      if (local > 255) {
+        throw new Unsupported("too many local variables");
+      }
+    }
+
+    void getStatic(String name) {
+      u1(GETSTATIC);
+      u2(owner.fieldRef(name, "I"));
+      adjust(1);
+    }
+
+    void putStatic(String name) {
+      u1(PUTSTATIC);
+      u2(owner.fieldRef(name, "I"));
+      adjust(-1);
+    }
+
+    void invokeStatic(String name, int arity) {
+      u1(INVOKESTATIC);
+      u2(owner.methodRef(name, descriptor(arity)));
+      adjust(1 - arity);
+    }
+
+    /** 引数なし・戻り値なしの static メソッド呼び出し */
+    void invokeStaticVoid(String name) {
+      u1(INVOKESTATIC);
+      u2(owner.methodRef(name, "()V"));
+    }
+
+    /** スタックを変化させない, あるいは変化量が固定の単純な命令 */
+    void op(int opcode, int stackDelta) {
+      u1(opcode);
+      adjust(stackDelta);
+    }
+
+    void jump(int opcode, Label label, int stackDelta) {
+      var at = code.size();
+      u1(opcode);
+      label.references.add(at);
+      u2(0); // bind 後に埋める
+      adjust(stackDelta);
+      labels.add(label);
+    }
+
+    void bind(Label label) {
+      label.position = code.size();
+    }
+
+    int maxStack() {
+      return maxStack;
+    }
+
+    int maxLocals() {
+      return maxLocals;
+    }
+
+    byte[] toByteArray() {
+      var bytes = code.toByteArray();
+      for (var label : labels) {
+        for (int at : label.references) {
+          int offset = label.position - at;
+          if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new Unsupported("branch offset too large");
+          }
+          bytes[at + 1] = (byte) (offset >>> 8);
+          bytes[at + 2] = (byte) offset;
+        }
+        label.references.clear();
+      }
+      if (bytes.length > 65535) {
+        throw new Unsupported("method too large");
+      }
+      return bytes;
+    }
+
+    static String descriptor(int arity) {
+      return "(" + "I".repeat(arity) + ")I";
+    }
+  }
+
+  /** バイトコードに変換できない構文や大きさに出会ったことを示す. 呼び出し側はインタプリタにフォールバックする */
+  static final class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported(String message) {
+      super(message, null, false, false);
+    }
+  }
+}
@@ -3,7 +3,6 @@ package jp.classmethod.toys.interpreter;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
 public class Ast {
@@ -14,11 +13,18 @@ public class Ast {
           BinaryExpression,
           BlockExpression,
           BoolLiteral,
+          ForInExpression,
           FunctionCall,
           Identifier,
           IfExpression,
           IntegerLiteral,
           LabelledCall,
+          LinkedCall,
+          RangeExpression,
+          ResolvedAssignment,
+          ResolvedForIn,
+          ResolvedIdentifier,
+          Spawn,
           WhileExpression {}
 
   public static BinaryExpression add(Expression lhs, Expression rhs) {
@@ -50,6 +56,11 @@ public class Ast {
     return new WhileExpression(condition, body);
   }
 
+  // `for` も予約済み
+  public static ForInExpression ForIn(String name, Expression iterable, Expression body) {
+    return new ForInExpression(name, iterable, body);
+  }
+
   public static IfExpression If(Expression condition, Expression thenClause) {
     return new IfExpression(condition, thenClause, Optional.empty());
   }
@@ -99,28 +110,39 @@ public class Ast {
       Expression condition, Expression thenClause, Optional<Expression> elseClause)
       implements Expression {}
 
-  //// Environment
-  public static final record Environment(
-      Map<String, Values.Value> bindings, Optional<Environment> next) {
-
-    /**
-     * パラメータ名を Environment の中から探す。 bindings から name が存在するかどうかをチェック。なければ next で findBindings を実行
-     *
-     * @param name 登録してあるパラメータ名
-     * @return {@link Optional}
-     */
-    public Optional<Map<String, Values.Value>> findBinding(String name) {
-      if (bindings.get(name) != null) {
-        return Optional.of(bindings);
-      }
-      if (next.isPresent()) {
-        return next.get().findBinding(name);
-      } else {
-        return Optional.empty();
-      }
+  // for (name in iterable) body. iterable は配列か Values.Sequence で, 要素を一つずつ name に代入して body を評価する
+  public static final record ForInExpression(String name, Expression iterable, Expression body)
+      implements Expression {}
+
+  // from to to. 両端を含む整数の範囲で, 評価しても要素は作らない
+  public static final record RangeExpression(Expression from, Expression to)
+      implements Expression {}
+
+  //// Resolver で解決済みの変数
+  // depth は何段フレームを遡るか, slot はフレーム内の添字. Interpreter は名前ではなくこの番地で変数を引く
+  public static final record ResolvedIdentifier(String name, int depth, int slot)
+      implements Expression {}
+
+  public static final record ResolvedAssignment(
+      String name, int depth, int slot, Expression expression) implements Expression {}
+
+  public static final record ResolvedForIn(
+      String name, int depth, int slot, Expression iterable, Expression body)
+      implements Expression {}
+
+  // Resolver で呼び出し先を結び付けた呼び出し. FunctionCall と LabelledCall のどちらもこれになり, args は呼び出し先の引数の順に並ぶ.
+  // labels は LabelledCall なら並べ替えに使った呼び出し先の引数の名前, FunctionCall なら null
+  public static final record LinkedCall(
+      String name, CallTarget target, List<Expression> args, List<String> labels)
+      implements Expression {
+    public LinkedCall(String name, CallTarget target, List<Expression> args) {
+      this(name, target, args, null);
     }
   }
 
+  // Resolver で spawn(f(...)) を変換したもの. 引数はその場で評価し, 呼び出しは別のスレッドで行って Values.Task を返す
+  public static final record Spawn(LinkedCall call) implements Expression {}
+
   public sealed interface TopLevel permits FunctionDefinition, GlobalVariableDefinition {}
 
   // Function 定義は TopLevel でしかダメ
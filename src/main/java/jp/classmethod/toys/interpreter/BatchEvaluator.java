@@ -0,0 +1,365 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一つの関数を多数の入力に適用する. 入力は引数ごとの int[] (列), 結果は入力と同じ順の {@link Values.Array}.
+ *
+ * <p>本体が引数と整数・真偽値の定数, 算術と比較, ローカル変数への代入, else のある if だけでできていれば, 一行ずつではなく演算ごとに列全体を処理する命令列に変換する.
+ * 各命令は配列を頭から舐めるだけの単純なループなので, JIT が SIMD 命令に展開できる. if は両方の節を列ごとに計算してから条件で選ぶので分岐しない.
+ * そのため除算を含む節は選ばれない行でも 0 除算を起こしうるので変換しない. 変換できない関数は, 読み込み済みの {@link Interpreter} で一行ずつ呼ぶ.
+ */
+public final class BatchEvaluator {
+
+  private final String name;
+  private final int arity;
+
+  // 列ごとに処理する命令列. 変換できなければ null
+  private final List<Step> steps;
+
+  // 結果を持つ命令の番号
+  private final int result;
+
+  // 変換できないときに一行ずつ呼ぶインタプリタ. 必要になるまで作らない
+  private final Ast.Program program;
+  private Interpreter interpreter;
+
+  /**
+   * @param function 適用する関数. 他の関数やグローバル変数は参照できない
+   */
+  public BatchEvaluator(Ast.FunctionDefinition function) {
+    this(new Ast.Program(List.of(function)), function.name());
+  }
+
+  /**
+   * @param program 関数とそれが使う関数・グローバル変数の定義. main はなくてよい
+   * @param name 適用する関数の名前
+   */
+  public BatchEvaluator(Ast.Program program, String name) {
+    var function =
+        program.definitions().stream()
+            .filter(d -> d instanceof Ast.FunctionDefinition f && f.name().equals(name))
+            .map(Ast.FunctionDefinition.class::cast)
+            .findFirst()
+            .orElseThrow(() -> new LanguageException("Function " + name + " is not found"));
+    this.name = name;
+    this.arity = function.args().size();
+    this.program = program;
+    var globals =
+        program.definitions().stream()
+            .filter(d -> d instanceof Ast.GlobalVariableDefinition)
+            .map(d -> ((Ast.GlobalVariableDefinition) d).name())
+            .toList();
+    var compiler = new Compiler(function.args(), globals);
+    if (compiler.compile(function.body())) {
+      this.steps = List.copyOf(compiler.steps);
+      this.result = compiler.result;
+    } else {
+      this.steps = null;
+      this.result = -1;
+    }
+  }
+
+  /** 列ごとの命令列に変換できたか */
+  public boolean isVectorized() {
+    return steps != null;
+  }
+
+  /**
+   * 関数を各行に適用する.
+   *
+   * @param columns 引数ごとの列. 長さはすべて等しいこと
+   * @return 各行の結果
+   */
+  public Values.Array apply(int[]... columns) {
+    if (columns.length != arity) {
+      throw new IllegalArgumentException(
+          "Function " + name + " expects " + arity + " columns but got " + columns.length);
+    }
+    var rows = columns.length == 0 ? 0 : columns[0].length;
+    for (var column : columns) {
+      if (column.length != rows) {
+        throw new IllegalArgumentException("All columns must have the same length");
+      }
+    }
+    return steps != null ? applyVectorized(columns, rows) : applyScalar(columns, rows);
+  }
+
+  private Values.Array applyVectorized(int[][] columns, int rows) {
+    var registers = new Object[steps.size()];
+    for (int i = 0; i < steps.size(); i++) {
+      registers[i] = steps.get(i).execute(columns, registers, rows);
+    }
+    if (rows == 0) {
+      return new Values.Array(List.of());
+    } else if (registers[result] instanceof int[] ints) {
+      // 引数をそのまま返す関数なら, 呼び出し元の配列と共有しないよう写す
+      return new Values.Array(
+          new Values.IntArray(steps.get(result) instanceof Argument ? ints.clone() : ints));
+    }
+    var bools = (boolean[]) registers[result];
+    var bits = new BitSet(rows);
+    for (int i = 0; i < rows; i++) {
+      bits.set(i, bools[i]);
+    }
+    return new Values.Array(new Values.BoolArray(bits, rows));
+  }
+
+  private Values.Array applyScalar(int[][] columns, int rows) {
+    if (interpreter == null) {
+      interpreter = new Interpreter();
+      interpreter.load(program);
+    }
+    var builder = new Values.ArrayBuilder(rows);
+    var args = new Values.Value[arity];
+    for (int row = 0; row < rows; row++) {
+      for (int i = 0; i < arity; i++) {
+        args[i] = Values.of(columns[i][row]);
+      }
+      builder.add(interpreter.call(name, args));
+    }
+    return builder.build();
+  }
+
+  //// 列ごとの命令. 結果は int[] か boolean[] で, 前の命令の結果を registers から読む
+
+  private interface Step {
+    Object execute(int[][] columns, Object[] registers, int rows);
+  }
+
+  private record Argument(int index) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      return columns[index];
+    }
+  }
+
+  private record IntConstant(int value) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      var result = new int[rows];
+      Arrays.fill(result, value);
+      return result;
+    }
+  }
+
+  private record BoolConstant(boolean value) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      var result = new boolean[rows];
+      Arrays.fill(result, value);
+      return result;
+    }
+  }
+
+  private record Arithmetic(Operator operator, int lhs, int rhs) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      var a = (int[]) registers[lhs];
+      var b = (int[]) registers[rhs];
+      var result = new int[rows];
+      // switch をループの外に出し, 各ループを単純な形にしておく
+      switch (operator) {
+        case ADD -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] + b[i];
+          }
+        }
+        case SUBTRACT -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] - b[i];
+          }
+        }
+        case MULTIPLY -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] * b[i];
+          }
+        }
+        case DIVIDE -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] / b[i];
+          }
+        }
+        default -> throw new IllegalStateException(operator.name());
+      }
+      return result;
+    }
+  }
+
+  private record Comparison(Operator operator, int lhs, int rhs) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      var a = (int[]) registers[lhs];
+      var b = (int[]) registers[rhs];
+      var result = new boolean[rows];
+      switch (operator) {
+        case LESS_THAN -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] < b[i];
+          }
+        }
+        case LESS_OR_EQUAL -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] <= b[i];
+          }
+        }
+        case GREATER_THAN -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] > b[i];
+          }
+        }
+        case GREATER_OR_EQUAL -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] >= b[i];
+          }
+        }
+        case EQUAL_EQUAL -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] == b[i];
+          }
+        }
+        case NOT_EQUAL -> {
+          for (int i = 0; i < rows; i++) {
+            result[i] = a[i] != b[i];
+          }
+        }
+        default -> throw new IllegalStateException(operator.name());
+      }
+      return result;
+    }
+  }
+
+  private record Select(int condition, int thenValue, int elseValue) implements Step {
+    @Override
+    public Object execute(int[][] columns, Object[] registers, int rows) {
+      var c = (boolean[]) registers[condition];
+      if (registers[thenValue] instanceof int[] a) {
+        var b = (int[]) registers[elseValue];
+        var result = new int[rows];
+        for (int i = 0; i < rows; i++) {
+          result[i] = c[i] ? a[i] : b[i];
+        }
+        return result;
+      }
+      var a = (boolean[]) registers[thenValue];
+      var b = (boolean[]) registers[elseValue];
+      var result = new boolean[rows];
+      for (int i = 0; i < rows; i++) {
+        result[i] = c[i] ? a[i] : b[i];
+      }
+      return result;
+    }
+  }
+
+  /** 本体を命令列に変換する */
+  private static final class Compiler {
+    private final List<Step> steps = new ArrayList<>();
+    private int result;
+    // 命令ごとの結果の型. true なら int[]
+    private final List<Boolean> ints = new ArrayList<>();
+    // 変数名から, その値を持つ命令の番号
+    private final Map<String, Integer> variables = new HashMap<>();
+    // 代入するとグローバル変数に書き込むことになる名前
+    private final List<String> globals;
+
+    Compiler(List<String> params, List<String> globals) {
+      this.globals = globals;
+      for (int i = 0; i < params.size(); i++) {
+        variables.put(params.get(i), emit(new Argument(i), true));
+      }
+    }
+
+    /** 変換できない式に出会ったら false */
+    boolean compile(Ast.Expression body) {
+      try {
+        result = expression(body, false);
+        return true;
+      } catch (Unsupported e) {
+        return false;
+      }
+    }
+
+    private int emit(Step step, boolean isInt) {
+      steps.add(step);
+      ints.add(isInt);
+      return steps.size() - 1;
+    }
+
+    private int integer(Ast.Expression expression, boolean inBranch) {
+      var register = expression(expression, inBranch);
+      if (!ints.get(register)) {
+        throw new Unsupported();
+      }
+      return register;
+    }
+
+    /**
+     * @param inBranch if の節の中. 選ばれない行でも評価するので除算と代入を許さない
+     */
+    private int expression(Ast.Expression expression, boolean inBranch) {
+      if (expression instanceof Ast.IntegerLiteral e) {
+        return emit(new IntConstant(e.value()), true);
+      } else if (expression instanceof Ast.BoolLiteral e) {
+        return emit(new BoolConstant(e.param()), false);
+      } else if (expression instanceof Ast.Identifier e) {
+        var register = variables.get(e.name());
+        if (register == null) {
+          // グローバル変数か未初期化の変数
+          throw new Unsupported();
+        }
+        return register;
+      } else if (expression instanceof Ast.Assignment e
+          && !inBranch
+          && !globals.contains(e.name())) {
+        var register = expression(e.expression(), false);
+        variables.put(e.name(), register);
+        return register;
+      } else if (expression instanceof Ast.BinaryExpression e) {
+        var lhs = integer(e.lhs(), inBranch);
+        var rhs = integer(e.rhs(), inBranch);
+        return switch (e.operator()) {
+          case ADD, SUBTRACT, MULTIPLY -> emit(new Arithmetic(e.operator(), lhs, rhs), true);
+          case DIVIDE -> {
+            if (inBranch) {
+              throw new Unsupported();
+            }
+            yield emit(new Arithmetic(e.operator(), lhs, rhs), true);
+          }
+          default -> emit(new Comparison(e.operator(), lhs, rhs), false);
+        };
+      } else if (expression instanceof Ast.BlockExpression e && !e.elements().isEmpty()) {
+        var register = -1;
+        for (var element : e.elements()) {
+          register = expression(element, inBranch);
+        }
+        return register;
+      } else if (expression instanceof Ast.IfExpression e && e.elseClause().isPresent()) {
+        var condition = expression(e.condition(), inBranch);
+        if (ints.get(condition)) {
+          throw new Unsupported();
+        }
+        var thenValue = expression(e.thenClause(), true);
+        var elseValue = expression(e.elseClause().get(), true);
+        if (ints.get(thenValue) != ints.get(elseValue)) {
+          throw new Unsupported();
+        }
+        return emit(new Select(condition, thenValue, elseValue), ints.get(thenValue));
+      }
+      throw new Unsupported();
+    }
+  }
+
+  private static final class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+/**
+ * 呼び出し先の関数を入れる箱. {@link Resolver} は同じ名前の呼び出しに同じ箱を結び付けるので, 関数を定義・差し替えたときは箱の中身を入れ替えるだけで全ての呼び出し元に
+ * 反映される. 呼び出しのたびに名前で関数表を引かない.
+ */
+public final class CallTarget {
+
+  private final String name;
+
+  // 未定義なら null
+  Resolver.ResolvedFunction function;
+
+  CallTarget(String name) {
+    this.name = name;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public Resolver.ResolvedFunction function() {
+    return function;
+  }
+
+  @Override
+  public String toString() {
+    return "CallTarget[" + name + "]";
+  }
+}
@@ -0,0 +1,127 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.Map;
+
+/** {@link Resolver} で解決済みの {@link Ast.Expression} を {@link Nodes.Node} の木に一度だけ変換する. */
+public class ClosureCompiler {
+
+  private final Map<String, Nodes.Function> functions;
+
+  // null なら計測用のノードを作らない
+  private final Profiler profiler;
+
+  //// 変換中の関数の名前と, その中で次に現れる while の番号
+  private String functionName = Profiler.TOP_LEVEL;
+  private int loopIndex;
+
+  /**
+   * @param functions 呼び出し先の関数表. Call ノードは変換時にここから呼び出し先を決める
+   */
+  public ClosureCompiler(Map<String, Nodes.Function> functions) {
+    this(functions, null);
+  }
+
+  /**
+   * @param functions 呼び出し先の関数表
+   * @param profiler 計測結果を集める {@link Profiler}. null なら計測しない
+   */
+  public ClosureCompiler(Map<String, Nodes.Function> functions, Profiler profiler) {
+    this.functions = functions;
+    this.profiler = profiler;
+  }
+
+  /**
+   * 関数本体を変換する. 計測するときは本体を呼び出しの記録で包む.
+   *
+   * @param name 関数名
+   * @param body 解決済みの本体
+   * @return 本体のノード
+   */
+  public Nodes.Node compileFunction(String name, Ast.Expression body) {
+    var outerName = functionName;
+    var outerIndex = loopIndex;
+    functionName = name;
+    loopIndex = 0;
+    try {
+      var node = compile(body);
+      return profiler == null
+          ? node
+          : new Nodes.ProfiledBody(node, profiler, profiler.function(name));
+    } finally {
+      functionName = outerName;
+      loopIndex = outerIndex;
+    }
+  }
+
+  public Nodes.Node compile(Ast.Expression expression) {
+    if (expression instanceof Ast.BinaryExpression e) {
+      var lhs = compile(e.lhs());
+      var rhs = compile(e.rhs());
+      return switch (e.operator()) {
+        case ADD -> new Nodes.Add(lhs, rhs);
+        case SUBTRACT -> new Nodes.Subtract(lhs, rhs);
+        case MULTIPLY -> new Nodes.Multiply(lhs, rhs);
+        case DIVIDE -> new Nodes.Divide(lhs, rhs);
+        case LESS_THAN -> new Nodes.LessThan(lhs, rhs);
+        case LESS_OR_EQUAL -> new Nodes.LessOrEqual(lhs, rhs);
+        case GREATER_THAN -> new Nodes.GreaterThan(lhs, rhs);
+        case GREATER_OR_EQUAL -> new Nodes.GreaterOrEqual(lhs, rhs);
+        case EQUAL_EQUAL -> new Nodes.EqualEqual(lhs, rhs);
+        case NOT_EQUAL -> new Nodes.NotEqual(lhs, rhs);
+      };
+    } else if (expression instanceof Ast.IntegerLiteral e) {
+      return new Nodes.Constant(Values.of(e.value()));
+    } else if (expression instanceof Ast.BoolLiteral e) {
+      return new Nodes.Constant(Values.of(e.param()));
+    } else if (expression instanceof Ast.ResolvedIdentifier e) {
+      return switch (e.depth()) {
+        case 0 -> new Nodes.ReadLocal(e.name(), e.slot());
+        case 1 -> new Nodes.ReadOuter(e.name(), e.slot());
+        default -> new Nodes.ReadVariable(e.name(), e.depth(), e.slot());
+      };
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      var value = compile(e.expression());
+      return e.depth() == 0
+          ? new Nodes.WriteLocal(e.slot(), value)
+          : new Nodes.WriteVariable(e.depth(), e.slot(), value);
+    } else if (expression instanceof Ast.IfExpression e) {
+      return new Nodes.If(
+          compile(e.condition()),
+          compile(e.thenClause()),
+          e.elseClause().map(this::compile).orElse(null));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      if (profiler != null) {
+        var counter = profiler.loop(functionName, loopIndex++);
+        return new Nodes.ProfiledWhile(compile(e.condition()), compile(e.body()), counter);
+      }
+      return new Nodes.While(compile(e.condition()), compile(e.body()));
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      return new Nodes.ForIn(e.depth(), e.slot(), compile(e.iterable()), compile(e.body()));
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return new Nodes.Range(compile(e.from()), compile(e.to()));
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return new Nodes.Block(e.elements().stream().map(this::compile).toArray(Nodes.Node[]::new));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return new Nodes.ArrayLiteral(
+          e.items().stream().map(this::compile).toArray(Nodes.Node[]::new));
+    } else if (expression instanceof Ast.LinkedCall e) {
+      var function = functions.get(e.name());
+      if (function != null && function.arity != e.args().size()) {
+        throw new LanguageException(
+            "Function "
+                + e.name()
+                + " expects "
+                + function.arity
+                + " arguments but got "
+                + e.args().size());
+      }
+      return new Nodes.Call(
+          e.name(), function, e.args().stream().map(this::compile).toArray(Nodes.Node[]::new));
+    } else if (expression instanceof Ast.Spawn) {
+      throw new LanguageException("spawn is supported only by the tree-walking interpreter");
+    } else {
+      return new Nodes.Unsupported();
+    }
+  }
+}
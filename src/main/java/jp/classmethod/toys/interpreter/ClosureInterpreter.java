@@ -0,0 +1,91 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link ClosureCompiler} でノードの木に変換してから実行するエンジン. 変数の解決は {@link Interpreter} と同じく {@link Resolver}
+ * に任せるので, 振る舞いは {@link Interpreter} と一致する.
+ */
+public class ClosureInterpreter implements Engine {
+
+  private final Resolver resolver;
+
+  private Frame globals;
+
+  private final Map<String, Nodes.Function> functionEnvironment;
+
+  private final Profiler profiler;
+
+  public ClosureInterpreter() {
+    this(null);
+  }
+
+  /**
+   * 実行を計測するエンジンを作る. 関数本体と while を計測用のノードに変換する.
+   *
+   * @param profiler 計測結果を集める {@link Profiler}. null なら計測しない
+   */
+  public ClosureInterpreter(Profiler profiler) {
+    this.profiler = profiler;
+    this.resolver = new Resolver();
+    this.functionEnvironment = new HashMap<>();
+    globals = new Frame(0, null);
+  }
+
+  public void reset() {
+    resolver.reset();
+    globals = new Frame(0, null);
+    functionEnvironment.clear();
+  }
+
+  /**
+   * トップレベルの式をコンパイルして評価する.
+   *
+   * @param expression 評価する式
+   * @return 評価結果
+   */
+  public Values.Value interpret(Ast.Expression expression) {
+    var resolved = resolver.resolveTopLevel(expression);
+    globals.ensureCapacity(resolver.globalCount());
+    return new ClosureCompiler(functionEnvironment, profiler).compile(resolved).execute(globals);
+  }
+
+  @Override
+  public Values.Value callMain(Ast.Program program) {
+    var topLevels = program.definitions();
+    resolver.declareGlobals(program);
+    globals.ensureCapacity(resolver.globalCount());
+
+    // 呼び出し先を変換時に決められるよう, 関数の枠を先に全部作っておく
+    for (var topLevel : topLevels) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        functionEnvironment.put(
+            definition.name(), new Nodes.Function(definition.name(), definition.args().size()));
+      }
+    }
+
+    var compiler = new ClosureCompiler(functionEnvironment, profiler);
+    for (var topLevel : topLevels) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        var resolved = resolver.resolveFunction(definition);
+        var function = functionEnvironment.get(definition.name());
+        function.frameSize = resolved.frameSize();
+        function.body = compiler.compileFunction(definition.name(), resolved.definition().body());
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition globalVariableDefinition) {
+        var slot = resolver.declareGlobal(globalVariableDefinition.name());
+        // 初期化式がグローバル変数を増やすと slots が差し替わるので, 評価してから代入する
+        var value = interpret(globalVariableDefinition.expression());
+        globals.slots[slot] = value;
+      }
+    }
+
+    var mainFunction = functionEnvironment.get("main");
+    if (mainFunction != null) {
+      return mainFunction.invoke(new Frame(mainFunction.frameSize, globals));
+    } else {
+      throw new LanguageException("This program doesn't have main() function");
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import jp.classmethod.toys.bytecode.BytecodeEngine;
+import jp.classmethod.toys.optimizer.Optimizer;
+
+/** {@link Ast.Program} を実行するエンジン. 実装を差し替えて結果や速度を比較できるようにしておく */
+public interface Engine {
+
+  Values.Value callMain(Ast.Program program);
+
+  enum Kind {
+    // Ast をそのまま辿る実装. 意味論の基準
+    TREE_WALKING,
+    // Ast を一度ノードオブジェクトの木に変換してから実行する実装
+    CLOSURE,
+    // 関数を JVM のメソッドに変換して実行する実装. 変換できなければ TREE_WALKING で実行する
+    BYTECODE,
+    // 継続をヒープ上のスタックに積んで実行する実装. 再帰の深さがスレッドのスタックに縛られない
+    STACK,
+    // 関数をレジスタマシンの命令列に変換して実行する実装. JVM のクラスを生成しないので変換が安い
+    REGISTER;
+
+    public Engine create() {
+      return switch (this) {
+        case TREE_WALKING -> new Interpreter();
+        case CLOSURE -> new ClosureInterpreter();
+        case BYTECODE -> new BytecodeEngine();
+        case STACK -> new StackInterpreter();
+        case REGISTER -> new RegisterMachine();
+      };
+    }
+  }
+
+  /**
+   * システムプロパティ {@code toys.engine} で指定されたエンジンを作る. 未指定なら {@link Kind#TREE_WALKING}. {@code
+   * toys.optimize} が true なら callMain の前に {@link Optimizer#standard()} でプログラムを書き換える. {@code
+   * toys.profile} にファイル名を指定すると {@link Kind#CLOSURE} を {@link Profiler} 付きで使い, callMain の後に
+   * collapsed stack をそのファイルに書き出す.
+   *
+   * @return {@link Engine}
+   */
+  static Engine create() {
+    var name = System.getProperty("toys.engine", Kind.TREE_WALKING.name());
+    var profile = System.getProperty("toys.profile");
+    var engine = profile == null ? Kind.valueOf(name.toUpperCase()).create() : profiling(profile);
+    if (Boolean.getBoolean("toys.optimize")) {
+      var optimizer = Optimizer.standard();
+      return program -> engine.callMain(optimizer.optimize(program).program());
+    }
+    return engine;
+  }
+
+  private static Engine profiling(String path) {
+    var profiler = new Profiler();
+    var engine = new ClosureInterpreter(profiler);
+    return program -> {
+      try {
+        return engine.callMain(program);
+      } finally {
+        try {
+          profiler.writeCollapsedStacks(Path.of(path));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+}
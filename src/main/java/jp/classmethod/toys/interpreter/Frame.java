@@ -0,0 +1,51 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.Arrays;
+
+/** 配列ベースの変数環境. {@link Resolver} が割り当てた (depth, slot) で値を読み書きする. */
+final class Frame {
+
+  Values.Value[] slots;
+
+  final Frame next;
+
+  Frame(int size, Frame next) {
+    this.slots = new Values.Value[size];
+    this.next = next;
+  }
+
+  Frame(Values.Value[] slots, Frame next) {
+    this.slots = slots;
+    this.next = next;
+  }
+
+  /**
+   * depth 段遡ったフレームを返す.
+   *
+   * @param depth 0 なら自分自身
+   * @return {@link Frame}
+   */
+  Frame up(int depth) {
+    var frame = this;
+    for (int i = 0; i < depth; i++) {
+      frame = frame.next;
+    }
+    return frame;
+  }
+
+  Values.Value get(int depth, int slot) {
+    return up(depth).slots[slot];
+  }
+
+  void set(int depth, int slot, Values.Value value) {
+    up(depth).slots[slot] = value;
+  }
+
+  /** グローバル変数は後から増えることがあるので, 必要に応じて配列を伸ばす */
+  void ensureCapacity(int size) {
+    if (slots.length < size) {
+      slots = Arrays.copyOf(slots, size);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.List;
+
+/**
+ * スクリプトから関数として呼べる Java のコード. {@link Interpreter#defineHostFunction} で登録する.
+ *
+ * <p>I/O などで止まる処理は {@link #blocking} で包んでおくと, spawn したタスクの中で呼ばれたときに {@link
+ * java.util.concurrent.ForkJoinPool.ManagedBlocker} として待つ. 待っている間はプールが代わりのスレッドで他のタスクを進める.
+ */
+@FunctionalInterface
+public interface HostFunction {
+
+  /**
+   * @param args 引数の値. 登録した引数名の順に並ぶ
+   * @return 呼び出しの結果. 値がなければ null
+   */
+  Values.Value call(List<Values.Value> args);
+
+  /**
+   * スレッドを止めうる関数として包む
+   *
+   * @param function 包む関数
+   * @return {@link Blocking}
+   */
+  static HostFunction blocking(HostFunction function) {
+    return new Blocking(function);
+  }
+
+  /** スレッドを止めうる関数 */
+  record Blocking(HostFunction function) implements HostFunction {
+    @Override
+    public Values.Value call(List<Values.Value> args) {
+      return function.call(args);
+    }
+  }
+}
@@ -1,141 +1,818 @@
 /* Copyright (C) 2023 komuro-hiraku */
 package jp.classmethod.toys.interpreter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Interpreter */
-public class Interpreter {
+public class Interpreter implements Engine {
 
-  private Ast.Environment variableEnvironment;
+  /**
+   * {@link #Interpreter()} と {@link #Interpreter(Meter)} が使うプール. システムプロパティ {@code toys.parallel} が
+   * true なら共通プール, そうでなければ null (並列に評価しない)
+   */
+  public static final ForkJoinPool DEFAULT_POOL =
+      Boolean.getBoolean("toys.parallel") ? ForkJoinPool.commonPool() : null;
 
-  private final Map<String, Ast.FunctionDefinition> functionEnvironment;
+  /** {@link #memoize} を呼ばないときに覚えておく呼び出し結果の数. システムプロパティ {@code toys.memo} で変えられる. 0 なら覚えない */
+  public static final int DEFAULT_MEMO_SIZE = Integer.getInteger("toys.memo", 0);
+
+  /** 要素をこの数以上持つ配列リテラルだけを並列に評価する. システムプロパティ {@code toys.parallelThreshold} で変えられる */
+  public static final int PARALLEL_ARRAY_THRESHOLD =
+      Integer.getInteger("toys.parallelThreshold", 32);
+
+  private final Resolver resolver;
+
+  private Frame globals;
+
+  private Frame frame;
+
+  private final Map<String, Resolver.ResolvedFunction> functionEnvironment;
+
+  // Java で書いた関数. 同じ名前の関数がスクリプトにあればそちらを呼ぶ
+  private final Map<String, HostBinding> hostFunctions;
+
+  /** 登録したホスト関数 */
+  private static final record HostBinding(List<String> params, HostFunction function) {}
+
+  // 末尾呼び出しの呼び出し先. invoke が拾ってループする
+  private Resolver.ResolvedFunction tailFunction;
+
+  private Frame tailFrame;
+
+  private final Meter meter;
+
+  // null なら並列に評価しない
+  private final ForkJoinPool pool;
+
+  // spawn した呼び出しを実行するプール. null ならその場で呼び出す
+  private final ForkJoinPool spawner;
+
+  private final Purity purity = new Purity();
+
+  // 並列に評価してよい配列リテラル. 関数を差し替えたら捨てる
+  private final Map<Ast.ArrayLiteral, Boolean> parallelArrays = new IdentityHashMap<>();
+
+  // 型が決まって値を包まずに評価できる関数. 決まらなかった関数は null に対応付ける. 予算に上限があるときは数え方が変わらないよう使わないので null
+  private final Map<Resolver.ResolvedFunction, Unboxed.Function> unboxed;
+
+  // 純粋な関数の結果を覚えておく表. null なら覚えない
+  private MemoCache memo;
+  // 関数表を書き換えた回数. 覚えた結果は同じ世代でしか使わない
+  private long generation;
 
   public Interpreter() {
+    this(Meter.unlimited());
+  }
+
+  /**
+   * 予算を決めて実行するインタプリタを作る. 予算を使い切ると {@link LanguageException} で止まる.
+   *
+   * @param meter 予算
+   */
+  public Interpreter(Meter meter) {
+    this(meter, DEFAULT_POOL);
+  }
+
+  /**
+   * 互いに依存しない純粋なグローバル変数の初期化式と, 大きな配列リテラルの要素を pool で並列に評価するインタプリタを作る. 評価の順番が変わっても結果と例外は逐次実行と同じ.
+   * 予算に上限があるときは数え方が変わらないよう並列にしない.
+   *
+   * <p>spawn した呼び出しは pool で, pool が null なら共通プールで実行する. 予算に上限があるときは spawn した時点でその場で呼び出す.
+   *
+   * @param meter 予算
+   * @param pool 並列に評価するプール. null なら逐次実行
+   */
+  public Interpreter(Meter meter, ForkJoinPool pool) {
+    this.meter = meter;
+    this.pool = meter.isUnlimited() ? pool : null;
+    this.spawner = spawner(meter, pool);
+    this.unboxed = meter.isUnlimited() ? new IdentityHashMap<>() : null;
+    this.resolver = new Resolver();
+    this.memo = defaultMemo(meter);
     this.functionEnvironment = new HashMap<>();
-    variableEnvironment = newEnvironment(Optional.empty());
+    this.hostFunctions = builtins();
+    hostFunctions.forEach((name, host) -> resolver.declareFunction(name, host.params()));
+    globals = new Frame(0, null);
+    frame = globals;
+  }
+
+  /**
+   * {@link ProgramImage} を実行する文脈を作る. 関数表はイメージと共有し, グローバル変数だけを複製する. 関数表を書き換えないよう, この文脈では {@link
+   * #load}, {@link #update}, {@link #interpret}, {@link #reset} は使えない.
+   */
+  Interpreter(ProgramImage image, Meter meter) {
+    this.meter = meter;
+    this.pool = null;
+    this.spawner = spawner(meter, null);
+    this.unboxed = meter.isUnlimited() ? new IdentityHashMap<>() : null;
+    this.resolver = null;
+    this.memo = defaultMemo(meter);
+    this.functionEnvironment = image.functions();
+    this.hostFunctions = builtins();
+    globals = new Frame(image.copyGlobals(), null);
+    frame = globals;
+  }
+
+  // 並列に評価する一つの式か, spawn した一つの呼び出しのための文脈. 関数表とフレームを親と共有する.
+  // spawn した関数がグローバル変数に書き込んだ値は, join するまで他のスレッドから見えるとは限らない
+  private Interpreter(Interpreter parent, Meter meter) {
+    this.meter = meter;
+    this.pool = null;
+    this.spawner = parent.spawner;
+    this.unboxed = null;
+    this.resolver = null;
+    this.functionEnvironment = parent.functionEnvironment;
+    this.hostFunctions = parent.hostFunctions;
+    globals = parent.globals;
+    frame = parent.frame;
+  }
+
+  private static MemoCache defaultMemo(Meter meter) {
+    return meter.isUnlimited() && DEFAULT_MEMO_SIZE > 0 ? new MemoCache(DEFAULT_MEMO_SIZE) : null;
+  }
+
+  /**
+   * 純粋な関数の結果を cache に覚えておき, 同じ引数で呼ばれたら評価せずに返す. 純粋な関数とは, 自分のフレームの外に代入せず, グローバル変数を読まず, 純粋な関数だけを呼ぶ関数.
+   * 予算に上限があるときは数え方が変わらないよう覚えない. spawn した呼び出しや並列に評価する式の中の呼び出しも覚えない.
+   *
+   * @param cache 結果を覚えておく表. 複数のインタプリタで共有してよい. null なら覚えない
+   */
+  public void memoize(MemoCache cache) {
+    this.memo = meter.isUnlimited() ? cache : null;
+  }
+
+  private static ForkJoinPool spawner(Meter meter, ForkJoinPool pool) {
+    if (!meter.isUnlimited()) {
+      return null;
+    }
+    return pool != null ? pool : ForkJoinPool.commonPool();
+  }
+
+  // どのインタプリタにもある関数
+  private static Map<String, HostBinding> builtins() {
+    var builtins = new HashMap<String, HostBinding>();
+    builtins.put("join", new HostBinding(List.of("task"), Interpreter::join));
+    return builtins;
+  }
+
+  // join(task): spawn した呼び出しの結果を待つ
+  private static Values.Value join(List<Values.Value> args) {
+    if (args.get(0) instanceof Values.Task task) {
+      return task.join();
+    }
+    throw new LanguageException("join expects a task but got " + args.get(0));
+  }
+
+  /**
+   * Java のコードをスクリプトから呼べる関数として登録する. 同じ名前の関数がスクリプトで定義されていればそちらが優先される.
+   *
+   * <p>I/O などで止まる関数は {@link HostFunction#blocking} で包んでおくと, spawn したタスクの中で止まっている間もプールが他のタスクを進める.
+   *
+   * @param name 関数名
+   * @param params 引数名. ラベル付きの呼び出しにも使う
+   * @param function 呼び出されたときに実行するコード
+   */
+  public void defineHostFunction(String name, List<String> params, HostFunction function) {
+    resolver().declareFunction(name, params);
+    hostFunctions.put(name, new HostBinding(List.copyOf(params), function));
+    forgetPurity();
+  }
+
+  private Resolver resolver() {
+    if (resolver == null) {
+      throw new IllegalStateException("This interpreter runs a shared ProgramImage");
+    }
+    return resolver;
+  }
+
+  /** 現在の関数表とグローバル変数から {@link ProgramImage} を作る */
+  ProgramImage snapshot() {
+    return new ProgramImage(functionEnvironment, globals.slots);
   }
 
   public void reset() {
-    variableEnvironment = newEnvironment(Optional.empty());
+    resolver().reset();
+    globals = new Frame(0, null);
+    frame = globals;
     functionEnvironment.clear();
+    hostFunctions.forEach((name, host) -> resolver.declareFunction(name, host.params()));
+    forgetPurity();
   }
 
-  private static Ast.Environment newEnvironment(Optional<Ast.Environment> next) {
-    return new Ast.Environment(new HashMap<>(), next);
+  /**
+   * トップレベルの式を評価する. 変数は {@link Resolver} でグローバルフレーム上の番地に解決してから評価する.
+   *
+   * @param expression 評価する式
+   * @return 評価結果
+   */
+  public Values.Value interpret(Ast.Expression expression) {
+    var resolved = resolver().resolveTopLevel(expression);
+    globals.ensureCapacity(resolver.globalCount());
+    return evaluate(resolved);
   }
 
-  public Values.Value interpret(Ast.Expression expression) {
+  private Values.Value evaluate(Ast.Expression expression) {
 
     if (expression instanceof Ast.BinaryExpression binaryExpression) {
-      var lhs = interpret(binaryExpression.lhs()).asInt().value();
-      var rhs = interpret(binaryExpression.rhs()).asInt().value();
+      var lhs = evaluate(binaryExpression.lhs()).asInt().value();
+      var rhs = evaluate(binaryExpression.rhs()).asInt().value();
       return switch (binaryExpression.operator()) {
           // 四則演算
-        case ADD -> Values.wrap(lhs + rhs);
-        case SUBTRACT -> Values.wrap(lhs - rhs);
-        case MULTIPLY -> Values.wrap(lhs * rhs);
-        case DIVIDE -> Values.wrap(lhs / rhs);
+        case ADD -> Values.of(lhs + rhs);
+        case SUBTRACT -> Values.of(lhs - rhs);
+        case MULTIPLY -> Values.of(lhs * rhs);
+        case DIVIDE -> Values.of(lhs / rhs);
 
           // 比較式
-        case LESS_THAN -> Values.wrap(lhs < rhs);
-        case LESS_OR_EQUAL -> Values.wrap(lhs <= rhs);
-        case GREATER_THAN -> Values.wrap(lhs > rhs);
-        case GREATER_OR_EQUAL -> Values.wrap(lhs >= rhs);
-        case EQUAL_EQUAL -> Values.wrap(lhs == rhs);
-        case NOT_EQUAL -> Values.wrap(lhs != rhs);
+        case LESS_THAN -> Values.of(lhs < rhs);
+        case LESS_OR_EQUAL -> Values.of(lhs <= rhs);
+        case GREATER_THAN -> Values.of(lhs > rhs);
+        case GREATER_OR_EQUAL -> Values.of(lhs >= rhs);
+        case EQUAL_EQUAL -> Values.of(lhs == rhs);
+        case NOT_EQUAL -> Values.of(lhs != rhs);
       };
     } else if (expression instanceof Ast.IntegerLiteral integer) {
-      return Values.wrap(integer.value());
-    } else if (expression instanceof Ast.Identifier e) {
-      var bindingOpt = variableEnvironment.findBinding(e.name());
-      return bindingOpt.get().get(e.name());
-    } else if (expression instanceof Ast.Assignment e) {
-      var bindingOpt = variableEnvironment.findBinding(e.name());
-      var value = interpret(e.expression());
-      if (bindingOpt.isPresent()) {
-        bindingOpt.get().put(e.name(), value);
-      } else {
-        variableEnvironment.bindings().put(e.name(), value);
+      return Values.of(integer.value());
+    } else if (expression instanceof Ast.BoolLiteral bool) {
+      return Values.of(bool.param());
+    } else if (expression instanceof Ast.ResolvedIdentifier e) {
+      var value = frame.get(e.depth(), e.slot());
+      if (value == null) {
+        throw new LanguageException("Variable " + e.name() + " is not initialized");
       }
       return value;
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      var value = evaluate(e.expression());
+      frame.set(e.depth(), e.slot(), value);
+      return value;
     } else if (expression instanceof Ast.IfExpression e) {
-      var condition = interpret(e.condition()).asBool().value();
+      var condition = evaluate(e.condition()).asBool().value();
       if (condition) {
-        return interpret(e.thenClause());
+        return evaluate(e.thenClause());
       } else {
         var elseClauseOpt = e.elseClause();
-        // Optional で存在しなかったらnullを返す
-        return elseClauseOpt.map(this::interpret).orElse(null);
+        // Optional で存在しなかったらnullを返す. map(this::evaluate) はラムダを割り当てるので使わない
+        return elseClauseOpt.isPresent() ? evaluate(elseClauseOpt.get()) : null;
       }
     } else if (expression instanceof Ast.WhileExpression e) {
+      // 予算は一周ごとにまとめて差し引く
+      var cost = meter.loopCost(e);
       // 無限ループでひたすら評価
       while (true) {
-        var condition = interpret(e.condition()).asBool().value(); // condition 部を評価
+        meter.chargeFuel(cost);
+        var condition = evaluate(e.condition()).asBool().value(); // condition 部を評価
 
         // 条件が真であれば body を評価
         if (condition) {
-          interpret(e.body());
+          evaluate(e.body());
         } else {
           // 条件が偽であれば脱出
           break;
         }
       }
 
-      return Values.wrap(true);
+      return Values.TRUE;
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      // 要素を一つずつ取り出して代入する. 列を配列にまとめないので, 長い列でも使うメモリは変わらない
+      var elements = Values.elements(evaluate(e.iterable()));
+      var cost = meter.loopCost(e);
+      while (elements.hasNext()) {
+        meter.chargeFuel(cost);
+        frame.set(e.depth(), e.slot(), elements.next());
+        evaluate(e.body());
+      }
+      return Values.TRUE;
+    } else if (expression instanceof Ast.RangeExpression e) {
+      var from = evaluate(e.from()).asInt().value();
+      var to = evaluate(e.to()).asInt().value();
+      return new Values.Range(from, to);
     } else if (expression instanceof Ast.BlockExpression e) {
       Values.Value value = null; // 初期化
-      for (var element : e.elements()) { // Block 内部を評価
-        value = interpret(element);
+      var elements = e.elements();
+      for (int i = 0; i < elements.size(); i++) { // Block 内部を評価. Iterator を作らないよう添字で回す
+        value = evaluate(elements.get(i));
       }
       return value; // 最後に評価した値を返す
-    } else if (expression instanceof Ast.FunctionCall functionCall) {
-      // 関数呼び出し
-      var definition = functionEnvironment.get(functionCall.name());
-      if (definition == null) {
-        // 呼び出そうとした定義がない
-        throw new RuntimeException("Function " + functionCall.name() + " is not found");
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      // 要素の型を見ながら int[] などの専用表現に詰める
+      var items = e.items();
+      meter.chargeAllocations(items.size() + 1);
+      if (pool != null && items.size() >= PARALLEL_ARRAY_THRESHOLD && isParallel(e)) {
+        var builder = new Values.ArrayBuilder(items.size());
+        var forked = fork(items);
+        for (int i = 0; i < items.size(); i++) {
+          builder.add(join(forked, i));
+        }
+        return builder.build();
+      }
+      var builder = new Values.ArrayBuilder(items.size());
+      for (int i = 0; i < items.size(); i++) {
+        builder.add(evaluate(items.get(i)));
+      }
+      return builder.build();
+    } else if (expression instanceof Ast.LinkedCall call) {
+      // 関数呼び出し. 呼び出し先は解決時に結び付けてある
+      var host = host(call);
+      if (host != null) {
+        return callHost(host.function(), hostArgs(host, call));
+      }
+      var function = lookup(call);
+      return invoke(function, calleeFrame(function, call));
+
+    } else if (expression instanceof Ast.Spawn e) {
+      return spawn(e.call());
+    } else {
+      throw new RuntimeException("not reach here");
+    }
+  }
+
+  private boolean isParallel(Ast.ArrayLiteral array) {
+    var parallel = parallelArrays.get(array);
+    if (parallel == null) {
+      // 要素は呼び出し元のフレームで評価するので, トップレベルならグローバルフレームは 0 段上
+      var globalDepth = frame == globals ? 0 : 1;
+      var calls = false;
+      parallel = true;
+      for (var item : array.items()) {
+        var summary = purity.ofExpression(item, globalDepth);
+        parallel &= summary.pure();
+        calls |= summary.calls();
+      }
+      parallel &= calls;
+      parallelArrays.put(array, parallel);
+    }
+    return parallel;
+  }
+
+  /** {@link #fork} で評価し始めた式. どれかの結果が例外なら, 残りは止める */
+  private static final class Forked {
+    final List<Ast.Expression> expressions;
+    final List<Future<Values.Value>> futures;
+    final AtomicBoolean cancelled = new AtomicBoolean();
+
+    Forked(List<Ast.Expression> expressions) {
+      this.expressions = expressions;
+      this.futures = new ArrayList<>(expressions.size());
+    }
+
+    // まだ始まっていない式は評価せず, 評価中の式は次に予算を数えるときに止まる
+    void cancel() {
+      cancelled.set(true);
+      futures.forEach(f -> f.cancel(false));
+    }
+  }
+
+  /**
+   * 純粋な式を pool で並列に評価し始める. 結果を {@link #join} で前から順に受け取ると, 逐次実行で最初に起きるはずの例外を最初に投げ, 後ろの式の評価を止める.
+   * 後ろの式が止まらなくても, 前の式の例外を待たずに投げる.
+   *
+   * @param expressions 現在のフレームで評価する純粋な式
+   * @return 評価中の式
+   */
+  private Forked fork(List<Ast.Expression> expressions) {
+    var forked = new Forked(expressions);
+    for (var expression : expressions) {
+      // 予算はスレッドごとに持ち, 止める印だけを共有する
+      var context = new Interpreter(this, Meter.cancellable(forked.cancelled));
+      forked.futures.add(pool.submit(() -> context.evaluate(expression)));
+    }
+    return forked;
+  }
+
+  /**
+   * index 番目の式の結果を待つ. 例外を投げるときは残りの式を止める.
+   *
+   * @param forked {@link #fork} の結果
+   * @param index 受け取る式. 前から順に受け取ること
+   * @return 評価結果
+   */
+  private Values.Value join(Forked forked, int index) {
+    var completed = false;
+    try {
+      var value = await(forked.futures.get(index), forked.expressions.get(index));
+      completed = true;
+      return value;
+    } finally {
+      if (!completed) {
+        forked.cancel();
+      }
+    }
+  }
+
+  // ワーカーのスタックが足りなければ, その式だけ呼び出し元のスレッドで評価し直す
+  private Values.Value await(Future<Values.Value> future, Ast.Expression expression) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      var cause = Values.cause(e);
+      if (cause instanceof StackOverflowError) {
+        return evaluate(expression);
+      } else if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new IllegalStateException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // スクリプトに同じ名前の関数がなければ, 呼び出し先のホスト関数
+  private HostBinding host(Ast.LinkedCall call) {
+    return call.target().function() == null ? hostFunctions.get(call.name()) : null;
+  }
+
+  private List<Values.Value> hostArgs(HostBinding host, Ast.LinkedCall call) {
+    var args = call.args();
+    if (args.size() != host.params().size()) {
+      throw new LanguageException(
+          "Function "
+              + call.name()
+              + " expects "
+              + host.params().size()
+              + " arguments but got "
+              + args.size());
+    }
+    meter.chargeAllocations(args.size() + 1);
+    var values = new Values.Value[args.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = evaluate(args.get(i));
+    }
+    // 値のない式 (else のない if など) の null も渡せるよう List.of は使わない
+    return Collections.unmodifiableList(Arrays.asList(values));
+  }
+
+  // 止まりうる関数は, プールのスレッドで呼ばれたらプールに代わりのスレッドを用意させてから呼ぶ
+  private static Values.Value callHost(HostFunction function, List<Values.Value> args) {
+    if (!(function instanceof HostFunction.Blocking)) {
+      return function.call(args);
+    }
+    var blocker = new HostBlocker(function, args);
+    try {
+      ForkJoinPool.managedBlock(blocker);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LanguageException("Interrupted while calling a host function");
+    }
+    return blocker.result;
+  }
+
+  private static final class HostBlocker implements ForkJoinPool.ManagedBlocker {
+    private final HostFunction function;
+    private final List<Values.Value> args;
+    private Values.Value result;
+    private boolean done;
+
+    HostBlocker(HostFunction function, List<Values.Value> args) {
+      this.function = function;
+      this.args = args;
+    }
+
+    @Override
+    public boolean block() {
+      result = function.call(args);
+      done = true;
+      return true;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      return done;
+    }
+  }
+
+  /**
+   * 呼び出しを始めて {@link Values.Task} を返す. 引数はこのスレッドで評価し, 呼び出しだけを spawner で行う. spawner がなければその場で呼び出し,
+   * 例外は join したときに投げる.
+   */
+  private Values.Task spawn(Ast.LinkedCall call) {
+    var host = host(call);
+    Callable<Values.Value> task;
+    if (host != null) {
+      var args = hostArgs(host, call);
+      task = () -> callHost(host.function(), args);
+    } else {
+      var function = lookup(call);
+      var callee = calleeFrame(function, call);
+      var context = spawner == null ? this : new Interpreter(this, Meter.unlimited());
+      task = () -> context.invoke(function, callee);
+    }
+    if (spawner != null) {
+      return new Values.Task(spawner.submit(task));
+    }
+    try {
+      return new Values.Task(CompletableFuture.completedFuture(task.call()));
+    } catch (Exception e) {
+      return new Values.Task(CompletableFuture.failedFuture(e));
+    }
+  }
+
+  private void forgetPurity() {
+    generation++;
+    purity.clear();
+    parallelArrays.clear();
+    if (unboxed != null) {
+      unboxed.clear();
+    }
+  }
+
+  private Resolver.ResolvedFunction lookup(Ast.LinkedCall call) {
+    var function = call.target().function();
+    if (function == null) {
+      // 呼び出そうとした定義がない
+      throw new RuntimeException("Function " + call.name() + " is not found");
+    }
+    // 引数の数は解決時に確かめてあるが, update で定義が差し替わったときのためにもう一度見る
+    var arity = function.definition().args().size();
+    if (call.args().size() != arity) {
+      throw new LanguageException(
+          "Function "
+              + call.name()
+              + " expects "
+              + arity
+              + " arguments but got "
+              + call.args().size());
+    }
+    // ラベル付きの実引数は解決したときの引数の順に並んでいるので, 差し替えで引数の順が変わっていれば渡せない
+    if (call.labels() != null && !call.labels().equals(function.definition().args())) {
+      throw new LanguageException(
+          "Parameters of function "
+              + call.name()
+              + " changed from "
+              + call.labels()
+              + " to "
+              + function.definition().args()
+              + " after the labelled call was linked");
+    }
+    return function;
+  }
+
+  // 引数は呼び出し元のフレームで評価し, 新しいフレームの先頭から詰める
+  private Frame calleeFrame(Resolver.ResolvedFunction function, Ast.LinkedCall call) {
+    var args = call.args();
+    meter.chargeAllocations(function.frameSize() + 1);
+    var callee = new Frame(function.frameSize(), globals);
+    for (int i = 0; i < args.size(); i++) {
+      callee.slots[i] = evaluate(args.get(i));
+    }
+    return callee;
+  }
+
+  /**
+   * 関数本体を評価する. 末尾位置の呼び出しは {@link #evaluateTail} が tailFunction に積むだけなので, ここでループして Java のスタックを伸ばさない.
+   */
+  private Values.Value invoke(Resolver.ResolvedFunction function, Frame callee) {
+    if (memo == null || !memoizable(function)) {
+      return invokeBody(function, callee, unboxed != null);
+    }
+    var key =
+        new MemoCache.Key(
+            function,
+            generation,
+            Arrays.copyOf(callee.slots, function.definition().args().size()));
+    var value = memo.get(key);
+    if (value == null) {
+      // 値を包まない評価は中の呼び出しを覚えられないので使わない
+      value = invokeBody(function, callee, false);
+      if (value != null) {
+        memo.put(key, value);
       }
-      var actualParams = functionCall.args(); // Expression のList
-      var formalParams = definition.args(); // String の List
-      var body = definition.body();
+    }
+    return value;
+  }
 
-      var values = actualParams.stream().map(this::interpret).toList(); // Expression なのでそれぞれ評価
-      var backup = variableEnvironment; // 現在の環境を保持
-      variableEnvironment = newEnvironment(Optional.of(variableEnvironment)); // 新たな環境を作って現在の環境をつなぐ
+  private boolean memoizable(Resolver.ResolvedFunction function) {
+    var summary = purity.ofFunction(function);
+    return summary.pure() && summary.globalReads().isEmpty();
+  }
 
-      int i = 0;
-      for (var formalParamName : formalParams) {
-        variableEnvironment.bindings().put(formalParamName, values.get(i));
-        i++;
+  private Values.Value invokeBody(
+      Resolver.ResolvedFunction function, Frame callee, boolean specialize) {
+    var backup = frame; // 現在のフレームを保持
+    meter.enterCall();
+    try {
+      while (true) {
+        if (specialize) {
+          // 型が推論と合わなければ普通に評価する
+          var specialized = unboxed(function);
+          var value = specialized == null ? null : specialized.call(callee.slots);
+          if (value != null) {
+            return value;
+          }
+        }
+        meter.chargeFuel(function.size());
+        frame = callee;
+        var value = evaluateTail(function.definition().body());
+        if (tailFunction == null) {
+          return value;
+        }
+        function = tailFunction;
+        callee = tailFrame;
+        tailFunction = null;
+        tailFrame = null;
       }
+    } catch (StackOverflowError e) {
+      if (meter.isUnlimited()) {
+        throw e;
+      }
+      // 深さの上限より先にスタックが溢れた. 予算を使い切ったときと同じく扱う
+      throw new LanguageException("Stack overflow");
+    } finally {
+      meter.exitCall();
+      frame = backup; // 関数評価が終わったので戻す
+    }
+  }
 
-      var result = interpret(body);
-      variableEnvironment = backup; // 関数評価が終わったので戻す
-      return result;
+  // 初めて呼ばれた関数なら, 呼び出し先とまとめて型を推論して変換する
+  private Unboxed.Function unboxed(Resolver.ResolvedFunction function) {
+    if (!unboxed.containsKey(function)) {
+      Unboxed.compile(TypeInference.analyze(function)).forEach(unboxed::putIfAbsent);
+      unboxed.putIfAbsent(function, null);
+    }
+    return unboxed.get(function);
+  }
 
+  /**
+   * 関数本体の末尾位置にある式を評価する. 末尾位置 (Block の最後の要素, If の各節) の関数呼び出しは呼び出さずに tailFunction と tailFrame に積んで戻る.
+   */
+  private Values.Value evaluateTail(Ast.Expression expression) {
+    if (expression instanceof Ast.LinkedCall call && host(call) == null) {
+      var function = lookup(call);
+      tailFrame = calleeFrame(function, call);
+      tailFunction = function;
+      return null;
+    } else if (expression instanceof Ast.IfExpression e) {
+      if (evaluate(e.condition()).asBool().value()) {
+        return evaluateTail(e.thenClause());
+      }
+      var elseClauseOpt = e.elseClause();
+      return elseClauseOpt.isPresent() ? evaluateTail(elseClauseOpt.get()) : null;
+    } else if (expression instanceof Ast.BlockExpression e) {
+      var elements = e.elements();
+      if (elements.isEmpty()) {
+        return null;
+      }
+      for (int i = 0; i < elements.size() - 1; i++) {
+        evaluate(elements.get(i));
+      }
+      return evaluateTail(elements.get(elements.size() - 1));
     } else {
-      throw new RuntimeException("not reach here");
+      return evaluate(expression);
     }
   }
 
+  @Override
   public Values.Value callMain(Ast.Program program) {
-    var topLevels = program.definitions();
+    load(program);
+    return callMain();
+  }
 
+  /**
+   * プログラムを読み込む. 関数を登録し, グローバル変数を定義順に評価する.
+   *
+   * @param program 対象のプログラム
+   */
+  public void load(Ast.Program program) {
+    // 関数本体の解決にはグローバル変数の一覧が必要なので先に宣言だけしておく
+    resolver().declareGlobals(program);
+    globals.ensureCapacity(resolver.globalCount());
+    link(program.definitions());
+  }
+
+  /**
+   * 読み込み済みのプログラムの一部を差し替える. removed の定義を取り除いてから added の定義を登録・評価する. 差し替えた関数を呼んでいる関数や,
+   * 差し替えたグローバル変数を使って初期化された他のグローバル変数は読み直さない.
+   *
+   * @param removed 取り除く定義
+   * @param added 追加する定義
+   */
+  public void update(List<Ast.TopLevel> removed, List<Ast.TopLevel> added) {
+    resolver(); // 共有イメージの文脈では関数表を書き換えない
+    forgetPurity();
+    for (var topLevel : removed) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        functionEnvironment.remove(definition.name());
+        resolver.target(definition.name()).function = null;
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition definition) {
+        // slot は解決済みの関数が指しているので残し, 値だけ消す. 参照すれば "not initialized" になる
+        globals.slots[resolver.declareGlobal(definition.name())] = null;
+      }
+    }
+    resolver.declareGlobals(new Ast.Program(added));
+    globals.ensureCapacity(resolver.globalCount());
+    link(added);
+  }
+
+  private void link(List<Ast.TopLevel> topLevels) {
+    var pending = new PendingGlobals();
     for (var topLevel : topLevels) {
       if (topLevel instanceof Ast.FunctionDefinition definition) {
-        functionEnvironment.put(definition.name(), definition);
+        if (functionEnvironment.containsKey(definition.name())) {
+          // 呼び出し先が変わるので, 待たせている初期化式を先に評価し, 解析結果も捨てる
+          flush(pending);
+          forgetPurity();
+        }
+        var function = resolver.resolveFunction(definition);
+        functionEnvironment.put(definition.name(), function);
+        resolver.target(definition.name()).function = function;
       } else if (topLevel instanceof Ast.GlobalVariableDefinition globalVariableDefinition) {
-        variableEnvironment
-            .bindings()
-            .put(globalVariableDefinition.name(), interpret(globalVariableDefinition.expression()));
+        var slot = resolver.declareGlobal(globalVariableDefinition.name());
+        if (pool == null) {
+          // 初期化式がグローバル変数を増やすと slots が差し替わるので, 評価してから代入する
+          var value = interpret(globalVariableDefinition.expression());
+          globals.slots[slot] = value;
+          continue;
+        }
+        var resolved = resolver.resolveTopLevel(globalVariableDefinition.expression());
+        globals.ensureCapacity(resolver.globalCount());
+        var summary = purity.ofExpression(resolved, 0);
+        if (summary.globalReads().intersects(pending.slots)) {
+          // 待たせている変数を読むので, その値が決まってから
+          flush(pending);
+        }
+        if (summary.pure() && summary.calls()) {
+          pending.add(slot, resolved);
+        } else {
+          flush(pending);
+          var value = evaluate(resolved);
+          globals.slots[slot] = value;
+        }
       }
     }
+    flush(pending);
+  }
+
+  /** 並列に評価するために待たせているグローバル変数の初期化式 */
+  private static final class PendingGlobals {
+    final BitSet slots = new BitSet();
+    final List<Integer> order = new ArrayList<>();
+    final List<Ast.Expression> expressions = new ArrayList<>();
+
+    void add(int slot, Ast.Expression expression) {
+      slots.set(slot);
+      order.add(slot);
+      expressions.add(expression);
+    }
+  }
+
+  // 待たせている初期化式を評価して, 定義順に代入する. 例外が起きたらそれより前の変数だけ代入されている
+  private void flush(PendingGlobals pending) {
+    if (pending.expressions.size() == 1) {
+      globals.slots[pending.order.get(0)] = evaluate(pending.expressions.get(0));
+    } else if (!pending.expressions.isEmpty()) {
+      var forked = fork(pending.expressions);
+      for (int i = 0; i < pending.order.size(); i++) {
+        globals.slots[pending.order.get(i)] = join(forked, i);
+      }
+    }
+    pending.slots.clear();
+    pending.order.clear();
+    pending.expressions.clear();
+  }
+
+  /**
+   * 読み込み済みの関数を呼ぶ. {@link BatchEvaluator} が同じ関数を何度も呼ぶのに使う.
+   *
+   * @param name 関数名
+   * @param args 引数の値. 配列はフレームに写すので使い回してよい
+   * @return 評価結果
+   */
+  Values.Value call(String name, Values.Value[] args) {
+    var function = functionEnvironment.get(name);
+    if (function == null) {
+      throw new LanguageException("Function " + name + " is not found");
+    }
+    meter.chargeAllocations(function.frameSize() + 1);
+    var callee = new Frame(function.frameSize(), globals);
+    System.arraycopy(args, 0, callee.slots, 0, args.length);
+    return invoke(function, callee);
+  }
 
+  /**
+   * 読み込み済みのプログラムの main を呼ぶ.
+   *
+   * @return main の評価結果
+   */
+  public Values.Value callMain() {
     var mainFunction = functionEnvironment.get("main");
     if (mainFunction != null) {
-      return interpret(mainFunction.body());
+      meter.chargeAllocations(mainFunction.frameSize() + 1);
+      return invoke(mainFunction, new Frame(mainFunction.frameSize(), globals));
     } else {
       throw new LanguageException("This program doesn't have main() function");
     }
@@ -0,0 +1,110 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 純粋な関数の呼び出し結果を, 関数と引数の値の組で覚えておく表. {@link Interpreter#memoize} で使う. 大きさに上限があり,
+ * 超えたら最も長く使われていない組から捨てる (LRU). 複数のスレッドから使ってよい.
+ */
+public final class MemoCache {
+
+  /**
+   * 使われ方
+   *
+   * @param hits 覚えていた結果を返した回数
+   * @param misses 覚えていなかった回数
+   * @param evictions 上限を超えて捨てた数
+   * @param size 今覚えている数
+   */
+  public static final record Stats(long hits, long misses, long evictions, int size) {}
+
+  /**
+   * 関数と引数の値の組. 関数は同一性で比べるので, 定義し直した関数の結果とは混ざらない. 呼び出し先を定義し直した関数は同じままなので,
+   * 関数表を書き換えるたびに進む世代も比べる
+   */
+  static final class Key {
+    private final Resolver.ResolvedFunction function;
+    private final long generation;
+    private final Values.Value[] args;
+    private final int hash;
+
+    Key(Resolver.ResolvedFunction function, long generation, Values.Value[] args) {
+      this.function = function;
+      this.generation = generation;
+      this.args = args;
+      this.hash =
+          31 * (31 * System.identityHashCode(function) + Long.hashCode(generation))
+              + Arrays.hashCode(args);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key other
+          && function == other.function
+          && generation == other.generation
+          && Arrays.equals(args, other.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final int maxEntries;
+  private final Map<Key, Values.Value> entries;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxEntries 覚えておく組の数の上限
+   */
+  public MemoCache(int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    this.maxEntries = maxEntries;
+    // アクセス順に並べ, 先頭が最も長く使われていない組になる
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, Values.Value> eldest) {
+            if (size() > MemoCache.this.maxEntries) {
+              evictions++;
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  synchronized Values.Value get(Key key) {
+    var value = entries.get(key);
+    if (value != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return value;
+  }
+
+  synchronized void put(Key key, Values.Value value) {
+    entries.put(key, value);
+  }
+
+  public synchronized Stats stats() {
+    return new Stats(hits, misses, evictions, entries.size());
+  }
+
+  /** 覚えた結果と使われ方を捨てる */
+  public synchronized void clear() {
+    entries.clear();
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+}
@@ -0,0 +1,140 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 実行の予算. 評価するノードの数 (fuel) と割り当てる値の数 (allocations) の上限を持ち, 使い切ったら {@link LanguageException} を投げる.
+ *
+ * <p>ノードを評価するたびには数えない. 関数を呼ぶときにその本体の大きさを, while が一周するときにその条件と本体の大きさをまとめて差し引く. ループと呼び出しを
+ * 伴わない評価は本体の大きさで抑えられるので, この 2 か所で数えれば止まらないスクリプトも必ず止まる. 値の割り当ては呼び出しのフレームと配列リテラルで数える.
+ *
+ * <p>ツリーを辿るインタプリタは呼び出しごとに Java のスタックを使うので, 同時に実行中の呼び出しの数にも上限を設ける. 末尾呼び出しは数えない. 上限に届く前にスレッドの
+ * スタックが溢れたときも {@link LanguageException} にする.
+ */
+public final class Meter {
+
+  /** 上限のある予算で, 同時に実行中の呼び出しの数の上限. システムプロパティ {@code toys.meter.maxCallDepth} で変えられる */
+  public static final int DEFAULT_MAX_CALL_DEPTH =
+      Integer.getInteger("toys.meter.maxCallDepth", 1000);
+
+  private long fuel;
+
+  private long allocations;
+
+  private final int maxCallDepth;
+
+  private int callDepth;
+
+  private final boolean unlimited;
+
+  // 立ったら次に数えるときに止める. null なら止めない
+  private final AtomicBoolean cancelled;
+
+  // while ごとの一周の大きさ. ループに入るたびに数え直さない
+  private final Map<Ast.Expression, Integer> loopCosts = new IdentityHashMap<>();
+
+  /**
+   * @param fuel 評価してよいノードの数
+   * @param allocations 割り当ててよい値の数
+   */
+  public Meter(long fuel, long allocations) {
+    this(fuel, allocations, DEFAULT_MAX_CALL_DEPTH);
+  }
+
+  /**
+   * @param fuel 評価してよいノードの数
+   * @param allocations 割り当ててよい値の数
+   * @param maxCallDepth 同時に実行中の関数呼び出しの数の上限
+   */
+  public Meter(long fuel, long allocations, int maxCallDepth) {
+    this(fuel, allocations, maxCallDepth, false, null);
+  }
+
+  private Meter(
+      long fuel, long allocations, int maxCallDepth, boolean unlimited, AtomicBoolean cancelled) {
+    this.fuel = fuel;
+    this.allocations = allocations;
+    this.maxCallDepth = maxCallDepth;
+    this.unlimited = unlimited;
+    this.cancelled = cancelled;
+  }
+
+  /** 上限のない予算. 数えはするが使い切ることはない. 呼び出しの深さはスレッドのスタックが許すまで */
+  public static Meter unlimited() {
+    return new Meter(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, true, null);
+  }
+
+  /**
+   * 上限のない予算で, cancelled が立ったら {@link CancellationException} で止まるもの. 呼び出しと while の一周ごとに見るので,
+   * 止まらない式も止まる.
+   *
+   * @param cancelled 止めるときに立てる
+   */
+  static Meter cancellable(AtomicBoolean cancelled) {
+    return new Meter(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, true, cancelled);
+  }
+
+  /** {@link #unlimited()} で作った予算か. 上限がなければ評価を別のスレッドに分けても数え漏れを気にしなくてよい */
+  boolean isUnlimited() {
+    return unlimited;
+  }
+
+  public long remainingFuel() {
+    return fuel;
+  }
+
+  public long remainingAllocations() {
+    return allocations;
+  }
+
+  void chargeFuel(long units) {
+    fuel -= units;
+    if (fuel < 0) {
+      throw new LanguageException("Fuel budget exhausted");
+    }
+    if (cancelled != null && cancelled.get()) {
+      throw new CancellationException();
+    }
+  }
+
+  void enterCall() {
+    if (callDepth == maxCallDepth) {
+      throw new LanguageException("Call depth exceeds " + maxCallDepth);
+    }
+    callDepth++;
+  }
+
+  void exitCall() {
+    callDepth--;
+  }
+
+  void chargeAllocations(long count) {
+    allocations -= count;
+    if (allocations < 0) {
+      throw new LanguageException("Allocation budget exhausted");
+    }
+  }
+
+  int loopCost(Ast.WhileExpression loop) {
+    var cost = loopCosts.get(loop);
+    if (cost == null) {
+      cost = Resolver.size(loop.condition()) + Resolver.size(loop.body());
+      loopCosts.put(loop, cost);
+    }
+    return cost;
+  }
+
+  // for-in の一周は要素の代入と本体
+  int loopCost(Ast.ResolvedForIn loop) {
+    var cost = loopCosts.get(loop);
+    if (cost == null) {
+      cost = 1 + Resolver.size(loop.body());
+      loopCosts.put(loop, cost);
+    }
+    return cost;
+  }
+}
@@ -0,0 +1,477 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+/**
+ * {@link ClosureCompiler} が生成する実行用ノード. {@link Interpreter} の instanceof による分岐を, ノードごとに特化したサブクラスの
+ * execute に置き換える. 各ノードの呼び出し先は生成時に決まっているので JIT から見て単相になりやすい.
+ */
+public class Nodes {
+
+  public abstract static class Node {
+    abstract Values.Value execute(Frame frame);
+  }
+
+  //// リテラル
+  static final class Constant extends Node {
+    private final Values.Value value;
+
+    Constant(Values.Value value) {
+      this.value = value;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return value;
+    }
+  }
+
+  //// 変数
+  // depth が 0 と 1 のものは専用ノードにしてフレームを辿るループを省く
+  static final class ReadLocal extends Node {
+    private final String name;
+    private final int slot;
+
+    ReadLocal(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return checkInitialized(name, frame.slots[slot]);
+    }
+  }
+
+  static final class ReadOuter extends Node {
+    private final String name;
+    private final int slot;
+
+    ReadOuter(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return checkInitialized(name, frame.next.slots[slot]);
+    }
+  }
+
+  static final class ReadVariable extends Node {
+    private final String name;
+    private final int depth;
+    private final int slot;
+
+    ReadVariable(String name, int depth, int slot) {
+      this.name = name;
+      this.depth = depth;
+      this.slot = slot;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return checkInitialized(name, frame.get(depth, slot));
+    }
+  }
+
+  private static Values.Value checkInitialized(String name, Values.Value value) {
+    if (value == null) {
+      throw new LanguageException("Variable " + name + " is not initialized");
+    }
+    return value;
+  }
+
+  static final class WriteLocal extends Node {
+    private final int slot;
+    private final Node expression;
+
+    WriteLocal(int slot, Node expression) {
+      this.slot = slot;
+      this.expression = expression;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var value = expression.execute(frame);
+      frame.slots[slot] = value;
+      return value;
+    }
+  }
+
+  static final class WriteVariable extends Node {
+    private final int depth;
+    private final int slot;
+    private final Node expression;
+
+    WriteVariable(int depth, int slot, Node expression) {
+      this.depth = depth;
+      this.slot = slot;
+      this.expression = expression;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var value = expression.execute(frame);
+      frame.set(depth, slot, value);
+      return value;
+    }
+  }
+
+  //// 二項演算. 演算子ごとにクラスを分けて switch を実行時に持ち込まない
+  abstract static class Binary extends Node {
+    final Node lhs;
+    final Node rhs;
+
+    Binary(Node lhs, Node rhs) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+    }
+  }
+
+  static final class Add extends Binary {
+    Add(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() + rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class Subtract extends Binary {
+    Subtract(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() - rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class Multiply extends Binary {
+    Multiply(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() * rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class Divide extends Binary {
+    Divide(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() / rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class LessThan extends Binary {
+    LessThan(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() < rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class LessOrEqual extends Binary {
+    LessOrEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() <= rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class GreaterThan extends Binary {
+    GreaterThan(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() > rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class GreaterOrEqual extends Binary {
+    GreaterOrEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() >= rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class EqualEqual extends Binary {
+    EqualEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() == rhs.execute(frame).asInt().value());
+    }
+  }
+
+  static final class NotEqual extends Binary {
+    NotEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return Values.of(lhs.execute(frame).asInt().value() != rhs.execute(frame).asInt().value());
+    }
+  }
+
+  //// 制御構文
+  static final class If extends Node {
+    private final Node condition;
+    private final Node thenClause;
+    private final Node elseClause; // else がなければ null
+
+    If(Node condition, Node thenClause, Node elseClause) {
+      this.condition = condition;
+      this.thenClause = thenClause;
+      this.elseClause = elseClause;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      if (condition.execute(frame).asBool().value()) {
+        return thenClause.execute(frame);
+      } else if (elseClause != null) {
+        return elseClause.execute(frame);
+      } else {
+        return null;
+      }
+    }
+  }
+
+  static final class While extends Node {
+    private final Node condition;
+    private final Node body;
+
+    While(Node condition, Node body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      while (condition.execute(frame).asBool().value()) {
+        body.execute(frame);
+      }
+      return Values.TRUE;
+    }
+  }
+
+  static final class ForIn extends Node {
+    private final int depth;
+    private final int slot;
+    private final Node iterable;
+    private final Node body;
+
+    ForIn(int depth, int slot, Node iterable, Node body) {
+      this.depth = depth;
+      this.slot = slot;
+      this.iterable = iterable;
+      this.body = body;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var elements = Values.elements(iterable.execute(frame));
+      while (elements.hasNext()) {
+        frame.set(depth, slot, elements.next());
+        body.execute(frame);
+      }
+      return Values.TRUE;
+    }
+  }
+
+  static final class Range extends Node {
+    private final Node from;
+    private final Node to;
+
+    Range(Node from, Node to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      return new Values.Range(
+          from.execute(frame).asInt().value(), to.execute(frame).asInt().value());
+    }
+  }
+
+  /** 周回数を {@link Profiler} に数える While. 計測するときだけ使う */
+  static final class ProfiledWhile extends Node {
+    private final Node condition;
+    private final Node body;
+    private final Profiler.LoopCounter counter;
+
+    ProfiledWhile(Node condition, Node body, Profiler.LoopCounter counter) {
+      this.condition = condition;
+      this.body = body;
+      this.counter = counter;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var event = new Profiler.LoopEvent();
+      event.begin();
+      long iterations = 0;
+      try {
+        while (condition.execute(frame).asBool().value()) {
+          body.execute(frame);
+          iterations++;
+        }
+      } finally {
+        counter.iterations += iterations;
+        if (event.shouldCommit()) {
+          event.function = counter.function;
+          event.index = counter.index;
+          event.iterations = iterations;
+          event.commit();
+        }
+      }
+      return Values.TRUE;
+    }
+  }
+
+  /** 関数本体を包んで, 呼び出しを {@link Profiler} に記録する. 計測するときだけ使う */
+  static final class ProfiledBody extends Node {
+    private final Node body;
+    private final Profiler profiler;
+    private final Profiler.FunctionCounter counter;
+
+    ProfiledBody(Node body, Profiler profiler, Profiler.FunctionCounter counter) {
+      this.body = body;
+      this.profiler = profiler;
+      this.counter = counter;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var event = new Profiler.CallEvent();
+      event.begin();
+      profiler.enter(counter);
+      try {
+        return body.execute(frame);
+      } finally {
+        profiler.exit(counter);
+        if (event.shouldCommit()) {
+          event.function = counter.name;
+          event.commit();
+        }
+      }
+    }
+  }
+
+  static final class Block extends Node {
+    private final Node[] elements;
+
+    Block(Node[] elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      Values.Value value = null;
+      for (var element : elements) {
+        value = element.execute(frame);
+      }
+      return value;
+    }
+  }
+
+  static final class ArrayLiteral extends Node {
+    private final Node[] items;
+
+    ArrayLiteral(Node[] items) {
+      this.items = items;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      var builder = new Values.ArrayBuilder(items.length);
+      for (var item : items) {
+        builder.add(item.execute(frame));
+      }
+      return builder.build();
+    }
+  }
+
+  //// 関数呼び出し
+  /** コンパイル済みの関数. 全関数の枠を先に作ってから本体を埋めるので, 後方で定義された関数も呼べる */
+  static final class Function {
+    final String name;
+    final int arity;
+    int frameSize;
+    Node body;
+
+    Function(String name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    Values.Value invoke(Frame callee) {
+      if (body == null) {
+        // グローバル変数の初期化式から, まだ本体を変換していない関数を呼んだ
+        throw new RuntimeException("Function " + name + " is not found");
+      }
+      return body.execute(callee);
+    }
+  }
+
+  static final class Call extends Node {
+    private final String name;
+    private final Function function; // 見つからなければ null
+    private final Node[] args;
+
+    Call(String name, Function function, Node[] args) {
+      this.name = name;
+      this.function = function;
+      this.args = args;
+    }
+
+    @Override
+    Values.Value execute(Frame frame) {
+      // 本体がなければ, グローバル変数の初期化式から後で定義する関数を呼んだ
+      if (function == null || function.body == null) {
+        throw new RuntimeException("Function " + name + " is not found");
+      }
+      // フレームは「関数フレーム → グローバルフレーム」の 2 段なので, next がなければ自分がグローバル
+      var globals = frame.next == null ? frame : frame.next;
+      var callee = new Frame(function.frameSize, globals);
+      for (int i = 0; i < args.length; i++) {
+        callee.slots[i] = args[i].execute(frame);
+      }
+      return function.invoke(callee);
+    }
+  }
+
+  /** まだ評価方法が決まっていない構文. 実行されたときに初めてエラーにする */
+  static final class Unsupported extends Node {
+    @Override
+    Values.Value execute(Frame frame) {
+      throw new RuntimeException("not reach here");
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * 関数ごとの呼び出し回数と時間, while ごとの周回数を集める. {@link ClosureInterpreter#ClosureInterpreter(Profiler)} に渡すと,
+ * 変換時に関数本体と while を計測用のノードで包む. 渡さなければ計測用のノードは木に現れないので, 実行時の分岐も増えない.
+ *
+ * <p>集めた値は {@link #functions()}, {@link #loops()} で読めるほか, {@link #writeCollapsedStacks} でフレームグラフ用の
+ * collapsed stack 形式に書き出せる. JFR で記録中なら関数呼び出しと while の実行を {@code jp.classmethod.toys.FunctionCall},
+ * {@code jp.classmethod.toys.Loop} イベントとしても残す. 一つのスレッドから使うこと.
+ */
+public final class Profiler {
+
+  /**
+   * 関数の計測結果. 再帰している間の時間は二重に数えない
+   *
+   * @param inclusiveNanos 呼び出し先を含む時間
+   * @param exclusiveNanos 呼び出し先を除く時間
+   */
+  public static final record FunctionProfile(
+      String name, long calls, long inclusiveNanos, long exclusiveNanos) {}
+
+  /**
+   * while の計測結果
+   *
+   * @param function while を含む関数. グローバル変数の初期化式なら {@link #TOP_LEVEL}
+   * @param index 関数の中で何番目の while か (0 始まり, 出現順)
+   */
+  public static final record LoopProfile(String function, int index, long iterations) {}
+
+  /** 関数の外で評価した式の関数名 */
+  public static final String TOP_LEVEL = "<top-level>";
+
+  static final class FunctionCounter {
+    final String name;
+    long calls;
+    long inclusiveNanos;
+    long exclusiveNanos;
+    // 実行中の呼び出しの数. 0 に戻るときだけ inclusive に足す
+    int active;
+
+    FunctionCounter(String name) {
+      this.name = name;
+    }
+  }
+
+  static final class LoopCounter {
+    final String function;
+    final int index;
+    long iterations;
+
+    LoopCounter(String function, int index) {
+      this.function = function;
+      this.index = index;
+    }
+  }
+
+  @Name("jp.classmethod.toys.FunctionCall")
+  @Label("Toys Function Call")
+  @Category("Toys")
+  static final class CallEvent extends Event {
+    @Label("Function")
+    String function;
+  }
+
+  @Name("jp.classmethod.toys.Loop")
+  @Label("Toys Loop")
+  @Category("Toys")
+  static final class LoopEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Index")
+    int index;
+
+    @Label("Iterations")
+    long iterations;
+  }
+
+  // 呼び出し経路の木. collapsed stack の一行が根から一つの節までの経路になる
+  private static final class StackNode {
+    final String name;
+    final StackNode parent;
+    final Map<String, StackNode> children = new LinkedHashMap<>();
+    long selfNanos;
+
+    StackNode(String name, StackNode parent) {
+      this.name = name;
+      this.parent = parent;
+    }
+  }
+
+  private final Map<String, FunctionCounter> functions = new LinkedHashMap<>();
+  private final List<LoopCounter> loops = new ArrayList<>();
+
+  private final StackNode root = new StackNode(null, null);
+  private StackNode current = root;
+
+  //// 実行中の呼び出しごとの開始時刻と, そのうち呼び出し先で使った時間
+  private long[] starts = new long[64];
+  private long[] childNanos = new long[64];
+  private int depth;
+
+  FunctionCounter function(String name) {
+    return functions.computeIfAbsent(name, FunctionCounter::new);
+  }
+
+  LoopCounter loop(String function, int index) {
+    var counter = new LoopCounter(function, index);
+    loops.add(counter);
+    return counter;
+  }
+
+  void enter(FunctionCounter function) {
+    if (depth == starts.length) {
+      starts = Arrays.copyOf(starts, depth * 2);
+      childNanos = Arrays.copyOf(childNanos, depth * 2);
+    }
+    var child = current.children.get(function.name);
+    if (child == null) {
+      child = new StackNode(function.name, current);
+      current.children.put(function.name, child);
+    }
+    current = child;
+    function.active++;
+    childNanos[depth] = 0;
+    starts[depth++] = System.nanoTime();
+  }
+
+  void exit(FunctionCounter function) {
+    var elapsed = System.nanoTime() - starts[--depth];
+    var self = elapsed - childNanos[depth];
+    if (depth > 0) {
+      childNanos[depth - 1] += elapsed;
+    }
+    function.calls++;
+    function.exclusiveNanos += self;
+    if (--function.active == 0) {
+      function.inclusiveNanos += elapsed;
+    }
+    current.selfNanos += self;
+    current = current.parent;
+  }
+
+  /** 呼び出されたことのある関数の計測結果. 登録順 */
+  public List<FunctionProfile> functions() {
+    return functions.values().stream()
+        .filter(f -> f.calls > 0)
+        .map(f -> new FunctionProfile(f.name, f.calls, f.inclusiveNanos, f.exclusiveNanos))
+        .toList();
+  }
+
+  /** 変換したすべての while の計測結果. 変換した順 */
+  public List<LoopProfile> loops() {
+    return loops.stream().map(l -> new LoopProfile(l.function, l.index, l.iterations)).toList();
+  }
+
+  /**
+   * 呼び出し経路ごとの自身の時間 (ナノ秒). キーは {@code main;fib;fib} のように ; で繋いだ関数名
+   *
+   * @return 経路から時間への表
+   */
+  public Map<String, Long> collapsedStacks() {
+    var result = new LinkedHashMap<String, Long>();
+    collect(root, "", result);
+    return result;
+  }
+
+  private static void collect(StackNode node, String prefix, Map<String, Long> result) {
+    for (var child : node.children.values()) {
+      var path = prefix.isEmpty() ? child.name : prefix + ";" + child.name;
+      if (child.selfNanos > 0) {
+        result.put(path, child.selfNanos);
+      }
+      collect(child, path, result);
+    }
+  }
+
+  /**
+   * flamegraph.pl などが読む collapsed stack 形式 ({@code 経路 時間} を一行ずつ) で書き出す.
+   *
+   * @param out 書き出し先
+   */
+  public void writeCollapsedStacks(Writer out) throws IOException {
+    for (var entry : collapsedStacks().entrySet()) {
+      out.write(entry.getKey());
+      out.write(' ');
+      out.write(Long.toString(entry.getValue()));
+      out.write('\n');
+    }
+    out.flush();
+  }
+
+  public void writeCollapsedStacks(Path path) throws IOException {
+    try (var out = Files.newBufferedWriter(path)) {
+      writeCollapsedStacks(out);
+    }
+  }
+
+  /** 計測結果を捨てる. 変換済みの木はそのまま使える */
+  public void reset() {
+    for (var function : functions.values()) {
+      function.calls = 0;
+      function.inclusiveNanos = 0;
+      function.exclusiveNanos = 0;
+    }
+    for (var loop : loops) {
+      loop.iterations = 0;
+    }
+    root.children.clear();
+    current = root;
+    depth = 0;
+  }
+}
@@ -0,0 +1,77 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.Map;
+
+/**
+ * リンク済みのプログラム. 解決済みの関数表と, 評価し終えたグローバル変数の初期値を持つ.
+ *
+ * <p>作った後は変更しないので, 複数のスレッドから同時に {@link #callMain()} してよい. 実行ごとに {@link #newContext()} で文脈を作り,
+ * グローバル変数の配列だけを複製する. 関数表は全ての文脈で共有し, 実行中にロックは取らない.
+ */
+public final class ProgramImage {
+
+  private final Map<String, Resolver.ResolvedFunction> functions;
+
+  private final Values.Value[] globals;
+
+  ProgramImage(Map<String, Resolver.ResolvedFunction> functions, Values.Value[] globals) {
+    this.functions = Map.copyOf(functions);
+    this.globals = globals.clone();
+  }
+
+  /**
+   * 関数を解決し, グローバル変数を定義順に評価してイメージを作る.
+   *
+   * @param program 対象のプログラム
+   * @return {@link ProgramImage}
+   */
+  public static ProgramImage link(Ast.Program program) {
+    return link(program, Meter.unlimited());
+  }
+
+  /**
+   * 予算付きでグローバル変数の初期化式を評価してイメージを作る.
+   *
+   * @param program 対象のプログラム
+   * @param meter 初期化式の評価に使う予算
+   * @return {@link ProgramImage}
+   */
+  public static ProgramImage link(Ast.Program program, Meter meter) {
+    var interpreter = new Interpreter(meter);
+    interpreter.load(program);
+    return interpreter.snapshot();
+  }
+
+  Map<String, Resolver.ResolvedFunction> functions() {
+    return functions;
+  }
+
+  /** 文脈ごとのグローバル変数の初期値. main が代入しても他の文脈には見えない */
+  Values.Value[] copyGlobals() {
+    return globals.clone();
+  }
+
+  /**
+   * このイメージを実行する文脈を作る. 文脈は一つのスレッドで使う.
+   *
+   * @return {@link Interpreter}
+   */
+  public Interpreter newContext() {
+    return newContext(Meter.unlimited());
+  }
+
+  /**
+   * 予算付きでこのイメージを実行する文脈を作る.
+   *
+   * @param meter この実行の予算
+   * @return {@link Interpreter}
+   */
+  public Interpreter newContext(Meter meter) {
+    return new Interpreter(this, meter);
+  }
+
+  public Values.Value callMain() {
+    return newContext().callMain();
+  }
+}
@@ -0,0 +1,174 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 解決済みの式と関数について, 呼び出し元から見える副作用があるか, どのグローバル変数を読むかを調べる.
+ *
+ * <p>関数は自分のフレームにしか代入せず, 呼び出す関数もすべてそうなら純粋とする. 関数の中の while は止まらないかもしれないが,
+ * 評価の順番を入れ替えても結果は変わらないので純粋に含める. 呼び出し先は解析した時点の {@link CallTarget} で決めるので, 関数を差し替えたら {@link #clear()}
+ * で結果を捨てること.
+ */
+final class Purity {
+
+  /**
+   * 解析結果
+   *
+   * @param pure 評価しても呼び出し元のフレームにもグローバル変数にも書き込まない
+   * @param calls 関数を呼ぶ. 呼ばない式は小さいので並列に評価しても割に合わない
+   * @param globalReads 呼び出し先も含めて読むグローバル変数の slot
+   */
+  static final record Summary(boolean pure, boolean calls, BitSet globalReads) {}
+
+  private static final Summary IMPURE = new Summary(false, true, new BitSet());
+
+  private final Map<Resolver.ResolvedFunction, Summary> functions = new IdentityHashMap<>();
+
+  void clear() {
+    functions.clear();
+  }
+
+  /**
+   * 呼び出し元のフレームで評価する式を調べる. 代入を一つでも含めば純粋でない.
+   *
+   * @param expression 解決済みの式
+   * @param globalDepth 評価するフレームからグローバルフレームまでの段数. トップレベルなら 0, 関数の中なら 1
+   * @return 解析結果
+   */
+  Summary ofExpression(Ast.Expression expression, int globalDepth) {
+    var walker = new Walker(globalDepth, false);
+    walker.walk(expression);
+    if (!walker.pure) {
+      return IMPURE;
+    }
+    for (var callee : walker.callees) {
+      var summary = ofFunction(callee);
+      if (!summary.pure()) {
+        return IMPURE;
+      }
+      walker.globalReads.or(summary.globalReads());
+    }
+    return new Summary(true, !walker.callees.isEmpty(), walker.globalReads);
+  }
+
+  /**
+   * 関数を調べる. 呼び出し先を辿り, 届く関数の本体をすべて見る.
+   *
+   * @param function 解決済みの関数
+   * @return 解析結果
+   */
+  Summary ofFunction(Resolver.ResolvedFunction function) {
+    var summary = functions.get(function);
+    if (summary != null) {
+      return summary;
+    }
+    var globalReads = new BitSet();
+    var seen = new IdentityHashMap<Resolver.ResolvedFunction, Boolean>();
+    var queue = new ArrayDeque<Resolver.ResolvedFunction>();
+    seen.put(function, true);
+    queue.add(function);
+    summary = null;
+    while (!queue.isEmpty() && summary == null) {
+      var current = queue.poll();
+      var known = current == function ? null : functions.get(current);
+      if (known != null) {
+        // 解析済みの関数から先は辿らない
+        if (!known.pure()) {
+          summary = IMPURE;
+        } else {
+          globalReads.or(known.globalReads());
+        }
+        continue;
+      }
+      var walker = new Walker(1, true);
+      walker.walk(current.definition().body());
+      if (!walker.pure) {
+        summary = IMPURE;
+      }
+      globalReads.or(walker.globalReads);
+      for (var callee : walker.callees) {
+        if (seen.put(callee, true) == null) {
+          queue.add(callee);
+        }
+      }
+    }
+    if (summary == null) {
+      summary = new Summary(true, true, globalReads);
+    }
+    functions.put(function, summary);
+    return summary;
+  }
+
+  private static final class Walker {
+    private final int globalDepth;
+    // 関数本体なら自分のフレームへの代入は外から見えない
+    private final boolean ownFrame;
+    private final BitSet globalReads = new BitSet();
+    private final Set<Resolver.ResolvedFunction> callees =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean pure = true;
+
+    Walker(int globalDepth, boolean ownFrame) {
+      this.globalDepth = globalDepth;
+      this.ownFrame = ownFrame;
+    }
+
+    void walk(Ast.Expression expression) {
+      if (!pure) {
+        return;
+      }
+      if (expression instanceof Ast.BinaryExpression e) {
+        walk(e.lhs());
+        walk(e.rhs());
+      } else if (expression instanceof Ast.ResolvedIdentifier e) {
+        if (e.depth() == globalDepth) {
+          globalReads.set(e.slot());
+        }
+      } else if (expression instanceof Ast.ResolvedAssignment e) {
+        if (!ownFrame || e.depth() != 0) {
+          pure = false;
+        }
+        walk(e.expression());
+      } else if (expression instanceof Ast.ResolvedForIn e) {
+        if (!ownFrame || e.depth() != 0) {
+          pure = false;
+        }
+        walk(e.iterable());
+        walk(e.body());
+      } else if (expression instanceof Ast.RangeExpression e) {
+        walk(e.from());
+        walk(e.to());
+      } else if (expression instanceof Ast.IfExpression e) {
+        walk(e.condition());
+        walk(e.thenClause());
+        e.elseClause().ifPresent(this::walk);
+      } else if (expression instanceof Ast.WhileExpression e) {
+        walk(e.condition());
+        walk(e.body());
+      } else if (expression instanceof Ast.BlockExpression e) {
+        e.elements().forEach(this::walk);
+      } else if (expression instanceof Ast.ArrayLiteral e) {
+        e.items().forEach(this::walk);
+      } else if (expression instanceof Ast.LinkedCall e) {
+        var function = e.target().function();
+        if (function == null) {
+          // まだ定義されていない関数は何をするか分からない
+          pure = false;
+        } else {
+          callees.add(function);
+          e.args().forEach(this::walk);
+        }
+      } else if (!(expression instanceof Ast.IntegerLiteral)
+          && !(expression instanceof Ast.BoolLiteral)) {
+        // 解決前のノードなど, 知らない式は純粋とみなさない
+        pure = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+/**
+ * {@link RegisterMachine} の命令形式. 命令は int[] に「命令コード, オペランド...」と詰めて並べ, 長さは命令コードごとに決まっている. レジスタは関数の
+ * フレームの先頭からの添字で, 引数, ローカル変数, 一時値の順に並ぶ. 定数, 変数名, 呼び出し先は関数ごとの定数表に置き, 添字で指す.
+ *
+ * <p>よく現れる形には専用の命令 (superinstruction) を用意している. 比較して分岐する BR_*, 整数の定数と比較して分岐する BR_*I, 定数を足す ADDI (n -
+ * 1 を引数のレジスタに直接書く), while の条件を末尾に置いて比較と後方への分岐を一命令にしたループなど.
+ */
+final class RegisterCode {
+
+  private RegisterCode() {}
+
+  /**
+   * 変換済みの関数 (またはトップレベルの式)
+   *
+   * @param name 関数名. トップレベルの式なら {@link Profiler#TOP_LEVEL}
+   * @param arity 引数の数
+   * @param registers フレームに必要なレジスタの数
+   * @param code 命令列
+   * @param constants 定数表. 値, 変数名, {@link CallSite} が入る
+   */
+  static final record Chunk(
+      String name, int arity, int registers, int[] code, Object[] constants) {}
+
+  /** 呼び出し先の箱と, 最後に呼んだ関数の変換結果. 関数が差し替わっていなければ変換結果を引き直さない */
+  static final class CallSite {
+    final CallTarget target;
+    Resolver.ResolvedFunction function;
+    Chunk chunk;
+
+    CallSite(CallTarget target) {
+      this.target = target;
+    }
+
+    @Override
+    public String toString() {
+      return target.name();
+    }
+  }
+
+  //// 命令コード. コメントはオペランド. r はレジスタ, k は定数表の添字, i は即値, t は分岐先
+  static final int LOADK = 0; // r k
+  static final int LOADNIL = 1; // r
+  static final int MOVE = 2; // r r
+  static final int LOCAL = 3; // r k. ローカル変数が初期化済みか確かめる
+  static final int GETGLOBAL = 4; // r slot k
+  static final int SETGLOBAL = 5; // slot r
+  static final int ADD = 6; // r r r
+  static final int SUB = 7; // r r r
+  static final int MUL = 8; // r r r
+  static final int DIV = 9; // r r r
+  static final int ADDI = 10; // r r i
+  static final int LT = 11; // r r r
+  static final int LE = 12; // r r r
+  static final int GT = 13; // r r r
+  static final int GE = 14; // r r r
+  static final int EQ = 15; // r r r
+  static final int NE = 16; // r r r
+  static final int JUMP = 17; // t
+  static final int JUMP_IF_FALSE = 18; // r t
+  static final int JUMP_IF_TRUE = 19; // r t
+  // 比較が成り立てば分岐する
+  static final int BR_LT = 20; // r r t
+  static final int BR_LE = 21; // r r t
+  static final int BR_GT = 22; // r r t
+  static final int BR_GE = 23; // r r t
+  static final int BR_EQ = 24; // r r t
+  static final int BR_NE = 25; // r r t
+  static final int BR_LTI = 26; // r i t
+  static final int BR_LEI = 27; // r i t
+  static final int BR_GTI = 28; // r i t
+  static final int BR_GEI = 29; // r i t
+  static final int BR_EQI = 30; // r i t
+  static final int BR_NEI = 31; // r i t
+  static final int CALL = 32; // r k first count. 引数は first から count 個のレジスタに並べておく
+  static final int TAILCALL = 33; // k first count
+  static final int RETURN = 34; // r
+  static final int NEWARRAY = 35; // r first count
+  static final int RANGE = 36; // r r r
+  static final int ITER = 37; // r r. 値の要素を取り出すイテレータをレジスタに結び付ける
+  static final int FORNEXT = 38; // r r t. 次の要素を二つ目のレジスタに入れる. なければ分岐する
+
+  private static final String[] NAMES = {
+    "LOADK",
+    "LOADNIL",
+    "MOVE",
+    "LOCAL",
+    "GETGLOBAL",
+    "SETGLOBAL",
+    "ADD",
+    "SUB",
+    "MUL",
+    "DIV",
+    "ADDI",
+    "LT",
+    "LE",
+    "GT",
+    "GE",
+    "EQ",
+    "NE",
+    "JUMP",
+    "JUMP_IF_FALSE",
+    "JUMP_IF_TRUE",
+    "BR_LT",
+    "BR_LE",
+    "BR_GT",
+    "BR_GE",
+    "BR_EQ",
+    "BR_NE",
+    "BR_LTI",
+    "BR_LEI",
+    "BR_GTI",
+    "BR_GEI",
+    "BR_EQI",
+    "BR_NEI",
+    "CALL",
+    "TAILCALL",
+    "RETURN",
+    "NEWARRAY",
+    "RANGE",
+    "ITER",
+    "FORNEXT"
+  };
+
+  // 命令コードを含む命令の長さ
+  private static final int[] LENGTHS = {
+    3, 2, 3, 3, 4, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 2, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4,
+    5, 4, 2, 4, 4, 3, 4
+  };
+
+  static int length(int opcode) {
+    return LENGTHS[opcode];
+  }
+
+  /**
+   * 命令列を一行一命令の文字列にする. テストとデバッグ用
+   *
+   * @param chunk 変換済みの関数
+   * @return 「位置 命令名 オペランド...」の行
+   */
+  static String disassemble(Chunk chunk) {
+    var builder = new StringBuilder();
+    var code = chunk.code();
+    for (int pc = 0; pc < code.length; pc += LENGTHS[code[pc]]) {
+      builder.append(pc).append(' ').append(NAMES[code[pc]]);
+      for (int i = 1; i < LENGTHS[code[pc]]; i++) {
+        builder.append(' ').append(code[pc + i]);
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+}
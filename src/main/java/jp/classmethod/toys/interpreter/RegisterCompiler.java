@@ -0,0 +1,374 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.RegisterCode.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 解決済みの関数とトップレベルの式を {@link RegisterCode} の命令列に変換する. 木を一度なぞるだけなので, JVM のクラスを生成するより安い.
+ *
+ * <p>式は「結果を入れるレジスタ」を受け取って変換する. ローカル変数への代入は変数のレジスタに直接書き, 引数は呼び出し先のフレームになるレジスタに直接計算する. 評価順と値は {@link
+ * Interpreter} と同じ.
+ */
+final class RegisterCompiler {
+
+  private int[] code = new int[64];
+  private int size;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+  // グローバル変数を指す depth. 関数の中なら 1, トップレベルなら 0
+  private final int globalDepth;
+  // 引数の数. これより前のレジスタは必ず初期化されている
+  private final int arity;
+  // 次に使える一時レジスタ
+  private int top;
+  private int maxTop;
+
+  private RegisterCompiler(int globalDepth, int arity, int locals) {
+    this.globalDepth = globalDepth;
+    this.arity = arity;
+    this.top = locals;
+    this.maxTop = locals;
+  }
+
+  /**
+   * 関数を変換する
+   *
+   * @param function 解決済みの関数
+   * @return 変換結果
+   */
+  static Chunk compileFunction(Resolver.ResolvedFunction function) {
+    var definition = function.definition();
+    var compiler = new RegisterCompiler(1, definition.args().size(), function.frameSize());
+    var result = compiler.allocate();
+    compiler.expression(definition.body(), result, true);
+    compiler.emit(RETURN, result);
+    return compiler.chunk(definition.name());
+  }
+
+  /**
+   * トップレベルの式 (グローバル変数の初期化式など) を変換する
+   *
+   * @param expression 解決済みの式
+   * @return 変換結果
+   */
+  static Chunk compileTopLevel(Ast.Expression expression) {
+    var compiler = new RegisterCompiler(0, 0, 0);
+    var result = compiler.allocate();
+    compiler.expression(expression, result, false);
+    compiler.emit(RETURN, result);
+    return compiler.chunk(Profiler.TOP_LEVEL);
+  }
+
+  private Chunk chunk(String name) {
+    return new Chunk(name, arity, maxTop, Arrays.copyOf(code, size), constants.toArray());
+  }
+
+  //// 出力
+
+  private void emit(int... words) {
+    if (size + words.length > code.length) {
+      code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+    }
+    System.arraycopy(words, 0, code, size, words.length);
+    size += words.length;
+  }
+
+  // 分岐先を後から埋める命令を出し, 分岐先を書く位置を返す
+  private int emitJump(int... words) {
+    emit(words);
+    return size - 1;
+  }
+
+  private void patch(int position) {
+    code[position] = size;
+  }
+
+  private int constant(Object value) {
+    return constantIndexes.computeIfAbsent(
+        value,
+        v -> {
+          constants.add(v);
+          return constants.size() - 1;
+        });
+  }
+
+  private int callSite(CallTarget target) {
+    // 呼び出しごとに箱を分け, 呼んだ関数の変換結果をそれぞれに覚えさせる
+    constants.add(new CallSite(target));
+    return constants.size() - 1;
+  }
+
+  private int allocate() {
+    var register = top++;
+    maxTop = Math.max(maxTop, top);
+    return register;
+  }
+
+  //// 式
+
+  private boolean isLocal(Ast.ResolvedIdentifier e) {
+    return e.depth() != globalDepth;
+  }
+
+  /**
+   * 式の値を dst に入れる命令を出す. dst に書くのは最後の命令だけなので, dst が式の中で読む変数のレジスタでもよい.
+   *
+   * @param tail 関数本体の末尾位置. 呼び出しを TAILCALL にする
+   */
+  private void expression(Ast.Expression expression, int dst, boolean tail) {
+    var saved = top;
+    if (expression instanceof Ast.IntegerLiteral e) {
+      emit(LOADK, dst, constant(Values.of(e.value())));
+    } else if (expression instanceof Ast.BoolLiteral e) {
+      emit(LOADK, dst, constant(Values.of(e.param())));
+    } else if (expression instanceof Ast.ResolvedIdentifier e) {
+      if (!isLocal(e)) {
+        emit(GETGLOBAL, dst, e.slot(), constant(e.name()));
+      } else {
+        if (e.slot() >= arity) {
+          emit(LOCAL, e.slot(), constant(e.name()));
+        }
+        if (dst != e.slot()) {
+          emit(MOVE, dst, e.slot());
+        }
+      }
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      if (e.depth() == globalDepth) {
+        expression(e.expression(), dst, false);
+        emit(SETGLOBAL, e.slot(), dst);
+      } else {
+        expression(e.expression(), e.slot(), false);
+        if (dst != e.slot()) {
+          emit(MOVE, dst, e.slot());
+        }
+      }
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      binary(e, dst);
+    } else if (expression instanceof Ast.IfExpression e) {
+      var elseJump = branch(e.condition(), false);
+      expression(e.thenClause(), dst, tail);
+      var endJump = emitJump(JUMP, 0);
+      patch(elseJump);
+      if (e.elseClause().isPresent()) {
+        expression(e.elseClause().get(), dst, tail);
+      } else {
+        emit(LOADNIL, dst);
+      }
+      patch(endJump);
+    } else if (expression instanceof Ast.WhileExpression e) {
+      // 条件を末尾に置き, 比較と後方への分岐を一命令にする
+      var conditionJump = emitJump(JUMP, 0);
+      var body = size;
+      expression(e.body(), allocate(), false);
+      top = saved;
+      patch(conditionJump);
+      var loop = branch(e.condition(), true);
+      code[loop] = body;
+      emit(LOADK, dst, constant(Values.TRUE));
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      var iterator = allocate();
+      expression(e.iterable(), iterator, false);
+      emit(ITER, iterator, iterator);
+      var global = e.depth() == globalDepth;
+      var element = global ? allocate() : e.slot();
+      var loop = size;
+      var exitJump = emitJump(FORNEXT, iterator, element, 0);
+      if (global) {
+        emit(SETGLOBAL, e.slot(), element);
+      }
+      expression(e.body(), allocate(), false);
+      emit(JUMP, loop);
+      patch(exitJump);
+      emit(LOADK, dst, constant(Values.TRUE));
+    } else if (expression instanceof Ast.RangeExpression e) {
+      var from = operand(e.from(), e.to());
+      var to = operand(e.to(), null);
+      emit(RANGE, dst, from, to);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      var elements = e.elements();
+      if (elements.isEmpty()) {
+        emit(LOADNIL, dst);
+      }
+      for (int i = 0; i < elements.size(); i++) {
+        if (i == elements.size() - 1) {
+          expression(elements.get(i), dst, tail);
+        } else {
+          expression(elements.get(i), allocate(), false);
+          top = saved;
+        }
+      }
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      var first = consecutive(e.items());
+      emit(NEWARRAY, dst, first, e.items().size());
+    } else if (expression instanceof Ast.LinkedCall e) {
+      var first = consecutive(e.args());
+      var site = callSite(e.target());
+      if (tail) {
+        emit(TAILCALL, site, first, e.args().size());
+      } else {
+        emit(CALL, dst, site, first, e.args().size());
+      }
+    } else if (expression instanceof Ast.Spawn) {
+      throw new LanguageException("spawn is supported only by the tree-walking interpreter");
+    } else {
+      throw new RuntimeException("not reach here");
+    }
+    top = saved;
+  }
+
+  // 式の値を並んだ一時レジスタに順に入れ, 先頭のレジスタを返す. 呼び出しならそこが呼び出し先のフレームの先頭になる
+  private int consecutive(List<Ast.Expression> expressions) {
+    var first = top;
+    for (var expression : expressions) {
+      allocate();
+    }
+    for (int i = 0; i < expressions.size(); i++) {
+      var saved = top;
+      expression(expressions.get(i), first + i, false);
+      top = saved;
+    }
+    return first;
+  }
+
+  /**
+   * 式の値が入ったレジスタを返す. 引数と初期化済みのローカル変数はそのレジスタを返し, コピーしない.
+   *
+   * @param later この後に評価する式. 変数を書き換えるならその前の値をコピーしておく. なければ null
+   */
+  private int operand(Ast.Expression expression, Ast.Expression later) {
+    if (expression instanceof Ast.ResolvedIdentifier e
+        && isLocal(e)
+        && (later == null || !writes(later, e.slot()))) {
+      if (e.slot() >= arity) {
+        emit(LOCAL, e.slot(), constant(e.name()));
+      }
+      return e.slot();
+    }
+    var register = allocate();
+    expression(expression, register, false);
+    return register;
+  }
+
+  private void binary(Ast.BinaryExpression e, int dst) {
+    var operator = e.operator();
+    if ((operator == Operator.ADD || operator == Operator.SUBTRACT)
+        && e.rhs() instanceof Ast.IntegerLiteral literal) {
+      var lhs = operand(e.lhs(), null);
+      var value = operator == Operator.ADD ? literal.value() : -literal.value();
+      emit(ADDI, dst, lhs, value);
+      return;
+    }
+    if (operator == Operator.ADD && e.lhs() instanceof Ast.IntegerLiteral literal) {
+      var rhs = operand(e.rhs(), null);
+      emit(ADDI, dst, rhs, literal.value());
+      return;
+    }
+    var lhs = operand(e.lhs(), e.rhs());
+    var rhs = operand(e.rhs(), null);
+    var opcode =
+        switch (operator) {
+          case ADD -> ADD;
+          case SUBTRACT -> SUB;
+          case MULTIPLY -> MUL;
+          case DIVIDE -> DIV;
+          case LESS_THAN -> LT;
+          case LESS_OR_EQUAL -> LE;
+          case GREATER_THAN -> GT;
+          case GREATER_OR_EQUAL -> GE;
+          case EQUAL_EQUAL -> EQ;
+          case NOT_EQUAL -> NE;
+        };
+    emit(opcode, dst, lhs, rhs);
+  }
+
+  /**
+   * 条件が when のとき分岐する命令を出す. 比較なら比較と分岐を一命令にする.
+   *
+   * @return 分岐先を書く位置
+   */
+  private int branch(Ast.Expression condition, boolean when) {
+    var saved = top;
+    try {
+      if (condition instanceof Ast.BinaryExpression e && isComparison(e.operator())) {
+        var operator = when ? e.operator() : negate(e.operator());
+        if (e.rhs() instanceof Ast.IntegerLiteral literal) {
+          var lhs = operand(e.lhs(), null);
+          return emitJump(compareAndBranch(operator) + (BR_LTI - BR_LT), lhs, literal.value(), 0);
+        }
+        var lhs = operand(e.lhs(), e.rhs());
+        var rhs = operand(e.rhs(), null);
+        return emitJump(compareAndBranch(operator), lhs, rhs, 0);
+      }
+      var register = operand(condition, null);
+      return emitJump(when ? JUMP_IF_TRUE : JUMP_IF_FALSE, register, 0);
+    } finally {
+      top = saved;
+    }
+  }
+
+  private static boolean isComparison(Operator operator) {
+    return switch (operator) {
+      case ADD, SUBTRACT, MULTIPLY, DIVIDE -> false;
+      default -> true;
+    };
+  }
+
+  private static Operator negate(Operator operator) {
+    return switch (operator) {
+      case LESS_THAN -> Operator.GREATER_OR_EQUAL;
+      case LESS_OR_EQUAL -> Operator.GREATER_THAN;
+      case GREATER_THAN -> Operator.LESS_OR_EQUAL;
+      case GREATER_OR_EQUAL -> Operator.LESS_THAN;
+      case EQUAL_EQUAL -> Operator.NOT_EQUAL;
+      case NOT_EQUAL -> Operator.EQUAL_EQUAL;
+      default -> throw new IllegalArgumentException(operator.name());
+    };
+  }
+
+  private static int compareAndBranch(Operator operator) {
+    return switch (operator) {
+      case LESS_THAN -> BR_LT;
+      case LESS_OR_EQUAL -> BR_LE;
+      case GREATER_THAN -> BR_GT;
+      case GREATER_OR_EQUAL -> BR_GE;
+      case EQUAL_EQUAL -> BR_EQ;
+      case NOT_EQUAL -> BR_NE;
+      default -> throw new IllegalArgumentException(operator.name());
+    };
+  }
+
+  // 式がローカル変数 slot に書き込むか. 呼び出し先は呼び出し元のフレームに書き込めない
+  private static boolean writes(Ast.Expression expression, int slot) {
+    if (expression instanceof Ast.ResolvedAssignment e) {
+      return (e.depth() == 0 && e.slot() == slot) || writes(e.expression(), slot);
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      return (e.depth() == 0 && e.slot() == slot)
+          || writes(e.iterable(), slot)
+          || writes(e.body(), slot);
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return writes(e.lhs(), slot) || writes(e.rhs(), slot);
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return writes(e.from(), slot) || writes(e.to(), slot);
+    } else if (expression instanceof Ast.IfExpression e) {
+      return writes(e.condition(), slot)
+          || writes(e.thenClause(), slot)
+          || (e.elseClause().isPresent() && writes(e.elseClause().get(), slot));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return writes(e.condition(), slot) || writes(e.body(), slot);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return e.elements().stream().anyMatch(x -> writes(x, slot));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return e.items().stream().anyMatch(x -> writes(x, slot));
+    } else if (expression instanceof Ast.LinkedCall e) {
+      return e.args().stream().anyMatch(x -> writes(x, slot));
+    }
+    return false;
+  }
+}
@@ -0,0 +1,375 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.RegisterCode.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * {@link RegisterCompiler} が出した命令列を一つのループで実行するエンジン.
+ *
+ * <p>全てのフレームのレジスタを一本の配列に並べ, 呼び出し先のフレームは呼び出し元が引数を並べた位置から始める. そのため引数をコピーせずに呼び出せる. 関数は初めて呼ばれたときに変換する.
+ * 呼び出しの深さは {@link StackInterpreter} と同じく maxCallDepth までで, 末尾呼び出しは深さを消費しない. 変数の解決と評価順は {@link
+ * Interpreter} と同じ.
+ */
+public class RegisterMachine implements Engine {
+
+  private final Resolver resolver;
+
+  private final Map<String, Resolver.ResolvedFunction> functionEnvironment;
+
+  // 変換済みの関数
+  private final Map<Resolver.ResolvedFunction, Chunk> chunks = new IdentityHashMap<>();
+
+  private final int maxCallDepth;
+
+  private Values.Value[] globals = new Values.Value[0];
+
+  //// 全てのフレームのレジスタ. iterators は for-in が使うレジスタに結び付けたイテレータ
+  private Values.Value[] registers = new Values.Value[256];
+  private Iterator<?>[] iterators = new Iterator<?>[256];
+
+  //// 呼び出し元の継続. 戻ったら chunk の pc から, base のフレームで続け, 結果をレジスタ dst に入れる
+  private Chunk[] returnChunks = new Chunk[64];
+  private int[] returnPcs = new int[64];
+  private int[] returnBases = new int[64];
+  private int[] returnDsts = new int[64];
+
+  public RegisterMachine() {
+    this(StackInterpreter.DEFAULT_MAX_CALL_DEPTH);
+  }
+
+  /**
+   * @param maxCallDepth 同時に実行中の関数呼び出しの数の上限
+   */
+  public RegisterMachine(int maxCallDepth) {
+    this.resolver = new Resolver();
+    this.functionEnvironment = new HashMap<>();
+    this.maxCallDepth = maxCallDepth;
+  }
+
+  public void reset() {
+    resolver.reset();
+    globals = new Values.Value[0];
+    functionEnvironment.clear();
+    chunks.clear();
+  }
+
+  /**
+   * トップレベルの式を評価する.
+   *
+   * @param expression 評価する式
+   * @return 評価結果
+   */
+  public Values.Value interpret(Ast.Expression expression) {
+    var resolved = resolver.resolveTopLevel(expression);
+    ensureGlobals();
+    return run(RegisterCompiler.compileTopLevel(resolved));
+  }
+
+  @Override
+  public Values.Value callMain(Ast.Program program) {
+    resolver.declareGlobals(program);
+    ensureGlobals();
+
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        var function = resolver.resolveFunction(definition);
+        functionEnvironment.put(definition.name(), function);
+        resolver.target(definition.name()).function = function;
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition globalVariableDefinition) {
+        var slot = resolver.declareGlobal(globalVariableDefinition.name());
+        // 初期化式がグローバル変数を増やすと配列が差し替わるので, 評価してから代入する
+        var value = interpret(globalVariableDefinition.expression());
+        globals[slot] = value;
+      }
+    }
+
+    var mainFunction = functionEnvironment.get("main");
+    if (mainFunction != null) {
+      return run(chunk(mainFunction));
+    } else {
+      throw new LanguageException("This program doesn't have main() function");
+    }
+  }
+
+  /**
+   * 関数の変換結果. 変換していなければ変換する
+   *
+   * @param function 解決済みの関数
+   * @return 変換結果
+   */
+  Chunk chunk(Resolver.ResolvedFunction function) {
+    var chunk = chunks.get(function);
+    if (chunk == null) {
+      chunk = RegisterCompiler.compileFunction(function);
+      chunks.put(function, chunk);
+    }
+    return chunk;
+  }
+
+  private void ensureGlobals() {
+    if (globals.length < resolver.globalCount()) {
+      globals = Arrays.copyOf(globals, resolver.globalCount());
+    }
+  }
+
+  private void ensureRegisters(int size) {
+    if (registers.length < size) {
+      var length = Math.max(registers.length * 2, size);
+      registers = Arrays.copyOf(registers, length);
+      iterators = Arrays.copyOf(iterators, length);
+    }
+  }
+
+  // 呼び出す関数を決め, 引数の数を確かめる
+  private Chunk callee(CallSite site, int count) {
+    var function = site.target.function();
+    if (function == null) {
+      throw new RuntimeException("Function " + site.target.name() + " is not found");
+    }
+    if (function != site.function) {
+      site.chunk = chunk(function);
+      site.function = function;
+    }
+    var chunk = site.chunk;
+    if (chunk.arity() != count) {
+      throw new LanguageException(
+          "Function "
+              + site.target.name()
+              + " expects "
+              + chunk.arity()
+              + " arguments but got "
+              + count);
+    }
+    return chunk;
+  }
+
+  /** chunk を新しいフレームで実行する. 引数のない関数かトップレベルの式 */
+  private Values.Value run(Chunk entry) {
+    ensureRegisters(entry.registers());
+    Arrays.fill(registers, 0, entry.registers(), null);
+    var chunk = entry;
+    var code = chunk.code();
+    var constants = chunk.constants();
+    var r = registers;
+    var pc = 0;
+    var base = 0;
+    var depth = 0;
+    while (true) {
+      switch (code[pc]) {
+        case LOADK -> {
+          r[base + code[pc + 1]] = (Values.Value) constants[code[pc + 2]];
+          pc += 3;
+        }
+        case LOADNIL -> {
+          r[base + code[pc + 1]] = null;
+          pc += 2;
+        }
+        case MOVE -> {
+          r[base + code[pc + 1]] = r[base + code[pc + 2]];
+          pc += 3;
+        }
+        case LOCAL -> {
+          if (r[base + code[pc + 1]] == null) {
+            throw new LanguageException(
+                "Variable " + constants[code[pc + 2]] + " is not initialized");
+          }
+          pc += 3;
+        }
+        case GETGLOBAL -> {
+          var value = globals[code[pc + 2]];
+          if (value == null) {
+            throw new LanguageException(
+                "Variable " + constants[code[pc + 3]] + " is not initialized");
+          }
+          r[base + code[pc + 1]] = value;
+          pc += 4;
+        }
+        case SETGLOBAL -> {
+          globals[code[pc + 1]] = r[base + code[pc + 2]];
+          pc += 3;
+        }
+        case ADD -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) + integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case SUB -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) - integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case MUL -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) * integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case DIV -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) / integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case ADDI -> {
+          r[base + code[pc + 1]] = Values.of(integer(r, base, code[pc + 2]) + code[pc + 3]);
+          pc += 4;
+        }
+        case LT -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) < integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case LE -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) <= integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case GT -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) > integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case GE -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) >= integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case EQ -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) == integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case NE -> {
+          r[base + code[pc + 1]] =
+              Values.of(integer(r, base, code[pc + 2]) != integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case JUMP -> pc = code[pc + 1];
+        case JUMP_IF_FALSE -> pc = r[base + code[pc + 1]].asBool().value() ? pc + 3 : code[pc + 2];
+        case JUMP_IF_TRUE -> pc = r[base + code[pc + 1]].asBool().value() ? code[pc + 2] : pc + 3;
+        case BR_LT -> pc =
+            integer(r, base, code[pc + 1]) < integer(r, base, code[pc + 2]) ? code[pc + 3] : pc + 4;
+        case BR_LE -> pc =
+            integer(r, base, code[pc + 1]) <= integer(r, base, code[pc + 2])
+                ? code[pc + 3]
+                : pc + 4;
+        case BR_GT -> pc =
+            integer(r, base, code[pc + 1]) > integer(r, base, code[pc + 2]) ? code[pc + 3] : pc + 4;
+        case BR_GE -> pc =
+            integer(r, base, code[pc + 1]) >= integer(r, base, code[pc + 2])
+                ? code[pc + 3]
+                : pc + 4;
+        case BR_EQ -> pc =
+            integer(r, base, code[pc + 1]) == integer(r, base, code[pc + 2])
+                ? code[pc + 3]
+                : pc + 4;
+        case BR_NE -> pc =
+            integer(r, base, code[pc + 1]) != integer(r, base, code[pc + 2])
+                ? code[pc + 3]
+                : pc + 4;
+        case BR_LTI -> pc = integer(r, base, code[pc + 1]) < code[pc + 2] ? code[pc + 3] : pc + 4;
+        case BR_LEI -> pc = integer(r, base, code[pc + 1]) <= code[pc + 2] ? code[pc + 3] : pc + 4;
+        case BR_GTI -> pc = integer(r, base, code[pc + 1]) > code[pc + 2] ? code[pc + 3] : pc + 4;
+        case BR_GEI -> pc = integer(r, base, code[pc + 1]) >= code[pc + 2] ? code[pc + 3] : pc + 4;
+        case BR_EQI -> pc = integer(r, base, code[pc + 1]) == code[pc + 2] ? code[pc + 3] : pc + 4;
+        case BR_NEI -> pc = integer(r, base, code[pc + 1]) != code[pc + 2] ? code[pc + 3] : pc + 4;
+        case CALL -> {
+          var callee = callee((CallSite) constants[code[pc + 2]], code[pc + 4]);
+          if (depth == maxCallDepth) {
+            throw new LanguageException("Call depth exceeds " + maxCallDepth);
+          }
+          if (depth == returnPcs.length) {
+            growReturnStack();
+          }
+          returnChunks[depth] = chunk;
+          returnPcs[depth] = pc + 5;
+          returnBases[depth] = base;
+          returnDsts[depth] = base + code[pc + 1];
+          depth++;
+          // 呼び出し先のフレームは引数を並べたレジスタから始まる
+          base += code[pc + 3];
+          ensureRegisters(base + callee.registers());
+          r = registers;
+          Arrays.fill(r, base + callee.arity(), base + callee.registers(), null);
+          chunk = callee;
+          code = chunk.code();
+          constants = chunk.constants();
+          pc = 0;
+        }
+        case TAILCALL -> {
+          var count = code[pc + 3];
+          var callee = callee((CallSite) constants[code[pc + 1]], count);
+          // 引数をフレームの先頭に移して, 今のフレームを使い回す
+          System.arraycopy(r, base + code[pc + 2], r, base, count);
+          ensureRegisters(base + callee.registers());
+          r = registers;
+          Arrays.fill(r, base + count, base + callee.registers(), null);
+          chunk = callee;
+          code = chunk.code();
+          constants = chunk.constants();
+          pc = 0;
+        }
+        case RETURN -> {
+          var value = r[base + code[pc + 1]];
+          if (depth == 0) {
+            return value;
+          }
+          depth--;
+          chunk = returnChunks[depth];
+          code = chunk.code();
+          constants = chunk.constants();
+          pc = returnPcs[depth];
+          base = returnBases[depth];
+          r[returnDsts[depth]] = value;
+          returnChunks[depth] = null;
+        }
+        case NEWARRAY -> {
+          var first = base + code[pc + 2];
+          var count = code[pc + 3];
+          var builder = new Values.ArrayBuilder(count);
+          for (int i = first; i < first + count; i++) {
+            builder.add(r[i]);
+          }
+          r[base + code[pc + 1]] = builder.build();
+          pc += 4;
+        }
+        case RANGE -> {
+          r[base + code[pc + 1]] =
+              new Values.Range(integer(r, base, code[pc + 2]), integer(r, base, code[pc + 3]));
+          pc += 4;
+        }
+        case ITER -> {
+          iterators[base + code[pc + 1]] = Values.elements(r[base + code[pc + 2]]);
+          pc += 3;
+        }
+        case FORNEXT -> {
+          var elements = iterators[base + code[pc + 1]];
+          if (elements.hasNext()) {
+            r[base + code[pc + 2]] = (Values.Value) elements.next();
+            pc += 4;
+          } else {
+            iterators[base + code[pc + 1]] = null;
+            pc = code[pc + 3];
+          }
+        }
+        default -> throw new IllegalStateException("Unknown opcode " + code[pc]);
+      }
+    }
+  }
+
+  private static int integer(Values.Value[] r, int base, int register) {
+    return r[base + register].asInt().value();
+  }
+
+  private void growReturnStack() {
+    var size = returnPcs.length * 2;
+    returnChunks = Arrays.copyOf(returnChunks, size);
+    returnPcs = Arrays.copyOf(returnPcs, size);
+    returnBases = Arrays.copyOf(returnBases, size);
+    returnDsts = Arrays.copyOf(returnDsts, size);
+  }
+}
@@ -0,0 +1,334 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 実行前に変数参照を (depth, slot) の番地へ解決する静的パス.
+ *
+ * <p>スコープは「関数フレーム」と「グローバルフレーム」の 2 段. グローバル変数と main の中で代入される変数はグローバルフレームに, 関数の引数と関数内で代入される
+ * (グローバルでない) 変数はその関数のフレームに割り当てる. 解決できない変数を参照していたら {@link LanguageException} を投げる.
+ */
+public class Resolver {
+
+  /** 解決済みの関数. frameSize は呼び出し時に確保するフレームの大きさ, size は本体のノード数 */
+  public static final record ResolvedFunction(
+      Ast.FunctionDefinition definition, int frameSize, int size) {}
+
+  /** 呼び出しを別のスレッドで始める組み込みの構文 {@code spawn(f(...))} の名前 */
+  public static final String SPAWN = "spawn";
+
+  private final Scope globals = new Scope(null);
+
+  // 関数名から引数名の一覧. 呼び出しの引数の数とラベルを解決時に確かめる
+  private final Map<String, List<String>> signatures = new HashMap<>();
+
+  private final Map<String, CallTarget> targets = new HashMap<>();
+
+  public void reset() {
+    globals.slots.clear();
+    signatures.clear();
+    targets.clear();
+  }
+
+  /**
+   * 名前に結び付いた呼び出し先の箱を返す. 関数を登録するエンジンは {@link CallTarget#function} に解決済みの関数を入れる.
+   *
+   * @param name 関数名
+   * @return {@link CallTarget}
+   */
+  public CallTarget target(String name) {
+    return targets.computeIfAbsent(name, CallTarget::new);
+  }
+
+  /** 現在のグローバル変数の数. グローバルフレームはこの大きさが必要 */
+  public int globalCount() {
+    return globals.slots.size();
+  }
+
+  /** slot 順に並べたグローバル変数の名前 */
+  public List<String> globalNames() {
+    var names = new String[globals.slots.size()];
+    globals.slots.forEach((name, slot) -> names[slot] = name);
+    return List.of(names);
+  }
+
+  /**
+   * プログラム全体を見てグローバル変数と関数の引数を宣言する. グローバル変数定義に加えて main の中で代入される変数もグローバル扱い.
+   *
+   * @param program 対象のプログラム
+   */
+  public void declareGlobals(Ast.Program program) {
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.GlobalVariableDefinition definition) {
+        globals.declare(definition.name());
+      } else if (topLevel instanceof Ast.FunctionDefinition definition) {
+        signatures.put(definition.name(), definition.args());
+        if (definition.name().equals("main")) {
+          for (var name : assignedNames(definition.body())) {
+            globals.declare(name);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * 本体を持たない関数 (ホスト関数) の引数名を宣言する. 呼び出しの引数の数とラベルを解決時に確かめられるようになる.
+   *
+   * @param name 関数名
+   * @param params 引数名
+   */
+  public void declareFunction(String name, List<String> params) {
+    signatures.put(name, List.copyOf(params));
+  }
+
+  /** グローバル変数の slot を返す. 未宣言なら宣言する */
+  public int declareGlobal(String name) {
+    return globals.declare(name);
+  }
+
+  /**
+   * トップレベル (グローバルフレーム上) で評価する式を解決する. 式の中で代入される変数はグローバル変数になる.
+   *
+   * @param expression 対象の式
+   * @return 解決済みの式
+   */
+  public Ast.Expression resolveTopLevel(Ast.Expression expression) {
+    for (var name : assignedNames(expression)) {
+      globals.declare(name);
+    }
+    return resolve(expression, globals);
+  }
+
+  /**
+   * 関数定義を解決する. 引数が先頭の slot に並び, その後ろに関数内で代入されるローカル変数が続く.
+   *
+   * @param definition 関数定義
+   * @return {@link ResolvedFunction}
+   */
+  public ResolvedFunction resolveFunction(Ast.FunctionDefinition definition) {
+    signatures.put(definition.name(), definition.args());
+    var scope = new Scope(globals);
+    for (var arg : definition.args()) {
+      scope.declare(arg);
+    }
+    for (var name : assignedNames(definition.body())) {
+      if (scope.lookup(name) == null) {
+        scope.declare(name);
+      }
+    }
+    var body = resolve(definition.body(), scope);
+    return new ResolvedFunction(
+        new Ast.FunctionDefinition(definition.name(), definition.args(), body),
+        scope.slots.size(),
+        size(body));
+  }
+
+  private Ast.Expression resolve(Ast.Expression expression, Scope scope) {
+    if (expression instanceof Ast.Identifier e) {
+      var address = scope.lookup(e.name());
+      if (address == null) {
+        throw new LanguageException("Variable " + e.name() + " is not defined");
+      }
+      return new Ast.ResolvedIdentifier(e.name(), address[0], address[1]);
+    } else if (expression instanceof Ast.Assignment e) {
+      // assignedNames で事前に宣言済みなので必ず見つかる
+      var address = scope.lookup(e.name());
+      return new Ast.ResolvedAssignment(
+          e.name(), address[0], address[1], resolve(e.expression(), scope));
+    } else if (expression instanceof Ast.ForInExpression e) {
+      // ループ変数も代入される変数として宣言済み
+      var address = scope.lookup(e.name());
+      return new Ast.ResolvedForIn(
+          e.name(), address[0], address[1], resolve(e.iterable(), scope), resolve(e.body(), scope));
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return new Ast.RangeExpression(resolve(e.from(), scope), resolve(e.to(), scope));
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return new Ast.BinaryExpression(
+          e.operator(), resolve(e.lhs(), scope), resolve(e.rhs(), scope));
+    } else if (expression instanceof Ast.IfExpression e) {
+      return new Ast.IfExpression(
+          resolve(e.condition(), scope),
+          resolve(e.thenClause(), scope),
+          e.elseClause().map(c -> resolve(c, scope)));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return new Ast.WhileExpression(resolve(e.condition(), scope), resolve(e.body(), scope));
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return new Ast.BlockExpression(e.elements().stream().map(x -> resolve(x, scope)).toList());
+    } else if (expression instanceof Ast.FunctionCall e
+        && e.name().equals(SPAWN)
+        && !signatures.containsKey(SPAWN)) {
+      // 同じ名前の関数が定義されていなければ spawn(f(...)) は組み込みの構文
+      if (e.args().size() != 1
+          || !(e.args().get(0) instanceof Ast.FunctionCall
+              || e.args().get(0) instanceof Ast.LabelledCall)) {
+        throw new LanguageException("spawn expects a function call");
+      }
+      return new Ast.Spawn((Ast.LinkedCall) resolve(e.args().get(0), scope));
+    } else if (expression instanceof Ast.FunctionCall e) {
+      var params = signatures.get(e.name());
+      // 未定義の関数は後から定義されうるので, 呼び出したときにエラーにする
+      if (params != null && params.size() != e.args().size()) {
+        throw new LanguageException(
+            "Function "
+                + e.name()
+                + " expects "
+                + params.size()
+                + " arguments but got "
+                + e.args().size());
+      }
+      return new Ast.LinkedCall(
+          e.name(), target(e.name()), e.args().stream().map(x -> resolve(x, scope)).toList());
+    } else if (expression instanceof Ast.LabelledCall e) {
+      return new Ast.LinkedCall(
+          e.name(), target(e.name()), resolveLabelled(e, scope), signatures.get(e.name()));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return new Ast.ArrayLiteral(e.items().stream().map(x -> resolve(x, scope)).toList());
+    } else {
+      // リテラルと解決済みのノードはそのまま
+      return expression;
+    }
+  }
+
+  /** ラベル付きの実引数を呼び出し先の引数の順に並べ替えて解決する. 実引数は並べ替えた順に評価される */
+  private List<Ast.Expression> resolveLabelled(Ast.LabelledCall call, Scope scope) {
+    var params = signatures.get(call.name());
+    if (params == null) {
+      throw new LanguageException("Function " + call.name() + " is not found");
+    }
+    var args = new Ast.Expression[params.size()];
+    for (var labelled : call.args()) {
+      var index = params.indexOf(labelled.name());
+      if (index < 0) {
+        throw new LanguageException(
+            "Function " + call.name() + " has no parameter " + labelled.name());
+      }
+      if (args[index] != null) {
+        throw new LanguageException(
+            "Parameter " + labelled.name() + " of " + call.name() + " is given twice");
+      }
+      args[index] = resolve(labelled.parameter(), scope);
+    }
+    for (int i = 0; i < args.length; i++) {
+      if (args[i] == null) {
+        throw new LanguageException(
+            "Parameter " + params.get(i) + " of " + call.name() + " is missing");
+      }
+    }
+    return List.of(args);
+  }
+
+  /** 式のノード数 */
+  static int size(Ast.Expression expression) {
+    if (expression instanceof Ast.BinaryExpression e) {
+      return 1 + size(e.lhs()) + size(e.rhs());
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      return 1 + size(e.expression());
+    } else if (expression instanceof Ast.Assignment e) {
+      return 1 + size(e.expression());
+    } else if (expression instanceof Ast.IfExpression e) {
+      return 1
+          + size(e.condition())
+          + size(e.thenClause())
+          + e.elseClause().map(Resolver::size).orElse(0);
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return 1 + size(e.condition()) + size(e.body());
+    } else if (expression instanceof Ast.ForInExpression e) {
+      return 1 + size(e.iterable()) + size(e.body());
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      return 1 + size(e.iterable()) + size(e.body());
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return 1 + size(e.from()) + size(e.to());
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return 1 + sizeOfAll(e.elements());
+    } else if (expression instanceof Ast.LinkedCall e) {
+      return 1 + sizeOfAll(e.args());
+    } else if (expression instanceof Ast.Spawn e) {
+      return 1 + size(e.call());
+    } else if (expression instanceof Ast.FunctionCall e) {
+      return 1 + sizeOfAll(e.args());
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return 1 + sizeOfAll(e.items());
+    } else {
+      return 1;
+    }
+  }
+
+  private static int sizeOfAll(List<Ast.Expression> expressions) {
+    var size = 0;
+    for (var expression : expressions) {
+      size += size(expression);
+    }
+    return size;
+  }
+
+  /** 式の中で代入される変数名を出現順に集める */
+  static Set<String> assignedNames(Ast.Expression expression) {
+    var names = new LinkedHashSet<String>();
+    collectAssignedNames(expression, names);
+    return names;
+  }
+
+  private static void collectAssignedNames(Ast.Expression expression, Set<String> names) {
+    if (expression instanceof Ast.Assignment e) {
+      names.add(e.name());
+      collectAssignedNames(e.expression(), names);
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      collectAssignedNames(e.lhs(), names);
+      collectAssignedNames(e.rhs(), names);
+    } else if (expression instanceof Ast.IfExpression e) {
+      collectAssignedNames(e.condition(), names);
+      collectAssignedNames(e.thenClause(), names);
+      e.elseClause().ifPresent(c -> collectAssignedNames(c, names));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      collectAssignedNames(e.condition(), names);
+      collectAssignedNames(e.body(), names);
+    } else if (expression instanceof Ast.ForInExpression e) {
+      names.add(e.name());
+      collectAssignedNames(e.iterable(), names);
+      collectAssignedNames(e.body(), names);
+    } else if (expression instanceof Ast.RangeExpression e) {
+      collectAssignedNames(e.from(), names);
+      collectAssignedNames(e.to(), names);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      e.elements().forEach(x -> collectAssignedNames(x, names));
+    } else if (expression instanceof Ast.FunctionCall e) {
+      e.args().forEach(x -> collectAssignedNames(x, names));
+    } else if (expression instanceof Ast.LabelledCall e) {
+      e.args().forEach(p -> collectAssignedNames(p.parameter(), names));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      e.items().forEach(x -> collectAssignedNames(x, names));
+    }
+  }
+
+  /** 名前から slot への対応表. parent を辿った段数が depth になる */
+  private static final class Scope {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Scope parent;
+
+    Scope(Scope parent) {
+      this.parent = parent;
+    }
+
+    int declare(String name) {
+      return slots.computeIfAbsent(name, __ -> slots.size());
+    }
+
+    int[] lookup(String name) {
+      int depth = 0;
+      for (var scope = this; scope != null; scope = scope.parent) {
+        var slot = scope.slots.get(name);
+        if (slot != null) {
+          return new int[] {depth, slot};
+        }
+        depth++;
+      }
+      return null;
+    }
+  }
+}
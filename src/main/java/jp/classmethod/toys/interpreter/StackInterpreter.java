@@ -0,0 +1,363 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Java のスタックを使わずに評価するエンジン. 継続 (次に何をするか) をヒープ上の配列に積み, 一つのループで取り出して処理する.
+ *
+ * <p>再帰の深さはスレッドのスタックの大きさではなく, 同時に実行中の関数呼び出しの数の上限 maxCallDepth で決まる. 上限を超えたら {@link
+ * LanguageException} を投げる. 末尾位置の呼び出しでは戻り先を積まないので, 末尾再帰は深さを消費しない. 変数の解決と評価順は {@link Interpreter}
+ * と同じ.
+ */
+public class StackInterpreter implements Engine {
+
+  /** {@link #StackInterpreter()} が使う呼び出しの深さの上限. システムプロパティ {@code toys.maxCallDepth} で変えられる */
+  public static final int DEFAULT_MAX_CALL_DEPTH = Integer.getInteger("toys.maxCallDepth", 1 << 20);
+
+  // 継続の state. 0 以上は式ごとの進み具合, RETURN は関数から戻ったら frame を戻す印
+  private static final int RETURN = -1;
+
+  private final Resolver resolver;
+
+  private final Map<String, Resolver.ResolvedFunction> functionEnvironment;
+
+  private final int maxCallDepth;
+
+  private Frame globals;
+
+  //// 継続のスタック. expressions[i] を states[i] の段階から続ける. RETURN のときは frames[i] に戻る
+  private Ast.Expression[] expressions = new Ast.Expression[64];
+  private int[] states = new int[64];
+  private Frame[] frames = new Frame[64];
+  // for-in の継続が取り出し途中の要素
+  private Iterator<?>[] iterators = new Iterator<?>[64];
+  private int controlTop;
+  // 実行中の run が使い始めた位置. これより下は呼び出し元の継続
+  private int controlBase;
+
+  //// 値のスタック
+  private Values.Value[] values = new Values.Value[64];
+  private int valueTop;
+
+  private int callDepth;
+
+  public StackInterpreter() {
+    this(DEFAULT_MAX_CALL_DEPTH);
+  }
+
+  /**
+   * @param maxCallDepth 同時に実行中の関数呼び出しの数の上限
+   */
+  public StackInterpreter(int maxCallDepth) {
+    this.resolver = new Resolver();
+    this.functionEnvironment = new HashMap<>();
+    this.maxCallDepth = maxCallDepth;
+    globals = new Frame(0, null);
+  }
+
+  public void reset() {
+    resolver.reset();
+    globals = new Frame(0, null);
+    functionEnvironment.clear();
+  }
+
+  /**
+   * トップレベルの式を評価する.
+   *
+   * @param expression 評価する式
+   * @return 評価結果
+   */
+  public Values.Value interpret(Ast.Expression expression) {
+    var resolved = resolver.resolveTopLevel(expression);
+    globals.ensureCapacity(resolver.globalCount());
+    return run(resolved, globals);
+  }
+
+  @Override
+  public Values.Value callMain(Ast.Program program) {
+    resolver.declareGlobals(program);
+    globals.ensureCapacity(resolver.globalCount());
+
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        var function = resolver.resolveFunction(definition);
+        functionEnvironment.put(definition.name(), function);
+        resolver.target(definition.name()).function = function;
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition globalVariableDefinition) {
+        var slot = resolver.declareGlobal(globalVariableDefinition.name());
+        // 初期化式がグローバル変数を増やすと slots が差し替わるので, 評価してから代入する
+        var value = interpret(globalVariableDefinition.expression());
+        globals.slots[slot] = value;
+      }
+    }
+
+    var mainFunction = functionEnvironment.get("main");
+    if (mainFunction != null) {
+      return run(mainFunction.definition().body(), new Frame(mainFunction.frameSize(), globals));
+    } else {
+      throw new LanguageException("This program doesn't have main() function");
+    }
+  }
+
+  //// スタック操作
+  private void push(Ast.Expression expression, int state) {
+    if (controlTop == expressions.length) {
+      var size = controlTop * 2;
+      expressions = Arrays.copyOf(expressions, size);
+      states = Arrays.copyOf(states, size);
+      frames = Arrays.copyOf(frames, size);
+      iterators = Arrays.copyOf(iterators, size);
+    }
+    expressions[controlTop] = expression;
+    states[controlTop] = state;
+    controlTop++;
+  }
+
+  private void pushValue(Values.Value value) {
+    if (valueTop == values.length) {
+      values = Arrays.copyOf(values, valueTop * 2);
+    }
+    values[valueTop++] = value;
+  }
+
+  private Values.Value popValue() {
+    var value = values[--valueTop];
+    values[valueTop] = null;
+    return value;
+  }
+
+  /**
+   * 式をスタックが空になるまで評価する.
+   *
+   * @param expression 解決済みの式
+   * @param start 評価を始めるフレーム
+   * @return 評価結果
+   */
+  private Values.Value run(Ast.Expression expression, Frame start) {
+    var base = controlTop;
+    var previousBase = controlBase;
+    controlBase = base;
+    var valueBase = valueTop;
+    var depthBase = callDepth;
+    var frame = start;
+    try {
+      push(expression, 0);
+      while (controlTop > base) {
+        controlTop--;
+        var e = expressions[controlTop];
+        var state = states[controlTop];
+        expressions[controlTop] = null;
+        if (state == RETURN) {
+          frame = frames[controlTop];
+          frames[controlTop] = null;
+          callDepth--;
+        } else {
+          frame = step(e, state, frame);
+        }
+      }
+      return popValue();
+    } finally {
+      // 例外で抜けても次の評価に残骸を残さない
+      Arrays.fill(expressions, base, controlTop, null);
+      Arrays.fill(frames, base, controlTop, null);
+      Arrays.fill(iterators, base, controlTop, null);
+      Arrays.fill(values, valueBase, valueTop, null);
+      controlTop = base;
+      controlBase = previousBase;
+      valueTop = valueBase;
+      callDepth = depthBase;
+    }
+  }
+
+  /**
+   * 継続を一つ進める.
+   *
+   * @return 次の継続を実行するフレーム. 関数呼び出しのときだけ変わる
+   */
+  private Frame step(Ast.Expression expression, int state, Frame frame) {
+    if (expression instanceof Ast.BinaryExpression e) {
+      if (state == 0) {
+        // lhs, rhs の順に評価してから戻ってくる
+        push(e, 1);
+        push(e.rhs(), 0);
+        push(e.lhs(), 0);
+      } else {
+        var rhs = popValue().asInt().value();
+        var lhs = popValue().asInt().value();
+        pushValue(
+            switch (e.operator()) {
+              case ADD -> Values.of(lhs + rhs);
+              case SUBTRACT -> Values.of(lhs - rhs);
+              case MULTIPLY -> Values.of(lhs * rhs);
+              case DIVIDE -> Values.of(lhs / rhs);
+              case LESS_THAN -> Values.of(lhs < rhs);
+              case LESS_OR_EQUAL -> Values.of(lhs <= rhs);
+              case GREATER_THAN -> Values.of(lhs > rhs);
+              case GREATER_OR_EQUAL -> Values.of(lhs >= rhs);
+              case EQUAL_EQUAL -> Values.of(lhs == rhs);
+              case NOT_EQUAL -> Values.of(lhs != rhs);
+            });
+      }
+    } else if (expression instanceof Ast.IntegerLiteral e) {
+      pushValue(Values.of(e.value()));
+    } else if (expression instanceof Ast.BoolLiteral e) {
+      pushValue(Values.of(e.param()));
+    } else if (expression instanceof Ast.ResolvedIdentifier e) {
+      var value = frame.get(e.depth(), e.slot());
+      if (value == null) {
+        throw new LanguageException("Variable " + e.name() + " is not initialized");
+      }
+      pushValue(value);
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      if (state == 0) {
+        push(e, 1);
+        push(e.expression(), 0);
+      } else {
+        // 代入した値が式の値なので積んだまま
+        frame.set(e.depth(), e.slot(), values[valueTop - 1]);
+      }
+    } else if (expression instanceof Ast.IfExpression e) {
+      if (state == 0) {
+        push(e, 1);
+        push(e.condition(), 0);
+      } else if (popValue().asBool().value()) {
+        push(e.thenClause(), 0);
+      } else if (e.elseClause().isPresent()) {
+        push(e.elseClause().get(), 0);
+      } else {
+        pushValue(null);
+      }
+    } else if (expression instanceof Ast.WhileExpression e) {
+      // state 1: 条件を評価し終えた, state 2: 本体を評価し終えた
+      if (state == 2) {
+        popValue();
+      }
+      if (state == 1) {
+        if (popValue().asBool().value()) {
+          push(e, 2);
+          push(e.body(), 0);
+        } else {
+          pushValue(Values.TRUE);
+        }
+      } else {
+        push(e, 1);
+        push(e.condition(), 0);
+      }
+    } else if (expression instanceof Ast.ResolvedForIn e) {
+      // state 1: 列を評価し終えた, state 2: 本体を評価し終えた. 取り出し途中の要素は継続と同じ位置の iterators に置く
+      if (state == 0) {
+        push(e, 1);
+        push(e.iterable(), 0);
+        return frame;
+      }
+      Iterator<?> elements;
+      if (state == 1) {
+        elements = Values.elements(popValue());
+      } else {
+        popValue();
+        elements = iterators[controlTop];
+        iterators[controlTop] = null;
+      }
+      if (elements.hasNext()) {
+        frame.set(e.depth(), e.slot(), (Values.Value) elements.next());
+        push(e, 2);
+        iterators[controlTop - 1] = elements;
+        push(e.body(), 0);
+      } else {
+        pushValue(Values.TRUE);
+      }
+    } else if (expression instanceof Ast.RangeExpression e) {
+      if (state == 0) {
+        push(e, 1);
+        push(e.to(), 0);
+        push(e.from(), 0);
+      } else {
+        var to = popValue().asInt().value();
+        var from = popValue().asInt().value();
+        pushValue(new Values.Range(from, to));
+      }
+    } else if (expression instanceof Ast.BlockExpression e) {
+      // state は次に評価する要素の添字. 最後の要素は継続を積まずに評価するので末尾位置になる
+      var elements = e.elements();
+      if (state > 0) {
+        popValue();
+      }
+      if (elements.isEmpty()) {
+        pushValue(null);
+      } else if (state < elements.size() - 1) {
+        push(e, state + 1);
+        push(elements.get(state), 0);
+      } else {
+        push(elements.get(state), 0);
+      }
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      // state は評価し終えた要素の数
+      var items = e.items();
+      if (state < items.size()) {
+        push(e, state + 1);
+        push(items.get(state), 0);
+      } else {
+        var builder = new Values.ArrayBuilder(items.size());
+        var from = valueTop - items.size();
+        for (int i = from; i < valueTop; i++) {
+          builder.add(values[i]);
+        }
+        Arrays.fill(values, from, valueTop, null);
+        valueTop = from;
+        pushValue(builder.build());
+      }
+    } else if (expression instanceof Ast.LinkedCall e) {
+      var args = e.args();
+      if (state < args.size()) {
+        // 引数を左から順に評価する
+        push(e, state + 1);
+        push(args.get(state), 0);
+      } else {
+        return call(e, frame);
+      }
+    } else if (expression instanceof Ast.Spawn) {
+      throw new LanguageException("spawn is supported only by the tree-walking interpreter");
+    } else {
+      throw new RuntimeException("not reach here");
+    }
+    return frame;
+  }
+
+  private Frame call(Ast.LinkedCall e, Frame frame) {
+    var function = e.target().function();
+    if (function == null) {
+      throw new RuntimeException("Function " + e.name() + " is not found");
+    }
+    var arity = e.args().size();
+    if (arity != function.definition().args().size()) {
+      throw new LanguageException(
+          "Function "
+              + e.name()
+              + " expects "
+              + function.definition().args().size()
+              + " arguments but got "
+              + arity);
+    }
+    var callee = new Frame(function.frameSize(), globals);
+    var from = valueTop - arity;
+    System.arraycopy(values, from, callee.slots, 0, arity);
+    Arrays.fill(values, from, valueTop, null);
+    valueTop = from;
+
+    // 直後の継続が RETURN なら末尾呼び出しなので, 戻り先を積まずにそのまま置き換える
+    if (controlTop == controlBase || states[controlTop - 1] != RETURN) {
+      if (callDepth >= maxCallDepth) {
+        throw new LanguageException("Call depth exceeds " + maxCallDepth);
+      }
+      push(null, RETURN);
+      frames[controlTop - 1] = frame;
+      callDepth++;
+    }
+    push(function.definition().body(), 0);
+    return callee;
+  }
+}
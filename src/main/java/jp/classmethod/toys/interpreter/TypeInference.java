@@ -0,0 +1,299 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 解決済みの関数について, 引数・ローカル変数・戻り値が常に Int か常に Bool かを調べる.
+ *
+ * <p>関数から呼び出し先を辿って届く関数をまとめて調べる. 型は使われ方から決める. 算術と比較の被演算子なら Int, if と while の条件なら Bool, 代入ならその値の型,
+ * 呼び出しの実引数なら呼び出し先の引数の型. 全ての関数で矛盾なく決まるまで繰り返し, 決まらない関数 (グローバル変数を使う, 配列を作る, 値のない if がある,
+ * 初期化前に読みうる変数がある, 他の関数を末尾で呼ぶなど) を外してやり直す. 他の関数を末尾で呼ぶ関数を外すのは, {@link Interpreter} がそれをループにして Java
+ * のスタックを伸ばさないのに合わせるため. 自分自身の末尾呼び出しは {@link Unboxed} がループにする.
+ */
+final class TypeInference {
+
+  enum Type {
+    INT,
+    BOOL
+  }
+
+  /**
+   * 型の決まった関数
+   *
+   * @param slots フレームの slot ごとの型. 先頭に引数が並ぶ. 読み書きされない slot は null
+   * @param result 戻り値の型
+   */
+  static final record Signature(Type[] slots, Type result) {}
+
+  private static final class Failure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Failure() {
+      super(null, null, false, false);
+    }
+  }
+
+  // 調べている関数ごとの, 途中までに分かった型. null はまだ分からない
+  private static final class State {
+    final Resolver.ResolvedFunction function;
+    final int arity;
+    final Type[] slots;
+    Type result;
+
+    State(Resolver.ResolvedFunction function) {
+      this.function = function;
+      this.arity = function.definition().args().size();
+      this.slots = new Type[function.frameSize()];
+    }
+  }
+
+  private final Map<Resolver.ResolvedFunction, State> states = new IdentityHashMap<>();
+  private boolean changed;
+
+  private TypeInference() {}
+
+  /**
+   * root と, root から呼ばれうる関数を調べる.
+   *
+   * @param root 調べる関数
+   * @return 型の決まった関数. root の型が決まらなければ root は含まれない
+   */
+  static Map<Resolver.ResolvedFunction, Signature> analyze(Resolver.ResolvedFunction root) {
+    var candidates = new LinkedHashSet<Resolver.ResolvedFunction>();
+    var queue = new ArrayDeque<Resolver.ResolvedFunction>();
+    candidates.add(root);
+    queue.add(root);
+    while (!queue.isEmpty()) {
+      var function = queue.poll();
+      if (!definitelyAssigned(function)) {
+        candidates.remove(function);
+        continue;
+      }
+      for (var callee : callees(function.definition().body())) {
+        if (candidates.add(callee)) {
+          queue.add(callee);
+        }
+      }
+    }
+
+    while (true) {
+      var inference = new TypeInference();
+      candidates.forEach(f -> inference.states.put(f, new State(f)));
+      var failed = inference.solve();
+      if (failed == null) {
+        var result = new IdentityHashMap<Resolver.ResolvedFunction, Signature>();
+        inference.states.forEach(
+            (function, state) -> result.put(function, new Signature(state.slots, state.result)));
+        return result;
+      }
+      // 外した関数を呼んでいる関数も型が決まらないので, 次の周で外れる
+      candidates.remove(failed);
+    }
+  }
+
+  // 矛盾なく型が決まれば null, そうでなければ外すべき関数
+  private Resolver.ResolvedFunction solve() {
+    do {
+      changed = false;
+      for (var state : states.values()) {
+        try {
+          var type = type(state, state.function.definition().body(), true);
+          if (type != null) {
+            if (state.result == null) {
+              state.result = type;
+              changed = true;
+            } else if (state.result != type) {
+              return state.function;
+            }
+          }
+        } catch (Failure e) {
+          return state.function;
+        }
+      }
+    } while (changed);
+    for (var state : states.values()) {
+      // 使われ方から型の分からない引数があるか, 戻らない関数
+      if (state.result == null) {
+        return state.function;
+      }
+      for (int i = 0; i < state.arity; i++) {
+        if (state.slots[i] == null) {
+          return state.function;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void assign(Type[] slots, int slot, Type type) {
+    if (slots[slot] == null) {
+      slots[slot] = type;
+      changed = true;
+    } else if (slots[slot] != type) {
+      throw new Failure();
+    }
+  }
+
+  // 式の型が type でなければならない
+  private void expect(State state, Ast.Expression expression, Type type) {
+    if (expression instanceof Ast.ResolvedIdentifier e && e.depth() == 0) {
+      assign(state.slots, e.slot(), type);
+      return;
+    }
+    var actual = type(state, expression, false);
+    if (actual != null && actual != type) {
+      throw new Failure();
+    }
+  }
+
+  /**
+   * 式の型. まだ分からなければ null
+   *
+   * @param tail 関数本体の末尾位置
+   */
+  private Type type(State state, Ast.Expression expression, boolean tail) {
+    if (expression instanceof Ast.IntegerLiteral) {
+      return Type.INT;
+    } else if (expression instanceof Ast.BoolLiteral) {
+      return Type.BOOL;
+    } else if (expression instanceof Ast.ResolvedIdentifier e && e.depth() == 0) {
+      return state.slots[e.slot()];
+    } else if (expression instanceof Ast.ResolvedAssignment e && e.depth() == 0) {
+      var type = type(state, e.expression(), false);
+      if (type != null) {
+        assign(state.slots, e.slot(), type);
+      } else if (state.slots[e.slot()] != null) {
+        expect(state, e.expression(), state.slots[e.slot()]);
+      }
+      return state.slots[e.slot()];
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      expect(state, e.lhs(), Type.INT);
+      expect(state, e.rhs(), Type.INT);
+      return switch (e.operator()) {
+        case ADD, SUBTRACT, MULTIPLY, DIVIDE -> Type.INT;
+        default -> Type.BOOL;
+      };
+    } else if (expression instanceof Ast.IfExpression e && e.elseClause().isPresent()) {
+      expect(state, e.condition(), Type.BOOL);
+      var thenType = type(state, e.thenClause(), tail);
+      var elseType = type(state, e.elseClause().get(), tail);
+      if (thenType != null && elseType != null && thenType != elseType) {
+        throw new Failure();
+      }
+      var type = thenType != null ? thenType : elseType;
+      if (type != null) {
+        expect(state, e.thenClause(), type);
+        expect(state, e.elseClause().get(), type);
+      }
+      return type;
+    } else if (expression instanceof Ast.WhileExpression e) {
+      expect(state, e.condition(), Type.BOOL);
+      type(state, e.body(), false);
+      return Type.BOOL;
+    } else if (expression instanceof Ast.BlockExpression e && !e.elements().isEmpty()) {
+      var elements = e.elements();
+      for (int i = 0; i < elements.size() - 1; i++) {
+        type(state, elements.get(i), false);
+      }
+      return type(state, elements.get(elements.size() - 1), tail);
+    } else if (expression instanceof Ast.LinkedCall e) {
+      var callee = states.get(e.target().function());
+      if (callee == null
+          || callee.arity != e.args().size()
+          || (tail && callee.function != state.function)) {
+        throw new Failure();
+      }
+      for (int i = 0; i < callee.arity; i++) {
+        var param = callee.slots[i];
+        if (param != null) {
+          expect(state, e.args().get(i), param);
+        } else {
+          var type = type(state, e.args().get(i), false);
+          if (type != null) {
+            assign(callee.slots, i, type);
+          }
+        }
+      }
+      return callee.result;
+    }
+    // グローバル変数, 配列, for-in など
+    throw new Failure();
+  }
+
+  private static Set<Resolver.ResolvedFunction> callees(Ast.Expression expression) {
+    var callees = new LinkedHashSet<Resolver.ResolvedFunction>();
+    collectCallees(expression, callees);
+    return callees;
+  }
+
+  private static void collectCallees(
+      Ast.Expression expression, Set<Resolver.ResolvedFunction> callees) {
+    if (expression instanceof Ast.LinkedCall e) {
+      if (e.target().function() != null) {
+        callees.add(e.target().function());
+      }
+      e.args().forEach(x -> collectCallees(x, callees));
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      collectCallees(e.lhs(), callees);
+      collectCallees(e.rhs(), callees);
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      collectCallees(e.expression(), callees);
+    } else if (expression instanceof Ast.IfExpression e) {
+      collectCallees(e.condition(), callees);
+      collectCallees(e.thenClause(), callees);
+      e.elseClause().ifPresent(x -> collectCallees(x, callees));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      collectCallees(e.condition(), callees);
+      collectCallees(e.body(), callees);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      e.elements().forEach(x -> collectCallees(x, callees));
+    }
+  }
+
+  /** ローカル変数を代入より前に読まないか. 本体の Block の要素を順に見て, 要素そのものが代入ならその後は読んでよいとする. if や while の中の代入は数えない. */
+  private static boolean definitelyAssigned(Resolver.ResolvedFunction function) {
+    var assigned = new BitSet();
+    assigned.set(0, function.definition().args().size());
+    var body = function.definition().body();
+    var elements =
+        body instanceof Ast.BlockExpression block ? block.elements() : Arrays.asList(body);
+    for (var element : elements) {
+      if (!readsOnly(element, assigned)) {
+        return false;
+      }
+      if (element instanceof Ast.ResolvedAssignment e && e.depth() == 0) {
+        assigned.set(e.slot());
+      }
+    }
+    return true;
+  }
+
+  private static boolean readsOnly(Ast.Expression expression, BitSet assigned) {
+    if (expression instanceof Ast.ResolvedIdentifier e) {
+      return e.depth() != 0 || assigned.get(e.slot());
+    } else if (expression instanceof Ast.ResolvedAssignment e) {
+      return readsOnly(e.expression(), assigned);
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return readsOnly(e.lhs(), assigned) && readsOnly(e.rhs(), assigned);
+    } else if (expression instanceof Ast.IfExpression e) {
+      return readsOnly(e.condition(), assigned)
+          && readsOnly(e.thenClause(), assigned)
+          && (e.elseClause().isEmpty() || readsOnly(e.elseClause().get(), assigned));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return readsOnly(e.condition(), assigned) && readsOnly(e.body(), assigned);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return e.elements().stream().allMatch(x -> readsOnly(x, assigned));
+    } else if (expression instanceof Ast.LinkedCall e) {
+      return e.args().stream().allMatch(x -> readsOnly(x, assigned));
+    }
+    // 変数を読まない式か, 型を決めるときに外す式
+    return true;
+  }
+}
@@ -0,0 +1,410 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link TypeInference} で型の決まった関数を, {@link Values} に包まない int だけで評価するノードの木に変換したもの. Bool は 0 と 1 で表す.
+ * フレームも int[] で, 末尾に自分自身の末尾呼び出しを表す印の slot を一つ足してある.
+ */
+final class Unboxed {
+
+  private Unboxed() {}
+
+  /** 変換済みの関数. 型の決まった関数どうしは値を包まずに呼び合う */
+  static final class Function {
+    final String name;
+    final TypeInference.Signature signature;
+    final int arity;
+    // 自分自身の末尾呼び出しの印. フレームの最後の slot
+    final int restart;
+    Node body;
+
+    Function(Resolver.ResolvedFunction function, TypeInference.Signature signature) {
+      this.name = function.definition().name();
+      this.signature = signature;
+      this.arity = function.definition().args().size();
+      this.restart = function.frameSize();
+    }
+
+    int[] newFrame() {
+      return new int[restart + 1];
+    }
+
+    int invoke(int[] frame) {
+      int value;
+      do {
+        frame[restart] = 0;
+        value = body.execute(frame);
+      } while (frame[restart] != 0);
+      return value;
+    }
+
+    /**
+     * 値を包んだ引数で呼ぶ. 引数の型が推論と違えば null を返すので, 呼び出し元は普通の評価に戻ること
+     *
+     * @param args 引数の値. 先頭から arity 個を使う
+     * @return 評価結果か null
+     */
+    Values.Value call(Values.Value[] args) {
+      var frame = newFrame();
+      var slots = signature.slots();
+      for (int i = 0; i < arity; i++) {
+        if (slots[i] == TypeInference.Type.INT && args[i] instanceof Values.Int v) {
+          frame[i] = v.value();
+        } else if (slots[i] == TypeInference.Type.BOOL && args[i] instanceof Values.Bool v) {
+          frame[i] = v.value() ? 1 : 0;
+        } else {
+          return null;
+        }
+      }
+      var value = invoke(frame);
+      return signature.result() == TypeInference.Type.INT
+          ? Values.of(value)
+          : Values.of(value != 0);
+    }
+  }
+
+  /**
+   * 型の決まった関数をまとめて変換する
+   *
+   * @param signatures {@link TypeInference#analyze} の結果
+   * @return 変換した関数
+   */
+  static Map<Resolver.ResolvedFunction, Function> compile(
+      Map<Resolver.ResolvedFunction, TypeInference.Signature> signatures) {
+    var functions = new IdentityHashMap<Resolver.ResolvedFunction, Function>();
+    signatures.forEach((f, signature) -> functions.put(f, new Function(f, signature)));
+    functions.forEach(
+        (f, function) ->
+            function.body = new Compiler(function, functions).compile(f.definition().body(), true));
+    return functions;
+  }
+
+  private static final class Compiler {
+    private final Function self;
+    private final Map<Resolver.ResolvedFunction, Function> functions;
+
+    Compiler(Function self, Map<Resolver.ResolvedFunction, Function> functions) {
+      this.self = self;
+      this.functions = functions;
+    }
+
+    private Node[] compileAll(List<Ast.Expression> expressions) {
+      return expressions.stream().map(x -> compile(x, false)).toArray(Node[]::new);
+    }
+
+    Node compile(Ast.Expression expression, boolean tail) {
+      if (expression instanceof Ast.IntegerLiteral e) {
+        return new Constant(e.value());
+      } else if (expression instanceof Ast.BoolLiteral e) {
+        return new Constant(e.param() ? 1 : 0);
+      } else if (expression instanceof Ast.ResolvedIdentifier e) {
+        return new Local(e.slot());
+      } else if (expression instanceof Ast.ResolvedAssignment e) {
+        return new Assign(e.slot(), compile(e.expression(), false));
+      } else if (expression instanceof Ast.BinaryExpression e) {
+        var lhs = compile(e.lhs(), false);
+        var rhs = compile(e.rhs(), false);
+        return switch (e.operator()) {
+          case ADD -> new Add(lhs, rhs);
+          case SUBTRACT -> new Subtract(lhs, rhs);
+          case MULTIPLY -> new Multiply(lhs, rhs);
+          case DIVIDE -> new Divide(lhs, rhs);
+          case LESS_THAN -> new LessThan(lhs, rhs);
+          case LESS_OR_EQUAL -> new LessOrEqual(lhs, rhs);
+          case GREATER_THAN -> new GreaterThan(lhs, rhs);
+          case GREATER_OR_EQUAL -> new GreaterOrEqual(lhs, rhs);
+          case EQUAL_EQUAL -> new Equal(lhs, rhs);
+          case NOT_EQUAL -> new NotEqual(lhs, rhs);
+        };
+      } else if (expression instanceof Ast.IfExpression e) {
+        // 推論は else のない if を許さない
+        return new If(
+            compile(e.condition(), false),
+            compile(e.thenClause(), tail),
+            compile(e.elseClause().get(), tail));
+      } else if (expression instanceof Ast.WhileExpression e) {
+        return new While(compile(e.condition(), false), compile(e.body(), false));
+      } else if (expression instanceof Ast.BlockExpression e) {
+        var elements = e.elements();
+        var nodes = new Node[elements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+          nodes[i] = compile(elements.get(i), tail && i == nodes.length - 1);
+        }
+        return new Block(nodes);
+      } else if (expression instanceof Ast.LinkedCall e) {
+        var callee = functions.get(e.target().function());
+        // 推論は他の関数の末尾呼び出しを許さないので, 末尾位置なら自分自身の呼び出し
+        return tail
+            ? new SelfTailCall(compileAll(e.args()), self.restart)
+            : new Call(callee, compileAll(e.args()));
+      }
+      throw new IllegalStateException(expression.getClass().getSimpleName());
+    }
+  }
+
+  //// ノード. execute は値を int で返す
+
+  abstract static class Node {
+    abstract int execute(int[] frame);
+  }
+
+  static final class Constant extends Node {
+    private final int value;
+
+    Constant(int value) {
+      this.value = value;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return value;
+    }
+  }
+
+  static final class Local extends Node {
+    private final int slot;
+
+    Local(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return frame[slot];
+    }
+  }
+
+  static final class Assign extends Node {
+    private final int slot;
+    private final Node value;
+
+    Assign(int slot, Node value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return frame[slot] = value.execute(frame);
+    }
+  }
+
+  //// 二項演算. 左から順に評価する
+  abstract static class Binary extends Node {
+    final Node lhs;
+    final Node rhs;
+
+    Binary(Node lhs, Node rhs) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+    }
+  }
+
+  static final class Add extends Binary {
+    Add(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) + rhs.execute(frame);
+    }
+  }
+
+  static final class Subtract extends Binary {
+    Subtract(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) - rhs.execute(frame);
+    }
+  }
+
+  static final class Multiply extends Binary {
+    Multiply(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) * rhs.execute(frame);
+    }
+  }
+
+  static final class Divide extends Binary {
+    Divide(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) / rhs.execute(frame);
+    }
+  }
+
+  static final class LessThan extends Binary {
+    LessThan(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) < rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class LessOrEqual extends Binary {
+    LessOrEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) <= rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class GreaterThan extends Binary {
+    GreaterThan(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) > rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class GreaterOrEqual extends Binary {
+    GreaterOrEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) >= rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class Equal extends Binary {
+    Equal(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) == rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class NotEqual extends Binary {
+    NotEqual(Node lhs, Node rhs) {
+      super(lhs, rhs);
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return lhs.execute(frame) != rhs.execute(frame) ? 1 : 0;
+    }
+  }
+
+  static final class If extends Node {
+    private final Node condition;
+    private final Node thenClause;
+    private final Node elseClause;
+
+    If(Node condition, Node thenClause, Node elseClause) {
+      this.condition = condition;
+      this.thenClause = thenClause;
+      this.elseClause = elseClause;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      return condition.execute(frame) != 0 ? thenClause.execute(frame) : elseClause.execute(frame);
+    }
+  }
+
+  static final class While extends Node {
+    private final Node condition;
+    private final Node body;
+
+    While(Node condition, Node body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      while (condition.execute(frame) != 0) {
+        body.execute(frame);
+      }
+      // while の値は true
+      return 1;
+    }
+  }
+
+  static final class Block extends Node {
+    private final Node[] elements;
+
+    Block(Node[] elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      int value = 0;
+      for (var element : elements) {
+        value = element.execute(frame);
+      }
+      return value;
+    }
+  }
+
+  static final class Call extends Node {
+    private final Function callee;
+    private final Node[] args;
+
+    Call(Function callee, Node[] args) {
+      this.callee = callee;
+      this.args = args;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      var calleeFrame = callee.newFrame();
+      for (int i = 0; i < args.length; i++) {
+        calleeFrame[i] = args[i].execute(frame);
+      }
+      return callee.invoke(calleeFrame);
+    }
+  }
+
+  // 引数を全て評価してからフレームの先頭に書き, 印を立てて戻る. Function#invoke が本体を最初から評価し直す
+  static final class SelfTailCall extends Node {
+    private final Node[] args;
+    private final int restart;
+
+    SelfTailCall(Node[] args, int restart) {
+      this.args = args;
+      this.restart = restart;
+    }
+
+    @Override
+    int execute(int[] frame) {
+      var values = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        values[i] = args[i].execute(frame);
+      }
+      System.arraycopy(values, 0, frame, 0, values.length);
+      frame[restart] = 1;
+      return 0;
+    }
+  }
+}
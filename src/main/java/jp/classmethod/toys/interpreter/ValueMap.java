@@ -0,0 +1,370 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link Values.Dictionary} 用のオープンアドレス法 (線形探索) のハッシュ表.
+ *
+ * <p>キーが全て {@link Values.Int} の間はキーを int[] に持ち, ボクシングも record の hashCode/equals も使わない. それ以外のキーが
+ * 入った時点で {@link Values.Value} のキー配列に切り替える. エントリはキーと値の並列配列に置くので, {@link java.util.HashMap} のような
+ * Entry オブジェクトを要素ごとに割り当てない. 削除は後方シフトで行い, 墓標を残さない.
+ */
+public final class ValueMap extends AbstractMap<Values.Value, Values.Value> {
+
+  private static final float LOAD_FACTOR = 0.6f;
+  private static final int MIN_CAPACITY = 8;
+
+  // int キーのモードでは intKeys と used, 汎用モードでは keys を使う
+  private int[] intKeys;
+  private boolean[] used;
+  private Values.Value[] keys;
+  private Values.Value[] values;
+  private int size;
+  private int threshold;
+  private int modCount;
+
+  public ValueMap() {
+    this(0);
+  }
+
+  /**
+   * @param expectedSize 格納する予定の要素数. この数までは再ハッシュしない
+   */
+  public ValueMap(int expectedSize) {
+    var capacity = capacityFor(expectedSize);
+    intKeys = new int[capacity];
+    used = new boolean[capacity];
+    values = new Values.Value[capacity];
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  public static ValueMap copyOf(Map<? extends Values.Value, ? extends Values.Value> map) {
+    var copy = new ValueMap(map.size());
+    copy.putAll(map);
+    return copy;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    var capacity = MIN_CAPACITY;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private static int mix(int hash) {
+    var h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private boolean intMode() {
+    return intKeys != null;
+  }
+
+  //// int キーの高速経路
+  private int findInt(int key) {
+    var mask = values.length - 1;
+    for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+      if (!used[i]) {
+        return -1;
+      }
+      if (intKeys[i] == key) {
+        return i;
+      }
+    }
+  }
+
+  /**
+   * int のキーで値を引く. キーをボクシングしない.
+   *
+   * @param key キー
+   * @return 値. なければ null
+   */
+  public Values.Value getInt(int key) {
+    if (intMode()) {
+      var index = findInt(key);
+      return index < 0 ? null : values[index];
+    }
+    return get(Values.of(key));
+  }
+
+  /**
+   * int のキーで値を入れる.
+   *
+   * @param key キー
+   * @param value 値
+   * @return 以前の値. なければ null
+   */
+  public Values.Value putInt(int key, Values.Value value) {
+    if (!intMode()) {
+      return put(Values.of(key), value);
+    }
+    var mask = values.length - 1;
+    for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+      if (!used[i]) {
+        used[i] = true;
+        intKeys[i] = key;
+        values[i] = value;
+        afterInsert();
+        return null;
+      }
+      if (intKeys[i] == key) {
+        var old = values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+  }
+
+  //// 汎用の経路
+  private int find(Object key) {
+    if (intMode()) {
+      return key instanceof Values.Int i ? findInt(i.value()) : -1;
+    }
+    var mask = values.length - 1;
+    for (int i = mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+      if (keys[i] == null) {
+        return -1;
+      }
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+  }
+
+  @Override
+  public Values.Value get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    var index = find(key);
+    return index < 0 ? null : values[index];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key != null && find(key) >= 0;
+  }
+
+  @Override
+  public Values.Value put(Values.Value key, Values.Value value) {
+    if (key == null) {
+      throw new NullPointerException("key");
+    }
+    if (intMode()) {
+      if (key instanceof Values.Int i) {
+        return putInt(i.value(), value);
+      }
+      // int 以外のキーが来たので汎用モードへ移る
+      rehash(values.length, false);
+    }
+    var mask = values.length - 1;
+    for (int i = mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+      if (keys[i] == null) {
+        keys[i] = key;
+        values[i] = value;
+        afterInsert();
+        return null;
+      }
+      if (keys[i].equals(key)) {
+        var old = values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+  }
+
+  private void afterInsert() {
+    size++;
+    modCount++;
+    if (size > threshold) {
+      rehash(values.length << 1, intMode());
+    }
+  }
+
+  private void rehash(int capacity, boolean keepIntMode) {
+    var oldIntKeys = intKeys;
+    var oldUsed = used;
+    var oldKeys = keys;
+    var oldValues = values;
+    var oldSize = size;
+
+    values = new Values.Value[capacity];
+    if (keepIntMode) {
+      intKeys = new int[capacity];
+      used = new boolean[capacity];
+    } else {
+      intKeys = null;
+      used = null;
+      keys = new Values.Value[capacity];
+    }
+    threshold = (int) (capacity * LOAD_FACTOR);
+    size = 0;
+
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldIntKeys != null) {
+        if (oldUsed[i]) {
+          if (keepIntMode) {
+            putInt(oldIntKeys[i], oldValues[i]);
+          } else {
+            put(Values.of(oldIntKeys[i]), oldValues[i]);
+          }
+        }
+      } else if (oldKeys[i] != null) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+    size = oldSize;
+    modCount++;
+  }
+
+  @Override
+  public Values.Value remove(Object key) {
+    if (key == null) {
+      return null;
+    }
+    var index = find(key);
+    if (index < 0) {
+      return null;
+    }
+    var old = values[index];
+    deleteAt(index);
+    return old;
+  }
+
+  /** 削除した位置より後ろのクラスタを詰め直す (後方シフト削除) */
+  private void deleteAt(int index) {
+    var mask = values.length - 1;
+    var hole = index;
+    for (int i = (hole + 1) & mask; occupied(i); i = (i + 1) & mask) {
+      var home = homeOf(i);
+      // i の本来の位置が (hole, i] の外にあるなら hole へ移せる
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        moveSlot(i, hole);
+        hole = i;
+      }
+    }
+    clearSlot(hole);
+    size--;
+    modCount++;
+  }
+
+  private boolean occupied(int index) {
+    return intMode() ? used[index] : keys[index] != null;
+  }
+
+  private int homeOf(int index) {
+    var mask = values.length - 1;
+    return (intMode() ? mix(intKeys[index]) : mix(keys[index].hashCode())) & mask;
+  }
+
+  private void moveSlot(int from, int to) {
+    if (intMode()) {
+      intKeys[to] = intKeys[from];
+      used[to] = true;
+    } else {
+      keys[to] = keys[from];
+    }
+    values[to] = values[from];
+  }
+
+  private void clearSlot(int index) {
+    if (intMode()) {
+      used[index] = false;
+    } else {
+      keys[index] = null;
+    }
+    values[index] = null;
+  }
+
+  private Values.Value keyAt(int index) {
+    return intMode() ? Values.of(intKeys[index]) : keys[index];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    if (intMode()) {
+      Arrays.fill(used, false);
+    } else {
+      Arrays.fill(keys, null);
+    }
+    Arrays.fill(values, null);
+    size = 0;
+    modCount++;
+  }
+
+  /** Entry を作らずに全要素を辿る */
+  @Override
+  public void forEach(BiConsumer<? super Values.Value, ? super Values.Value> action) {
+    var expected = modCount;
+    for (int i = 0; i < values.length; i++) {
+      if (occupied(i)) {
+        action.accept(keyAt(i), values[i]);
+      }
+    }
+    if (expected != modCount) {
+      throw new ConcurrentModificationException();
+    }
+  }
+
+  @Override
+  public Set<Entry<Values.Value, Values.Value>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<Values.Value, Values.Value>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /** entrySet は Map の契約のために用意するだけで, Entry は辿るときに作る. 削除は後方シフトで順序が変わるので受け付けない */
+  private final class EntryIterator implements Iterator<Entry<Values.Value, Values.Value>> {
+    private int next = advance(0);
+    private final int expected = modCount;
+
+    private int advance(int from) {
+      var i = from;
+      while (i < values.length && !occupied(i)) {
+        i++;
+      }
+      return i;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < values.length;
+    }
+
+    @Override
+    public Entry<Values.Value, Values.Value> next() {
+      if (expected != modCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      var current = next;
+      next = advance(next + 1);
+      return new SimpleImmutableEntry<>(keyAt(current), values[current]);
+    }
+  }
+}
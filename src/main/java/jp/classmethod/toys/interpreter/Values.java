@@ -1,12 +1,23 @@
 /* Copyright (C) 2023 komuro-hiraku */
 package jp.classmethod.toys.interpreter;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
 
 public class Values {
 
-  public sealed interface Value permits Int, Bool, Array, Dictionary {
+  public sealed interface Value permits Int, Bool, Array, Dictionary, Sequence, Task {
     default Int asInt() {
       return (Int) this;
     }
@@ -33,18 +44,307 @@ public class Values {
   public static final record Dictionary(Map<? extends Value, ? super Value> entries)
       implements Value {}
 
+  /**
+   * 要素を取り出すときに初めて作る列. for-in は要素を一つずつ取り出しながら回すので, 全体を {@link Array} にしなくてよい. 終わりのない列もありうる.
+   * ホストのコードが独自の列を渡せるよう sealed にしない
+   */
+  public non-sealed interface Sequence extends Value {
+    /** 先頭から要素を取り出す. 呼ぶたびに最初からやり直す */
+    Iterator<Value> iterator();
+  }
+
+  /** from から to まで (両端を含む) の整数の列 */
+  public static final record Range(int from, int to) implements Sequence {
+    @Override
+    public Iterator<Value> iterator() {
+      return new Iterator<>() {
+        // to が Integer.MAX_VALUE でも溢れないよう long で数える
+        private long next = from;
+
+        @Override
+        public boolean hasNext() {
+          return next <= to;
+        }
+
+        @Override
+        public Value next() {
+          if (next > to) {
+            throw new NoSuchElementException();
+          }
+          return of((int) next++);
+        }
+      };
+    }
+  }
+
+  /**
+   * 別のスレッドで起きた例外を取り出す. ForkJoinTask は例外を受け取る側のスレッドで同じ型の例外として作り直し, 元の例外を cause にする.
+   * 作り直した例外にはメッセージがないことがあるので, 元の例外を返す.
+   *
+   * @param e {@link Future#get} が投げた例外
+   * @return 評価中に起きた例外
+   */
+  static Throwable cause(ExecutionException e) {
+    var cause = e.getCause();
+    if (cause != null
+        && cause.getCause() != null
+        && cause.getCause().getClass() == cause.getClass()) {
+      return cause.getCause();
+    }
+    return cause;
+  }
+
+  /** spawn で始めた呼び出し. 結果は join で受け取る */
+  public static final record Task(Future<Value> future) implements Value {
+    /**
+     * 呼び出しが終わるのを待って結果を返す. 呼び出しが例外で終わっていればそれを投げ直す.
+     *
+     * @return 呼び出しの評価結果
+     */
+    public Value join() {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        var cause = cause(e);
+        if (cause instanceof RuntimeException runtimeException) {
+          throw runtimeException;
+        } else if (cause instanceof Error error) {
+          throw error;
+        }
+        throw new IllegalStateException(cause);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LanguageException("Interrupted while joining a task");
+      }
+    }
+  }
+
+  /**
+   * for-in が回す要素を取り出す. 配列なら先頭から, {@link Sequence} なら作りながら返す.
+   *
+   * @param iterable 回す値
+   * @return 要素
+   * @throws LanguageException 配列でも列でもない
+   */
+  static Iterator<? extends Value> elements(Value iterable) {
+    if (iterable instanceof Array a) {
+      return a.values().iterator();
+    } else if (iterable instanceof Sequence s) {
+      return s.iterator();
+    }
+    throw new LanguageException("Cannot iterate over " + iterable);
+  }
+
+  /**
+   * seed から始めて next を繰り返し適用した終わりのない列
+   *
+   * @param seed 最初の要素
+   * @param next 前の要素から次の要素を作る関数
+   * @return {@link Sequence}
+   */
+  public static Sequence iterate(Value seed, UnaryOperator<Value> next) {
+    return () ->
+        new Iterator<>() {
+          private Value current = seed;
+          private boolean started;
+
+          @Override
+          public boolean hasNext() {
+            return true;
+          }
+
+          @Override
+          public Value next() {
+            if (started) {
+              current = next.apply(current);
+            }
+            started = true;
+            return current;
+          }
+        };
+  }
+
+  //// 値のキャッシュ
+  // 真偽値は 2 つしかないので共有する. 整数はループカウンタや添字によく出る範囲を事前に作っておく
+  public static final Bool TRUE = new Bool(true);
+  public static final Bool FALSE = new Bool(false);
+
+  private static final int INT_CACHE_LOW = -128;
+  private static final int INT_CACHE_HIGH = 1023;
+  private static final Int[] INT_CACHE = new Int[INT_CACHE_HIGH - INT_CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < INT_CACHE.length; i++) {
+      INT_CACHE[i] = new Int(INT_CACHE_LOW + i);
+    }
+  }
+
+  /**
+   * int から {@link Int} を作る. キャッシュの範囲内なら割り当てを行わない. {@link #wrap(Object)} と違ってボクシングも型判定もしない.
+   *
+   * @param value 値
+   * @return {@link Int}
+   */
+  public static Int of(int value) {
+    if (INT_CACHE_LOW <= value && value <= INT_CACHE_HIGH) {
+      return INT_CACHE[value - INT_CACHE_LOW];
+    }
+    return new Int(value);
+  }
+
+  /**
+   * boolean から共有の {@link Bool} を返す.
+   *
+   * @param value 値
+   * @return {@link #TRUE} か {@link #FALSE}
+   */
+  public static Bool of(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  //// 配列
+  /**
+   * 要素の型に応じて表現を選んで {@link Array} を作る. 全て {@link Int} なら int[], 全て {@link Bool} なら {@link BitSet}
+   * を使い, 型が混ざっているときだけ汎用のリストにする.
+   *
+   * @param values 要素
+   * @return {@link Array}
+   */
+  public static Array array(List<? extends Value> values) {
+    if (values instanceof IntArray || values instanceof BoolArray) {
+      return new Array(values);
+    }
+    var builder = new ArrayBuilder(values.size());
+    for (int i = 0; i < values.size(); i++) {
+      builder.add(values.get(i));
+    }
+    return builder.build();
+  }
+
+  /** 要素を一つずつ受け取りながら表現を決める. 型が混ざった時点で汎用のリストに切り替える */
+  public static final class ArrayBuilder {
+    private int[] ints;
+    private BitSet bools;
+    private List<Value> values;
+    private int size;
+
+    public ArrayBuilder(int expectedSize) {
+      this.ints = new int[expectedSize];
+    }
+
+    public void add(Value value) {
+      if (values != null) {
+        values.add(value);
+      } else if (ints != null && value instanceof Int i) {
+        if (size == ints.length) {
+          ints = Arrays.copyOf(ints, Math.max(8, size * 2));
+        }
+        ints[size] = i.value();
+      } else if (ints != null && size == 0 && value instanceof Bool b) {
+        ints = null;
+        bools = new BitSet();
+        bools.set(size, b.value());
+      } else if (bools != null && value instanceof Bool b) {
+        bools.set(size, b.value());
+      } else {
+        values = new ArrayList<>(Math.max(size * 2, 8));
+        for (int i = 0; i < size; i++) {
+          values.add(ints != null ? of(ints[i]) : of(bools.get(i)));
+        }
+        values.add(value);
+        ints = null;
+        bools = null;
+      }
+      size++;
+    }
+
+    public Array build() {
+      if (values != null) {
+        return new Array(values);
+      } else if (size == 0) {
+        return new Array(List.of());
+      } else if (ints != null) {
+        return new Array(new IntArray(ints.length == size ? ints : Arrays.copyOf(ints, size)));
+      } else {
+        return new Array(new BoolArray(bools, size));
+      }
+    }
+  }
+
+  /** int[] で要素を持つ整数配列. 要素 1 つあたり 4 バイトで, 読み出しは {@link #getInt(int)} を使えばボクシングしない */
+  public static final class IntArray extends AbstractList<Int> implements RandomAccess {
+    private final int[] values;
+
+    public IntArray(int[] values) {
+      this.values = values;
+    }
+
+    public int getInt(int index) {
+      return values[index];
+    }
+
+    @Override
+    public Int get(int index) {
+      return of(values[index]);
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+  }
+
+  /** {@link BitSet} で要素を持つ真偽値配列 */
+  public static final class BoolArray extends AbstractList<Bool> implements RandomAccess {
+    private final BitSet values;
+    private final int size;
+
+    public BoolArray(BitSet values, int size) {
+      this.values = values;
+      this.size = size;
+    }
+
+    public boolean getBoolean(int index) {
+      Objects.checkIndex(index, size);
+      return values.get(index);
+    }
+
+    @Override
+    public Bool get(int index) {
+      return of(getBoolean(index));
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  //// 辞書
+  /**
+   * 空の辞書を作る. 大きさが分かっているなら expectedSize を渡しておけば途中で再ハッシュしない.
+   *
+   * @param expectedSize 格納する予定の要素数
+   * @return {@link ValueMap} を持つ {@link Dictionary}
+   */
+  public static Dictionary dictionary(int expectedSize) {
+    return new Dictionary(new ValueMap(expectedSize));
+  }
+
   public static Value wrap(Object javaValue) {
     if (javaValue instanceof Integer val) {
-      return new Int(val);
+      return of(val.intValue());
     }
     if (javaValue instanceof Boolean val) {
-      return new Bool(val);
+      return of(val.booleanValue());
     }
     if (javaValue instanceof List<?> val) {
-      return new Array((List<Value>) val);
+      return array((List<Value>) val);
     }
     if (javaValue instanceof Map<?, ?> val) {
-      return new Dictionary((Map<Value, Value>) val);
+      return val instanceof ValueMap map
+          ? new Dictionary(map)
+          : new Dictionary(ValueMap.copyOf((Map<Value, Value>) val));
     }
     throw new LanguageException("must not reach here");
   }
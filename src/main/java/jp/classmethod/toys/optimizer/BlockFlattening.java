@@ -0,0 +1,43 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.ArrayList;
+import jp.classmethod.toys.interpreter.Ast;
+
+/**
+ * ブロックの入れ子を平らにする. 要素が一つのブロックはその要素に置き換え, ブロックの中のブロックは外側に展開する. 変数のスコープは関数単位なので, ブロックを外しても名前の解決は変わらない.
+ * 末尾の空ブロックは値が null になるので残す.
+ */
+public final class BlockFlattening extends ExpressionPass {
+
+  @Override
+  public String name() {
+    return "block-flattening";
+  }
+
+  @Override
+  protected Ast.Expression rewriteNode(Ast.Expression expression, Statistics statistics) {
+    if (!(expression instanceof Ast.BlockExpression block)) {
+      return expression;
+    }
+    var elements = block.elements();
+    var flattened = new ArrayList<Ast.Expression>(elements.size());
+    var changed = false;
+    for (int i = 0; i < elements.size(); i++) {
+      var element = elements.get(i);
+      var last = i == elements.size() - 1;
+      if (element instanceof Ast.BlockExpression inner && (!last || !inner.elements().isEmpty())) {
+        statistics.count("nested");
+        changed = true;
+        flattened.addAll(inner.elements());
+      } else {
+        flattened.add(element);
+      }
+    }
+    if (flattened.size() == 1) {
+      statistics.count("single");
+      return flattened.get(0);
+    }
+    return changed ? new Ast.BlockExpression(flattened) : block;
+  }
+}
@@ -0,0 +1,41 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import jp.classmethod.toys.interpreter.Ast;
+
+/** 両辺が整数リテラルの二項演算を計算済みのリテラルに置き換える. 0 除算は実行時のエラーにするため畳み込まない */
+public final class ConstantFolding extends ExpressionPass {
+
+  @Override
+  public String name() {
+    return "constant-folding";
+  }
+
+  @Override
+  protected Ast.Expression rewriteNode(Ast.Expression expression, Statistics statistics) {
+    if (expression instanceof Ast.BinaryExpression e
+        && e.lhs() instanceof Ast.IntegerLiteral l
+        && e.rhs() instanceof Ast.IntegerLiteral r) {
+      var lhs = l.value();
+      var rhs = r.value();
+      Ast.Expression folded =
+          switch (e.operator()) {
+            case ADD -> Ast.integer(lhs + rhs);
+            case SUBTRACT -> Ast.integer(lhs - rhs);
+            case MULTIPLY -> Ast.integer(lhs * rhs);
+            case DIVIDE -> rhs == 0 ? null : Ast.integer(lhs / rhs);
+            case LESS_THAN -> new Ast.BoolLiteral(lhs < rhs);
+            case LESS_OR_EQUAL -> new Ast.BoolLiteral(lhs <= rhs);
+            case GREATER_THAN -> new Ast.BoolLiteral(lhs > rhs);
+            case GREATER_OR_EQUAL -> new Ast.BoolLiteral(lhs >= rhs);
+            case EQUAL_EQUAL -> new Ast.BoolLiteral(lhs == rhs);
+            case NOT_EQUAL -> new Ast.BoolLiteral(lhs != rhs);
+          };
+      if (folded != null) {
+        statistics.count("folded");
+        return folded;
+      }
+    }
+    return expression;
+  }
+}
@@ -0,0 +1,34 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+
+/**
+ * 条件が真偽値リテラルの if と while を取り除く. else のない if の条件が偽なら, 同じく null を値とする空のブロックに置き換える. 条件が偽の while は
+ * while の値である true に置き換える.
+ */
+public final class DeadBranchElimination extends ExpressionPass {
+
+  @Override
+  public String name() {
+    return "dead-branch-elimination";
+  }
+
+  @Override
+  protected Ast.Expression rewriteNode(Ast.Expression expression, Statistics statistics) {
+    if (expression instanceof Ast.IfExpression e && e.condition() instanceof Ast.BoolLiteral c) {
+      statistics.count("if");
+      if (c.param()) {
+        return e.thenClause();
+      }
+      return e.elseClause().orElseGet(() -> new Ast.BlockExpression(List.of()));
+    } else if (expression instanceof Ast.WhileExpression e
+        && e.condition() instanceof Ast.BoolLiteral c
+        && !c.param()) {
+      statistics.count("while");
+      return new Ast.BoolLiteral(true);
+    }
+    return expression;
+  }
+}
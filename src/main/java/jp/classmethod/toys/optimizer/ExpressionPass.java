@@ -0,0 +1,95 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Resolver;
+
+/** 式を葉から根に向かって書き換えるパスの土台. 子を書き換えてから {@link #rewriteNode} でその式自身を書き換える */
+abstract class ExpressionPass implements Pass {
+
+  /**
+   * 子を書き換え終えた式を書き換える.
+   *
+   * @param expression 子が書き換え済みの式
+   * @param statistics 集計
+   * @return 書き換えた式. 変えなければ expression をそのまま返す
+   */
+  protected abstract Ast.Expression rewriteNode(Ast.Expression expression, Statistics statistics);
+
+  @Override
+  public Ast.Program apply(Ast.Program program, Statistics statistics) {
+    var definitions = new ArrayList<Ast.TopLevel>(program.definitions().size());
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition f) {
+        definitions.add(
+            new Ast.FunctionDefinition(f.name(), f.args(), rewrite(f.body(), statistics)));
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition g) {
+        definitions.add(
+            new Ast.GlobalVariableDefinition(g.name(), rewrite(g.expression(), statistics)));
+      }
+    }
+    return new Ast.Program(definitions);
+  }
+
+  Ast.Expression rewrite(Ast.Expression expression, Statistics statistics) {
+    return rewriteNode(rewriteChildren(expression, statistics), statistics);
+  }
+
+  private List<Ast.Expression> rewriteAll(List<Ast.Expression> expressions, Statistics statistics) {
+    var result = new ArrayList<Ast.Expression>(expressions.size());
+    for (var expression : expressions) {
+      result.add(rewrite(expression, statistics));
+    }
+    return result;
+  }
+
+  private static boolean isSpawn(Ast.FunctionCall call) {
+    return call.name().equals(Resolver.SPAWN)
+        && call.args().size() == 1
+        && (call.args().get(0) instanceof Ast.FunctionCall
+            || call.args().get(0) instanceof Ast.LabelledCall);
+  }
+
+  private Ast.Expression rewriteChildren(Ast.Expression expression, Statistics statistics) {
+    if (expression instanceof Ast.BinaryExpression e) {
+      return new Ast.BinaryExpression(
+          e.operator(), rewrite(e.lhs(), statistics), rewrite(e.rhs(), statistics));
+    } else if (expression instanceof Ast.Assignment e) {
+      return new Ast.Assignment(e.name(), rewrite(e.expression(), statistics));
+    } else if (expression instanceof Ast.IfExpression e) {
+      return new Ast.IfExpression(
+          rewrite(e.condition(), statistics),
+          rewrite(e.thenClause(), statistics),
+          e.elseClause().map(c -> rewrite(c, statistics)));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      return new Ast.WhileExpression(
+          rewrite(e.condition(), statistics), rewrite(e.body(), statistics));
+    } else if (expression instanceof Ast.ForInExpression e) {
+      return new Ast.ForInExpression(
+          e.name(), rewrite(e.iterable(), statistics), rewrite(e.body(), statistics));
+    } else if (expression instanceof Ast.RangeExpression e) {
+      return new Ast.RangeExpression(rewrite(e.from(), statistics), rewrite(e.to(), statistics));
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return new Ast.BlockExpression(rewriteAll(e.elements(), statistics));
+    } else if (expression instanceof Ast.FunctionCall e && isSpawn(e)) {
+      // spawn(f(...)) の引数は呼び出しのままにしておく. 呼び出しの引数だけを書き換える
+      return new Ast.FunctionCall(
+          e.name(), List.of(rewriteChildren(e.args().get(0), statistics)));
+    } else if (expression instanceof Ast.FunctionCall e) {
+      return new Ast.FunctionCall(e.name(), rewriteAll(e.args(), statistics));
+    } else if (expression instanceof Ast.LabelledCall e) {
+      return new Ast.LabelledCall(
+          e.name(),
+          e.args().stream()
+              .map(p -> new Ast.LabelledParameter(p.name(), rewrite(p.parameter(), statistics)))
+              .toList());
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return new Ast.ArrayLiteral(rewriteAll(e.items(), statistics));
+    } else {
+      // 葉 (リテラル, 変数) と解決済みのノード
+      return expression;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jp.classmethod.toys.interpreter.Ast;
+
+/**
+ * 小さな非再帰関数の呼び出しを本体で置き換える.
+ *
+ * <p>展開するのは, 本体が代入も while も含まず, 引数以外の変数を参照しない関数だけ. 呼び出し元の変数と名前がぶつからず, 関数のフレームを作らなくてよい.
+ * さらに実引数はリテラルか変数に限る. 本体に引数を書き写しても評価の回数や副作用が変わらないようにするため. 変数の実引数は, 未初期化の変数を読んだときのエラーを 消さないよう,
+ * 本体で必ず評価される引数にしか渡さない. また本体で呼ぶ関数が変数に代入すると書き写した変数を読む時点の値が変わるので, 変数の実引数は関数を呼ばない本体にしか渡さない.
+ *
+ * <p>グローバル変数の初期化式は定義順に評価され, まだ定義していない関数を呼ぶとエラーになる. そのエラーを消さないよう, 呼び出しはその時点で定義済みと分かる関数だけを展開する.
+ */
+public final class Inlining implements Pass {
+
+  /** 展開する関数の本体の大きさ (ノード数) の上限 */
+  public static final int DEFAULT_MAX_SIZE = 16;
+
+  private final int maxSize;
+
+  public Inlining() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public Inlining(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public String name() {
+    return "inlining";
+  }
+
+  /**
+   * 展開できる関数
+   *
+   * @param alwaysUsed 本体で必ず読まれる引数
+   * @param callFree 本体が関数を呼ばない
+   */
+  private static final record Candidate(
+      Ast.FunctionDefinition definition, Set<String> alwaysUsed, boolean callFree) {}
+
+  @Override
+  public Ast.Program apply(Ast.Program program, Statistics statistics) {
+    var functions = new HashMap<String, Ast.FunctionDefinition>();
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition f) {
+        functions.put(f.name(), f);
+      }
+    }
+    var candidates = new HashMap<String, Candidate>();
+    for (var f : functions.values()) {
+      var body = unwrap(f.body());
+      if (!f.name().equals("main")
+          && size(body) <= maxSize
+          && isInlinable(body, Set.copyOf(f.args()))
+          && !isRecursive(f.name(), functions)) {
+        var alwaysUsed = new HashSet<String>();
+        collectAlwaysUsed(body, alwaysUsed);
+        candidates.put(
+            f.name(),
+            new Candidate(
+                new Ast.FunctionDefinition(f.name(), f.args(), body),
+                alwaysUsed,
+                calls(body).isEmpty()));
+      }
+    }
+    if (candidates.isEmpty()) {
+      return program;
+    }
+    // 最初のグローバル変数より前に定義した関数は, どの式を評価するときにも定義済み
+    var defined = new HashSet<String>();
+    for (var topLevel : program.definitions()) {
+      if (!(topLevel instanceof Ast.FunctionDefinition f)) {
+        break;
+      }
+      defined.add(f.name());
+    }
+    var pass =
+        new ExpressionPass() {
+          @Override
+          public String name() {
+            return Inlining.this.name();
+          }
+
+          @Override
+          protected Ast.Expression rewriteNode(Ast.Expression expression, Statistics statistics) {
+            if (expression instanceof Ast.FunctionCall call && defined.contains(call.name())) {
+              var candidate = candidates.get(call.name());
+              if (candidate != null && canPass(candidate, call)) {
+                statistics.count("inlined");
+                var bindings = new HashMap<String, Ast.Expression>();
+                var params = candidate.definition().args();
+                for (int i = 0; i < params.size(); i++) {
+                  bindings.put(params.get(i), call.args().get(i));
+                }
+                return substitute(candidate.definition().body(), bindings);
+              }
+            }
+            return expression;
+          }
+        };
+    // 関数の本体は定義した後にしか評価されないので, それより前に定義した関数も定義済み
+    var definitions = new ArrayList<Ast.TopLevel>(program.definitions().size());
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition f) {
+        definitions.add(
+            new Ast.FunctionDefinition(f.name(), f.args(), pass.rewrite(f.body(), statistics)));
+        defined.add(f.name());
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition g) {
+        definitions.add(
+            new Ast.GlobalVariableDefinition(g.name(), pass.rewrite(g.expression(), statistics)));
+      }
+    }
+    return new Ast.Program(definitions);
+  }
+
+  // 要素が一つのブロックは中身だけ見る
+  private static Ast.Expression unwrap(Ast.Expression body) {
+    while (body instanceof Ast.BlockExpression b && b.elements().size() == 1) {
+      body = b.elements().get(0);
+    }
+    return body;
+  }
+
+  private static boolean canPass(Candidate candidate, Ast.FunctionCall call) {
+    var params = candidate.definition().args();
+    if (params.size() != call.args().size()) {
+      // 引数の数の誤りは実行時のエラーとして残す
+      return false;
+    }
+    for (int i = 0; i < params.size(); i++) {
+      var arg = call.args().get(i);
+      var literal = arg instanceof Ast.IntegerLiteral || arg instanceof Ast.BoolLiteral;
+      var variable =
+          arg instanceof Ast.Identifier
+              && candidate.alwaysUsed().contains(params.get(i))
+              && candidate.callFree();
+      if (!literal && !variable) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int size(Ast.Expression expression) {
+    if (expression instanceof Ast.BinaryExpression e) {
+      return 1 + size(e.lhs()) + size(e.rhs());
+    } else if (expression instanceof Ast.IfExpression e) {
+      return 1
+          + size(e.condition())
+          + size(e.thenClause())
+          + e.elseClause().map(Inlining::size).orElse(0);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return 1 + e.elements().stream().mapToInt(Inlining::size).sum();
+    } else if (expression instanceof Ast.FunctionCall e) {
+      return 1 + e.args().stream().mapToInt(Inlining::size).sum();
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return 1 + e.items().stream().mapToInt(Inlining::size).sum();
+    } else {
+      return 1;
+    }
+  }
+
+  private static boolean isInlinable(Ast.Expression expression, Set<String> params) {
+    if (expression instanceof Ast.IntegerLiteral || expression instanceof Ast.BoolLiteral) {
+      return true;
+    } else if (expression instanceof Ast.Identifier e) {
+      return params.contains(e.name());
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return isInlinable(e.lhs(), params) && isInlinable(e.rhs(), params);
+    } else if (expression instanceof Ast.IfExpression e) {
+      return isInlinable(e.condition(), params)
+          && isInlinable(e.thenClause(), params)
+          && e.elseClause().map(c -> isInlinable(c, params)).orElse(true);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return e.elements().stream().allMatch(x -> isInlinable(x, params));
+    } else if (expression instanceof Ast.FunctionCall e) {
+      return e.args().stream().allMatch(x -> isInlinable(x, params));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return e.items().stream().allMatch(x -> isInlinable(x, params));
+    } else {
+      // 代入, while, ラベル付き呼び出しは展開しない
+      return false;
+    }
+  }
+
+  // if の節の中を除き, 本体を評価すると必ず読まれる変数
+  private static void collectAlwaysUsed(Ast.Expression expression, Set<String> names) {
+    if (expression instanceof Ast.Identifier e) {
+      names.add(e.name());
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      collectAlwaysUsed(e.lhs(), names);
+      collectAlwaysUsed(e.rhs(), names);
+    } else if (expression instanceof Ast.IfExpression e) {
+      collectAlwaysUsed(e.condition(), names);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      e.elements().forEach(x -> collectAlwaysUsed(x, names));
+    } else if (expression instanceof Ast.FunctionCall e) {
+      e.args().forEach(x -> collectAlwaysUsed(x, names));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      e.items().forEach(x -> collectAlwaysUsed(x, names));
+    }
+  }
+
+  private static boolean isRecursive(String name, Map<String, Ast.FunctionDefinition> functions) {
+    var visited = new HashSet<String>();
+    var pending = new ArrayDeque<String>(calls(functions.get(name).body()));
+    while (!pending.isEmpty()) {
+      var callee = pending.pop();
+      if (callee.equals(name)) {
+        return true;
+      }
+      var definition = functions.get(callee);
+      if (definition != null && visited.add(callee)) {
+        pending.addAll(calls(definition.body()));
+      }
+    }
+    return false;
+  }
+
+  private static Set<String> calls(Ast.Expression expression) {
+    var names = new HashSet<String>();
+    collectCalls(expression, names);
+    return names;
+  }
+
+  private static void collectCalls(Ast.Expression expression, Set<String> names) {
+    if (expression instanceof Ast.FunctionCall e) {
+      names.add(e.name());
+      e.args().forEach(x -> collectCalls(x, names));
+    } else if (expression instanceof Ast.LabelledCall e) {
+      names.add(e.name());
+      e.args().forEach(p -> collectCalls(p.parameter(), names));
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      collectCalls(e.lhs(), names);
+      collectCalls(e.rhs(), names);
+    } else if (expression instanceof Ast.Assignment e) {
+      collectCalls(e.expression(), names);
+    } else if (expression instanceof Ast.IfExpression e) {
+      collectCalls(e.condition(), names);
+      collectCalls(e.thenClause(), names);
+      e.elseClause().ifPresent(c -> collectCalls(c, names));
+    } else if (expression instanceof Ast.WhileExpression e) {
+      collectCalls(e.condition(), names);
+      collectCalls(e.body(), names);
+    } else if (expression instanceof Ast.ForInExpression e) {
+      collectCalls(e.iterable(), names);
+      collectCalls(e.body(), names);
+    } else if (expression instanceof Ast.RangeExpression e) {
+      collectCalls(e.from(), names);
+      collectCalls(e.to(), names);
+    } else if (expression instanceof Ast.BlockExpression e) {
+      e.elements().forEach(x -> collectCalls(x, names));
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      e.items().forEach(x -> collectCalls(x, names));
+    }
+  }
+
+  // 展開できる本体には引数以外の変数も代入もないので, 変数を実引数に置き換えるだけでよい
+  private static Ast.Expression substitute(
+      Ast.Expression expression, Map<String, Ast.Expression> bindings) {
+    if (expression instanceof Ast.Identifier e) {
+      return bindings.get(e.name());
+    } else if (expression instanceof Ast.BinaryExpression e) {
+      return new Ast.BinaryExpression(
+          e.operator(), substitute(e.lhs(), bindings), substitute(e.rhs(), bindings));
+    } else if (expression instanceof Ast.IfExpression e) {
+      return new Ast.IfExpression(
+          substitute(e.condition(), bindings),
+          substitute(e.thenClause(), bindings),
+          e.elseClause().map(c -> substitute(c, bindings)));
+    } else if (expression instanceof Ast.BlockExpression e) {
+      return new Ast.BlockExpression(
+          e.elements().stream().map(x -> substitute(x, bindings)).toList());
+    } else if (expression instanceof Ast.FunctionCall e) {
+      return new Ast.FunctionCall(
+          e.name(), e.args().stream().map(x -> substitute(x, bindings)).toList());
+    } else if (expression instanceof Ast.ArrayLiteral e) {
+      return new Ast.ArrayLiteral(e.items().stream().map(x -> substitute(x, bindings)).toList());
+    } else {
+      return expression;
+    }
+  }
+}
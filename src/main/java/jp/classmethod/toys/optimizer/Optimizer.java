@@ -0,0 +1,43 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+
+/** {@link Pass} を順に適用する最適化パイプライン. callMain の前にプログラムを一度だけ書き換えて, 実行のたびに同じ定数計算をしないようにする. */
+public final class Optimizer {
+
+  /** 最適化後のプログラムと各パスの集計 */
+  public static final record Result(Ast.Program program, List<Statistics> statistics) {}
+
+  private final List<Pass> passes;
+
+  public Optimizer(List<Pass> passes) {
+    this.passes = List.copyOf(passes);
+  }
+
+  /**
+   * 標準のパイプライン. 先にインライン展開して引数の定数を本体に持ち込み, 畳み込み, 分岐の削除, ブロックの平坦化の順に進める.
+   *
+   * @return {@link Optimizer}
+   */
+  public static Optimizer standard() {
+    return new Optimizer(
+        List.of(
+            new Inlining(),
+            new ConstantFolding(),
+            new DeadBranchElimination(),
+            new BlockFlattening()));
+  }
+
+  public Result optimize(Ast.Program program) {
+    var statistics = new ArrayList<Statistics>(passes.size());
+    for (var pass : passes) {
+      var stats = new Statistics(pass.name());
+      program = pass.apply(program, stats);
+      statistics.add(stats);
+    }
+    return new Result(program, statistics);
+  }
+}
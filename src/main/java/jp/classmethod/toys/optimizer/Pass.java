@@ -0,0 +1,22 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import jp.classmethod.toys.interpreter.Ast;
+
+/**
+ * {@link Optimizer} が順に適用する最適化パス. {@link jp.classmethod.toys.interpreter.Resolver} で解決する前の Ast
+ * を書き換える
+ */
+public interface Pass {
+
+  String name();
+
+  /**
+   * プログラムを書き換える.
+   *
+   * @param program 対象のプログラム
+   * @param statistics 書き換えた箇所を数える
+   * @return 書き換えたプログラム. 何もしなければ program をそのまま返してよい
+   */
+  Ast.Program apply(Ast.Program program, Statistics statistics);
+}
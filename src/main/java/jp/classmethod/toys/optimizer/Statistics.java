@@ -0,0 +1,39 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** 一つのパスが何をしたかの集計. 項目名ごとの回数を持つ */
+public final class Statistics {
+
+  private final String pass;
+
+  private final Map<String, Integer> counters = new LinkedHashMap<>();
+
+  public Statistics(String pass) {
+    this.pass = pass;
+  }
+
+  public String pass() {
+    return pass;
+  }
+
+  public void count(String counter) {
+    counters.merge(counter, 1, Integer::sum);
+  }
+
+  public int get(String counter) {
+    return counters.getOrDefault(counter, 0);
+  }
+
+  public Map<String, Integer> counters() {
+    return Collections.unmodifiableMap(counters);
+  }
+
+  @Override
+  public String toString() {
+    return pass + counters;
+  }
+}
@@ -0,0 +1,352 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Operator;
+
+/**
+ * 構文解析した直後の {@link Ast.Program} を int の列に変換する. 解決済みのノード ({@link Ast.ResolvedIdentifier} など) は扱わない.
+ *
+ * <p>形式は先頭から magic, version, 識別子の表 (個数と, 長さ + UTF-8 の組), トップレベル定義の数と各定義のノード列の位置, ノード列の長さ, ノード列.
+ * ノードは前置順に「タグ, 属性..., 子ノード...」と並べ, 識別子は表の添字で書く. {@link #decode} は識別子の表だけを読み, 定義は {@link
+ * Ast.Program#definitions()} の要素を取り出したときに初めて組み立てる.
+ */
+final class AstCodec {
+
+  static final int MAGIC = 0x544f5953; // "TOYS"
+  static final int VERSION = 3;
+
+  //// ノードのタグ
+  private static final int FUNCTION_DEFINITION = 1;
+  private static final int GLOBAL_VARIABLE_DEFINITION = 2;
+  private static final int INTEGER = 3;
+  private static final int BOOL = 4;
+  private static final int IDENTIFIER = 5;
+  private static final int ASSIGNMENT = 6;
+  private static final int BINARY = 7;
+  private static final int BLOCK = 8;
+  private static final int WHILE = 9;
+  private static final int IF = 10;
+  private static final int IF_ELSE = 11;
+  private static final int CALL = 12;
+  private static final int LABELLED_CALL = 13;
+  private static final int ARRAY = 14;
+  private static final int FOR_IN = 15;
+  private static final int RANGE = 16;
+
+  private static final Operator[] OPERATORS = Operator.values();
+
+  private AstCodec() {}
+
+  /**
+   * プログラムを符号化する.
+   *
+   * @param program 構文解析した直後のプログラム
+   * @return 先頭から読める ByteBuffer
+   */
+  static ByteBuffer encode(Ast.Program program) {
+    var encoder = new Encoder();
+    var definitions = program.definitions();
+    var offsets = new int[definitions.size()];
+    for (int i = 0; i < definitions.size(); i++) {
+      offsets[i] = encoder.size;
+      encoder.topLevel(definitions.get(i));
+    }
+
+    var names = encoder.names;
+    var header = 2 + 1 + 1 + definitions.size() + 1;
+    var nameBytes = new ArrayList<byte[]>(names.size());
+    var nameWords = 0;
+    for (var name : names) {
+      var bytes = name.getBytes(StandardCharsets.UTF_8);
+      nameBytes.add(bytes);
+      nameWords += 1 + (bytes.length + 3) / 4;
+    }
+    var buffer = ByteBuffer.allocate((header + nameWords + encoder.size) * Integer.BYTES);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(names.size());
+    for (var bytes : nameBytes) {
+      buffer.putInt(bytes.length).put(bytes);
+      // int 単位で読めるよう 4 バイト境界に揃える
+      buffer.position((buffer.position() + 3) & ~3);
+    }
+    buffer.putInt(definitions.size());
+    for (var offset : offsets) {
+      buffer.putInt(offset);
+    }
+    buffer.putInt(encoder.size);
+    buffer.asIntBuffer().put(encoder.nodes, 0, encoder.size);
+    return buffer.rewind();
+  }
+
+  /**
+   * 符号化したプログラムを読む. 定義の中身は取り出すまで組み立てないが, 長さと位置はここで確かめるので, 途中で切れたファイルはここで弾く.
+   *
+   * @param buffer {@link #encode} の結果. 位置は先頭
+   * @return プログラム
+   * @throws IllegalArgumentException 形式が違う
+   */
+  static Ast.Program decode(ByteBuffer buffer) {
+    if (readInt(buffer) != MAGIC || readInt(buffer) != VERSION) {
+      throw new IllegalArgumentException("Not a compiled toys program");
+    }
+    var names = new String[readCount(buffer)];
+    for (int i = 0; i < names.length; i++) {
+      var length = readInt(buffer);
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IllegalArgumentException("Bad name length " + length);
+      }
+      var bytes = new byte[length];
+      buffer.get(bytes);
+      names[i] = new String(bytes, StandardCharsets.UTF_8);
+      buffer.position(Math.min((buffer.position() + 3) & ~3, buffer.limit()));
+    }
+    var offsets = new int[readCount(buffer)];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = readInt(buffer);
+    }
+    var size = readInt(buffer);
+    if (size != buffer.remaining() / Integer.BYTES) {
+      throw new IllegalArgumentException(
+          "Expected " + size + " nodes but found " + buffer.remaining() / Integer.BYTES);
+    }
+    for (var offset : offsets) {
+      if (offset < 0 || offset >= size) {
+        throw new IllegalArgumentException("Bad definition offset " + offset);
+      }
+    }
+    return new Ast.Program(new LazyDefinitions(buffer.asIntBuffer(), names, offsets));
+  }
+
+  private static int readInt(ByteBuffer buffer) {
+    if (buffer.remaining() < Integer.BYTES) {
+      throw new IllegalArgumentException("Truncated compiled toys program");
+    }
+    return buffer.getInt();
+  }
+
+  // 要素の数. 要素はどれも int 一つ以上なので, 残りより多ければ壊れている
+  private static int readCount(ByteBuffer buffer) {
+    var count = readInt(buffer);
+    if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+      throw new IllegalArgumentException("Bad count " + count);
+    }
+    return count;
+  }
+
+  // 要素を初めて取り出したときに組み立てて覚えておくリスト
+  private static final class LazyDefinitions extends AbstractList<Ast.TopLevel>
+      implements RandomAccess {
+    private final IntBuffer nodes;
+    private final String[] names;
+    private final int[] offsets;
+    private final Ast.TopLevel[] decoded;
+
+    LazyDefinitions(IntBuffer nodes, String[] names, int[] offsets) {
+      this.nodes = nodes;
+      this.names = names;
+      this.offsets = offsets;
+      this.decoded = new Ast.TopLevel[offsets.length];
+    }
+
+    @Override
+    public Ast.TopLevel get(int index) {
+      var definition = decoded[index];
+      if (definition == null) {
+        definition = new Decoder(nodes, names, offsets[index]).topLevel();
+        decoded[index] = definition;
+      }
+      return definition;
+    }
+
+    @Override
+    public int size() {
+      return offsets.length;
+    }
+  }
+
+  private static final class Encoder {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int[] nodes = new int[256];
+    private int size;
+
+    private void put(int value) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+      }
+      nodes[size++] = value;
+    }
+
+    private void name(String name) {
+      var id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+      }
+      put(id);
+    }
+
+    void topLevel(Ast.TopLevel topLevel) {
+      if (topLevel instanceof Ast.FunctionDefinition e) {
+        put(FUNCTION_DEFINITION);
+        name(e.name());
+        put(e.args().size());
+        e.args().forEach(this::name);
+        expression(e.body());
+      } else if (topLevel instanceof Ast.GlobalVariableDefinition e) {
+        put(GLOBAL_VARIABLE_DEFINITION);
+        name(e.name());
+        expression(e.expression());
+      }
+    }
+
+    private void expressions(List<Ast.Expression> expressions) {
+      put(expressions.size());
+      expressions.forEach(this::expression);
+    }
+
+    void expression(Ast.Expression expression) {
+      if (expression instanceof Ast.IntegerLiteral e) {
+        put(INTEGER);
+        put(e.value());
+      } else if (expression instanceof Ast.BoolLiteral e) {
+        put(BOOL);
+        put(e.param() ? 1 : 0);
+      } else if (expression instanceof Ast.Identifier e) {
+        put(IDENTIFIER);
+        name(e.name());
+      } else if (expression instanceof Ast.Assignment e) {
+        put(ASSIGNMENT);
+        name(e.name());
+        expression(e.expression());
+      } else if (expression instanceof Ast.BinaryExpression e) {
+        put(BINARY);
+        put(e.operator().ordinal());
+        expression(e.lhs());
+        expression(e.rhs());
+      } else if (expression instanceof Ast.BlockExpression e) {
+        put(BLOCK);
+        expressions(e.elements());
+      } else if (expression instanceof Ast.WhileExpression e) {
+        put(WHILE);
+        expression(e.condition());
+        expression(e.body());
+      } else if (expression instanceof Ast.IfExpression e) {
+        put(e.elseClause().isPresent() ? IF_ELSE : IF);
+        expression(e.condition());
+        expression(e.thenClause());
+        e.elseClause().ifPresent(this::expression);
+      } else if (expression instanceof Ast.ForInExpression e) {
+        put(FOR_IN);
+        name(e.name());
+        expression(e.iterable());
+        expression(e.body());
+      } else if (expression instanceof Ast.RangeExpression e) {
+        put(RANGE);
+        expression(e.from());
+        expression(e.to());
+      } else if (expression instanceof Ast.FunctionCall e) {
+        put(CALL);
+        name(e.name());
+        expressions(e.args());
+      } else if (expression instanceof Ast.LabelledCall e) {
+        put(LABELLED_CALL);
+        name(e.name());
+        put(e.args().size());
+        for (var arg : e.args()) {
+          name(arg.name());
+          expression(arg.parameter());
+        }
+      } else if (expression instanceof Ast.ArrayLiteral e) {
+        put(ARRAY);
+        expressions(e.items());
+      } else {
+        throw new IllegalArgumentException(
+            "Cannot encode " + expression.getClass().getSimpleName());
+      }
+    }
+  }
+
+  private static final class Decoder {
+    private final IntBuffer nodes;
+    private final String[] names;
+    private int position;
+
+    Decoder(IntBuffer nodes, String[] names, int position) {
+      this.nodes = nodes;
+      this.names = names;
+      this.position = position;
+    }
+
+    private int next() {
+      return nodes.get(position++);
+    }
+
+    private String name() {
+      return names[next()];
+    }
+
+    Ast.TopLevel topLevel() {
+      var tag = next();
+      if (tag == FUNCTION_DEFINITION) {
+        var name = name();
+        var args = new String[next()];
+        for (int i = 0; i < args.length; i++) {
+          args[i] = name();
+        }
+        return new Ast.FunctionDefinition(name, List.of(args), expression());
+      } else if (tag == GLOBAL_VARIABLE_DEFINITION) {
+        return new Ast.GlobalVariableDefinition(name(), expression());
+      }
+      throw new IllegalArgumentException("Unknown top-level tag " + tag);
+    }
+
+    private List<Ast.Expression> expressions() {
+      var expressions = new Ast.Expression[next()];
+      for (int i = 0; i < expressions.length; i++) {
+        expressions[i] = expression();
+      }
+      return List.of(expressions);
+    }
+
+    Ast.Expression expression() {
+      var tag = next();
+      return switch (tag) {
+        case INTEGER -> new Ast.IntegerLiteral(next());
+        case BOOL -> new Ast.BoolLiteral(next() != 0);
+        case IDENTIFIER -> new Ast.Identifier(name());
+        case ASSIGNMENT -> new Ast.Assignment(name(), expression());
+        case BINARY -> new Ast.BinaryExpression(OPERATORS[next()], expression(), expression());
+        case BLOCK -> new Ast.BlockExpression(expressions());
+        case WHILE -> new Ast.WhileExpression(expression(), expression());
+        case IF -> new Ast.IfExpression(expression(), expression(), Optional.empty());
+        case IF_ELSE -> new Ast.IfExpression(expression(), expression(), Optional.of(expression()));
+        case CALL -> new Ast.FunctionCall(name(), expressions());
+        case LABELLED_CALL -> {
+          var name = name();
+          var args = new Ast.LabelledParameter[next()];
+          for (int i = 0; i < args.length; i++) {
+            args[i] = new Ast.LabelledParameter(name(), expression());
+          }
+          yield new Ast.LabelledCall(name, List.of(args));
+        }
+        case ARRAY -> new Ast.ArrayLiteral(expressions());
+        case FOR_IN -> new Ast.ForInExpression(name(), expression(), expression());
+        case RANGE -> new Ast.RangeExpression(expression(), expression());
+        default -> throw new IllegalArgumentException("Unknown expression tag " + tag);
+      };
+    }
+  }
+}
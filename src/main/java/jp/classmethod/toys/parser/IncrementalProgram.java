@@ -0,0 +1,125 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Interpreter;
+
+/**
+ * 編集されていくソースとその解析結果を持ち, 編集のたびに影響するトップレベル定義だけを読み直す.
+ *
+ * <p>編集範囲に触れる定義と, その前後の変更されていない定義に挟まれたテキストだけを {@link PrattParser} で読み直す. 読み直した定義と元の定義を比べ,
+ * 実際に変わったものを {@link Change} として返すので, {@link Change#applyTo(Interpreter)} で実行中の {@link Interpreter}
+ * に差し替えられる.
+ */
+public final class IncrementalProgram {
+
+  /** トップレベル定義とそのテキスト上の範囲 [start, end) */
+  public static final record Span(int start, int end, Ast.TopLevel definition) {
+    Span shift(int delta) {
+      return new Span(start + delta, end + delta, definition);
+    }
+  }
+
+  /** 一回の編集で消えた定義と増えた定義. 中身が変わった定義は両方に入る */
+  public static final record Change(List<Ast.TopLevel> removed, List<Ast.TopLevel> added) {
+
+    public boolean isEmpty() {
+      return removed.isEmpty() && added.isEmpty();
+    }
+
+    public void applyTo(Interpreter interpreter) {
+      interpreter.update(removed, added);
+    }
+  }
+
+  private String source;
+  private List<Span> spans;
+
+  private IncrementalProgram(String source, List<Span> spans) {
+    this.source = source;
+    this.spans = spans;
+  }
+
+  public static IncrementalProgram parse(String source) {
+    return new IncrementalProgram(source, PrattParser.parseSpans(source, 0));
+  }
+
+  public String source() {
+    return source;
+  }
+
+  public List<Span> spans() {
+    return List.copyOf(spans);
+  }
+
+  public Ast.Program program() {
+    return new Ast.Program(spans.stream().map(Span::definition).toList());
+  }
+
+  /**
+   * テキストを編集して読み直す. 構文エラーなら {@link jp.classmethod.toys.interpreter.LanguageException} を投げ, 状態は変えない.
+   *
+   * @param offset 編集位置
+   * @param removedLength 削除する文字数
+   * @param inserted 挿入する文字列
+   * @return 変わった定義
+   */
+  public Change edit(int offset, int removedLength, String inserted) {
+    if (offset < 0 || removedLength < 0 || offset + removedLength > source.length()) {
+      throw new IndexOutOfBoundsException("edit " + offset + "+" + removedLength);
+    }
+    var editEnd = offset + removedLength;
+    var delta = inserted.length() - removedLength;
+    var newSource = source.substring(0, offset) + inserted + source.substring(editEnd);
+
+    // 編集範囲に触れる (端が接するものも含む) 定義を first..last とする
+    var first = 0;
+    while (first < spans.size() && spans.get(first).end() < offset) {
+      first++;
+    }
+    var last = first;
+    while (last < spans.size() && spans.get(last).start() <= editEnd) {
+      last++;
+    }
+    // 変更されていない前後の定義に挟まれた範囲を読み直す
+    var regionStart = first == 0 ? 0 : spans.get(first - 1).end();
+    var regionEnd = last == spans.size() ? source.length() : spans.get(last).start();
+    var region = newSource.substring(regionStart, regionEnd + delta);
+
+    List<Span> newSpans;
+    List<Span> reparsed;
+    if (last < spans.size() && endsInComment(region)) {
+      // 行コメントが後ろの定義を飲み込むかもしれないので全体を読み直す
+      newSpans = PrattParser.parseSpans(newSource, 0);
+      reparsed = newSpans;
+      first = 0;
+      last = spans.size();
+    } else {
+      reparsed = PrattParser.parseSpans(region, regionStart);
+      newSpans = new ArrayList<>(spans.size() - (last - first) + reparsed.size());
+      newSpans.addAll(spans.subList(0, first));
+      newSpans.addAll(reparsed);
+      for (var span : spans.subList(last, spans.size())) {
+        newSpans.add(span.shift(delta));
+      }
+    }
+
+    var before = spans.subList(first, last).stream().map(Span::definition).toList();
+    var after = reparsed.stream().map(Span::definition).toList();
+    var removed = new ArrayList<>(before);
+    removed.removeAll(after);
+    var added = new ArrayList<>(after);
+    added.removeAll(before);
+
+    source = newSource;
+    spans = newSpans;
+    return new Change(removed, added);
+  }
+
+  // 文字列リテラルがない言語なので, 最終行に "//" があれば行末までコメントになっている
+  private static boolean endsInComment(String region) {
+    return region.indexOf("//", region.lastIndexOf('\n') + 1) >= 0;
+  }
+}
@@ -0,0 +1,302 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import jp.classmethod.toys.interpreter.LanguageException;
+
+/**
+ * 表駆動の字句解析器. {@link CharSequence} (メモリマップしたファイルを読む {@link CharBuffer} など) を先頭から 1 パスで読み, {@link
+ * #next()} のたびにトークンを一つ進める. トークンはオブジェクトを作らず, 種類と位置をフィールドに持つ.
+ */
+public final class Lexer {
+
+  public enum TokenKind {
+    EOF,
+    IDENT,
+    INTEGER,
+    // 予約語
+    GLOBAL,
+    DEFINE,
+    IF,
+    ELSE,
+    WHILE,
+    FOR,
+    IN,
+    TRUE,
+    FALSE,
+    // 記号
+    PLUS,
+    MINUS,
+    ASTER,
+    SLASH,
+    LT,
+    LT_EQ,
+    GT,
+    GT_EQ,
+    EQ,
+    EQ_EQ,
+    NOT_EQ,
+    LPAREN,
+    RPAREN,
+    LBRACE,
+    RBRACE,
+    LBRACKET,
+    RBRACKET,
+    COMMA,
+    SEMI_COLON
+  }
+
+  // ASCII の文字種表. 分岐を switch 一つにまとめるために使う
+  private static final byte OTHER = 0;
+  private static final byte SPACE = 1;
+  private static final byte LETTER = 2;
+  private static final byte DIGIT = 3;
+  private static final byte SYMBOL = 4;
+  private static final byte[] CLASSES = new byte[128];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      CLASSES[c] = LETTER;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      CLASSES[c] = LETTER;
+    }
+    CLASSES['_'] = LETTER;
+    for (char c = '0'; c <= '9'; c++) {
+      CLASSES[c] = DIGIT;
+    }
+    for (char c : " \t\n\r\f\u000B\u001C\u001D\u001E\u001F".toCharArray()) {
+      CLASSES[c] = SPACE;
+    }
+    for (char c : "+-*/<>=!(){}[],;".toCharArray()) {
+      CLASSES[c] = SYMBOL;
+    }
+  }
+
+  private static final Map<String, TokenKind> KEYWORDS =
+      Map.of(
+          "global", TokenKind.GLOBAL,
+          "define", TokenKind.DEFINE,
+          "if", TokenKind.IF,
+          "else", TokenKind.ELSE,
+          "while", TokenKind.WHILE,
+          "for", TokenKind.FOR,
+          "in", TokenKind.IN,
+          "true", TokenKind.TRUE,
+          "false", TokenKind.FALSE);
+
+  private final CharSequence source;
+  private final int length;
+  // 同じ識別子は同じ String を共有する
+  private final Map<CharSequence, String> names = new HashMap<>();
+
+  private int position;
+  private TokenKind kind;
+  private int start;
+  private int end;
+  private int previousEnd;
+  private int intValue;
+  private String text;
+
+  public Lexer(CharSequence source) {
+    this.source = source;
+    this.length = source.length();
+  }
+
+  /**
+   * ファイルをメモリマップして字句解析器を作る.
+   *
+   * @param path ソースファイル (UTF-8)
+   * @return {@link Lexer}
+   */
+  public static Lexer mapped(Path path) throws IOException {
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      var bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new Lexer(StandardCharsets.UTF_8.decode(bytes));
+    }
+  }
+
+  public TokenKind kind() {
+    return kind;
+  }
+
+  public int start() {
+    return start;
+  }
+
+  public int end() {
+    return end;
+  }
+
+  /** 一つ前のトークンの終了位置 */
+  public int previousEnd() {
+    return previousEnd;
+  }
+
+  /** INTEGER トークンの値 */
+  public int intValue() {
+    return intValue;
+  }
+
+  /** IDENT トークンの名前 */
+  public String text() {
+    return text;
+  }
+
+  /**
+   * 次のトークンへ進む.
+   *
+   * @return 新しいトークンの種類
+   */
+  public TokenKind next() {
+    previousEnd = end;
+    skipSpacesAndComments();
+    start = position;
+    if (position >= length) {
+      end = position;
+      return kind = TokenKind.EOF;
+    }
+    var c = source.charAt(position);
+    var cls = c < 128 ? CLASSES[c] : OTHER;
+    switch (cls) {
+      case LETTER -> lexIdentifier();
+      case DIGIT -> lexInteger(false);
+      case SYMBOL -> lexSymbol(c);
+      default -> throw error("unexpected character '" + c + "'");
+    }
+    end = position;
+    return kind;
+  }
+
+  private void skipSpacesAndComments() {
+    while (position < length) {
+      var c = source.charAt(position);
+      if (c < 128 ? CLASSES[c] == SPACE : Character.isWhitespace(c)) {
+        position++;
+      } else if (c == '/' && position + 1 < length && source.charAt(position + 1) == '/') {
+        // 行末までコメント
+        while (position < length && source.charAt(position) != '\n') {
+          position++;
+        }
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void lexIdentifier() {
+    var from = position;
+    while (position < length) {
+      var c = source.charAt(position);
+      if (c >= 128 || (CLASSES[c] != LETTER && CLASSES[c] != DIGIT)) {
+        break;
+      }
+      position++;
+    }
+    var word = source.subSequence(from, position);
+    var keyword = KEYWORDS.get(word.toString());
+    if (keyword != null) {
+      kind = keyword;
+      text = null;
+    } else {
+      kind = TokenKind.IDENT;
+      text = names.computeIfAbsent(word.toString(), CharSequence::toString);
+    }
+  }
+
+  private void lexInteger(boolean negative) {
+    long value = 0;
+    while (position < length) {
+      var c = source.charAt(position);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      value = value * 10 + (c - '0');
+      if (value > (long) Integer.MAX_VALUE + 1) {
+        throw error("integer literal is too large");
+      }
+      position++;
+    }
+    value = negative ? -value : value;
+    if (value > Integer.MAX_VALUE) {
+      throw error("integer literal is too large");
+    }
+    kind = TokenKind.INTEGER;
+    intValue = (int) value;
+  }
+
+  private void lexSymbol(char c) {
+    position++;
+    kind =
+        switch (c) {
+          case '+' -> TokenKind.PLUS;
+          case '-' -> TokenKind.MINUS;
+          case '*' -> TokenKind.ASTER;
+          case '/' -> TokenKind.SLASH;
+          case '<' -> follows('=') ? TokenKind.LT_EQ : TokenKind.LT;
+          case '>' -> follows('=') ? TokenKind.GT_EQ : TokenKind.GT;
+          case '=' -> follows('=') ? TokenKind.EQ_EQ : TokenKind.EQ;
+          case '!' -> {
+            if (!follows('=')) {
+              throw error("unexpected character '!'");
+            }
+            yield TokenKind.NOT_EQ;
+          }
+          case '(' -> TokenKind.LPAREN;
+          case ')' -> TokenKind.RPAREN;
+          case '{' -> TokenKind.LBRACE;
+          case '}' -> TokenKind.RBRACE;
+          case '[' -> TokenKind.LBRACKET;
+          case ']' -> TokenKind.RBRACKET;
+          case ',' -> TokenKind.COMMA;
+          default -> TokenKind.SEMI_COLON;
+        };
+  }
+
+  private boolean follows(char c) {
+    if (position < length && source.charAt(position) == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * 直前に読んだ MINUS の直後に数字が続いていれば負の整数リテラルとして読む. {@link Parsers#integer} が "-?\d+" を受け付けるのに合わせるため,
+   * 前置位置にある '-' に限って構文解析器から呼ぶ.
+   *
+   * @return 負の整数リテラルとして読めたかどうか
+   */
+  boolean negativeInteger() {
+    if (kind == TokenKind.MINUS
+        && position < length
+        && source.charAt(position) >= '0'
+        && source.charAt(position) <= '9') {
+      lexInteger(true);
+      end = position;
+      return true;
+    }
+    return false;
+  }
+
+  LanguageException error(String message) {
+    int line = 1;
+    int column = 1;
+    for (int i = 0; i < start && i < length; i++) {
+      if (source.charAt(i) == '\n') {
+        line++;
+        column = 1;
+      } else {
+        column++;
+      }
+    }
+    return new LanguageException(message + " at " + line + ":" + column);
+  }
+}
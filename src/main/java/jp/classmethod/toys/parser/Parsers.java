@@ -3,12 +3,18 @@ package jp.classmethod.toys.parser;
 
 import static org.javafp.parsecj.Text.*;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
 import jp.classmethod.toys.exceptions.UnimplementedException;
 import jp.classmethod.toys.interpreter.Ast;
 import org.javafp.data.IList;
 import org.javafp.data.Unit;
+import org.javafp.parsecj.ConsumedT;
 import org.javafp.parsecj.Parser;
+import org.javafp.parsecj.Reply;
+import org.javafp.parsecj.input.Input;
 
 public class Parsers {
 
@@ -37,6 +43,10 @@ public class Parsers {
   public static final Parser<Character, Unit> DEFINE = string("define").then(SPACINGS);
   public static final Parser<Character, Unit> LBRACE = string("{").then(SPACINGS);
   public static final Parser<Character, Unit> RBRACE = string("}").then(SPACINGS);
+  public static final Parser<Character, Unit> FOR = string("for").then(SPACINGS);
+  public static final Parser<Character, Unit> IN = string("in").then(SPACINGS);
+  // "to" は for-in の中でだけ意味を持つので, 変数名にも使える
+  public static final Parser<Character, Unit> TO = string("to").then(SPACINGS);
   public static final Parser<Character, String> IDENT =
       regex("[a-zA-Z_][a-zA-Z0-9_]*").bind(name -> SPACINGS.map(__ -> name));
   public static final Parser<Character, Ast.IntegerLiteral> integer =
@@ -44,133 +54,279 @@ public class Parsers {
           .map(Ast::integer) // Ast::integer で IntegerLiteral に変換
           .bind(v -> SPACINGS.map(__ -> v)); // ここの Operation がよくわかっていない???:
 
+  //// packrat モード
+  // 各規則のパーサは最初に呼ばれたときに一度だけ組み立ててキャッシュする (再帰呼び出しのたびに組み直さない).
+  // さらに parsePackrat で解析している間は (規則, 位置) ごとに結果を覚えておき, attempt による後戻りで同じ位置を読み直さない.
+  private enum Rule {
+    EXPRESSION,
+    ADDITIVE,
+    MULTITIVE,
+    PRIMARY,
+    FUNCTION_CALL,
+    ARGUMENTS,
+    LABELLED_CALL,
+    LABELLED_ARGUMENTS,
+    ARRAY_LITERAL,
+    IDENTIFIER,
+    BOOL_LITERAL,
+    PROGRAM,
+    TOP_LEVEL_DEFINITION,
+    GLOBAL_VARIABLE_DEFINITION,
+    FUNCTION_DEFINITION,
+    BLOCK_EXPRESSION,
+    LINE,
+    FOR_IN_EXPRESSION
+  }
+
+  // パーサは不変なので, 複数スレッドから同時に組み立てても同じものが入るだけ
+  private static final Parser<?, ?>[] CACHE = new Parser<?, ?>[Rule.values().length];
+
+  private static final ThreadLocal<Map<Long, Memo<?>>> MEMO = new ThreadLocal<>();
+
+  private static final record Memo<A>(boolean consumed, Reply<Character, A> reply) {}
+
+  @SuppressWarnings("unchecked")
+  private static <A> Parser<Character, A> cached(
+      Rule rule, Supplier<Parser<Character, A>> builder) {
+    var parser = (Parser<Character, A>) CACHE[rule.ordinal()];
+    if (parser == null) {
+      parser = memoize(rule, builder.get());
+      CACHE[rule.ordinal()] = parser;
+    }
+    return parser;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <A> Parser<Character, A> memoize(Rule rule, Parser<Character, A> parser) {
+    return input -> {
+      var table = MEMO.get();
+      if (table == null) {
+        return parser.apply(input);
+      }
+      var key = ((long) rule.ordinal() << 32) | input.position();
+      var memo = (Memo<A>) table.get(key);
+      if (memo == null) {
+        var result = parser.apply(input);
+        memo = new Memo<>(result.isConsumed(), result.getReply());
+        table.put(key, memo);
+      }
+      var reply = memo.reply();
+      return ConsumedT.of(memo.consumed(), () -> reply);
+    };
+  }
+
+  /**
+   * packrat モードで解析する. 解析中は規則と位置の組ごとに結果を覚えるので, 後戻りがあっても入力の長さに対して線形時間で終わる.
+   *
+   * @param parser 使うパーサ. {@link #program()} など
+   * @param source 入力
+   * @return 解析結果
+   */
+  public static <A> Reply<Character, A> parsePackrat(Parser<Character, A> parser, String source) {
+    var previous = MEMO.get();
+    MEMO.set(new HashMap<>());
+    try {
+      return parser.parse(Input.of(source));
+    } finally {
+      if (previous == null) {
+        MEMO.remove();
+      } else {
+        MEMO.set(previous);
+      }
+    }
+  }
+
   // expression <- additive;
   public static Parser<Character, Ast.Expression> expression() {
-    return additive();
+    return cached(Rule.EXPRESSION, Parsers::additive);
   }
 
   // additive <- multitive
   //     ( '+' multitive / '-' multitive)*;
 
   public static Parser<Character, Ast.Expression> additive() {
-    Parser<Character, BinaryOperator<Ast.Expression>> add = PLUS.map(op -> Ast::add);
-    Parser<Character, BinaryOperator<Ast.Expression>> sub = MINUS.map(op -> Ast::subtract);
+    return cached(
+        Rule.ADDITIVE,
+        () -> {
+          Parser<Character, BinaryOperator<Ast.Expression>> add = PLUS.map(op -> Ast::add);
+          Parser<Character, BinaryOperator<Ast.Expression>> sub = MINUS.map(op -> Ast::subtract);
 
-    return multitive().chainl1(add.or(sub));
+          return multitive().chainl1(add.or(sub));
+        });
   }
 
   public static Parser<Character, Ast.Expression> multitive() {
-    Parser<Character, BinaryOperator<Ast.Expression>> mul = ASTER.map(op -> Ast::multiply);
-    Parser<Character, BinaryOperator<Ast.Expression>> div = SLASH.map(op -> Ast::divide);
+    return cached(
+        Rule.MULTITIVE,
+        () -> {
+          Parser<Character, BinaryOperator<Ast.Expression>> mul = ASTER.map(op -> Ast::multiply);
+          Parser<Character, BinaryOperator<Ast.Expression>> div = SLASH.map(op -> Ast::divide);
 
-    return primary().chainl1(mul.or(div));
+          return primary().chainl1(mul.or(div));
+        });
   }
 
   public static Parser<Character, Ast.Expression> primary() {
-    return LPAREN
-        .bind(_1 -> expression().bind(v -> RPAREN.map(_2 -> v)))
-        .or(integer)
-        .or(functionCall())
-        .or(labelledCall())
-        .or(arrayLiteral())
-        .or(boolLiteral())
-        .or(identifier());
+    return cached(
+        Rule.PRIMARY,
+        () ->
+            LPAREN
+                .bind(_1 -> expression().bind(v -> RPAREN.map(_2 -> v)))
+                .or(integer)
+                .or(functionCall())
+                .or(labelledCall())
+                .or(arrayLiteral())
+                .or(boolLiteral())
+                .or(identifier()));
   }
 
   // Example func(0, "fuga")
   public static Parser<Character, Ast.FunctionCall> functionCall() {
-    return IDENT
-        .bind(
-            name ->
-                expression()
-                    .sepBy(COMMA) // separate
-                    .between(LPAREN, RPAREN) // ( and )
-                    .map(params -> new Ast.FunctionCall(name, params.toList())) // 引数を List にして呼び出し
-            )
-        .attempt(); // ???
+    return cached(
+        Rule.FUNCTION_CALL,
+        () ->
+            IDENT
+                .bind(
+                    name ->
+                        arguments()
+                            .map(
+                                params ->
+                                    new Ast.FunctionCall(
+                                        name, params.toList()))) // 引数を List にして呼び出し
+                .attempt()); // ???
+  }
+
+  // (expression, expression, ...). 関数名ごとに組み直さないよう規則として切り出す
+  private static Parser<Character, IList<Ast.Expression>> arguments() {
+    return cached(
+        Rule.ARGUMENTS,
+        () ->
+            expression()
+                .sepBy(COMMA) // separate
+                .between(LPAREN, RPAREN)); // ( and )
   }
 
   // Example func[num = 0, str = "fuga"]
   public static Parser<Character, Ast.LabelledCall> labelledCall() {
-    return IDENT
-        .bind(
-            name ->
-                IDENT
-                    .bind(
-                        label ->
-                            EQ.then(expression())
-                                .map(param -> new Ast.LabelledParameter(label, param)))
-                    .sepBy(COMMA)
-                    .between(LBRACKET, RBRACKET)
-                    .map(params -> new Ast.LabelledCall(name, params.toList())))
-        .attempt();
+    return cached(
+        Rule.LABELLED_CALL,
+        () ->
+            IDENT
+                .bind(
+                    name ->
+                        labelledArguments()
+                            .map(params -> new Ast.LabelledCall(name, params.toList())))
+                .attempt());
+  }
+
+  // [label = expression, ...]
+  private static Parser<Character, IList<Ast.LabelledParameter>> labelledArguments() {
+    return cached(
+        Rule.LABELLED_ARGUMENTS,
+        () ->
+            IDENT
+                .bind(
+                    label ->
+                        EQ.then(expression()).map(param -> new Ast.LabelledParameter(label, param)))
+                .sepBy(COMMA)
+                .between(LBRACKET, RBRACKET));
   }
 
   // Example [0, 1, 2, 3, 4]
   public static Parser<Character, Ast.ArrayLiteral> arrayLiteral() {
-    return LBRACKET.bind(
-        __1 ->
-            expression()
-                .sepBy(COMMA)
-                .bind(params -> RBRACKET.map(__2 -> new Ast.ArrayLiteral(params.toList()))));
+    return cached(
+        Rule.ARRAY_LITERAL,
+        () ->
+            LBRACKET.bind(
+                __1 ->
+                    expression()
+                        .sepBy(COMMA)
+                        .bind(
+                            params -> RBRACKET.map(__2 -> new Ast.ArrayLiteral(params.toList())))));
   }
 
   public static Parser<Character, Ast.Identifier> identifier() {
-    return IDENT.map(Ast.Identifier::new);
+    return cached(Rule.IDENTIFIER, () -> IDENT.map(Ast.Identifier::new));
   }
 
   public static Parser<Character, Ast.BoolLiteral> boolLiteral() {
-    return TRUE.map(__ -> new Ast.BoolLiteral(true))
-        .or(FALSE.map(__ -> new Ast.BoolLiteral(false)));
+    return cached(
+        Rule.BOOL_LITERAL,
+        () ->
+            TRUE.map(__ -> new Ast.BoolLiteral(true))
+                .or(FALSE.map(__ -> new Ast.BoolLiteral(false))));
   }
 
   public static Parser<Character, Ast.Program> program() {
-    return SPACINGS.bind(
-        _1 -> topLevelDefinition().many().map(IList::toList).map(Ast.Program::new));
+    return cached(
+        Rule.PROGRAM,
+        () ->
+            SPACINGS.bind(
+                _1 -> topLevelDefinition().many().map(IList::toList).map(Ast.Program::new)));
   }
 
   public static Parser<Character, Ast.TopLevel> topLevelDefinition() {
-    return globalVariableDefinition()
-        .map(g -> (Ast.TopLevel) g)
-        .or(functionDefinition().map(f -> (Ast.TopLevel) f));
+    return cached(
+        Rule.TOP_LEVEL_DEFINITION,
+        () ->
+            globalVariableDefinition()
+                .map(g -> (Ast.TopLevel) g)
+                .or(functionDefinition().map(f -> (Ast.TopLevel) f)));
   }
 
   public static Parser<Character, Ast.GlobalVariableDefinition> globalVariableDefinition() {
-    // example => global hoge = "aaaaa";
-    var defGlobal = GLOBAL.then(IDENT); // global 宣言が来たら, identifier が定義される
-    var defInitializer = EQ.then(expression()); // = より後ろは任意の expression()
-    return defGlobal.bind(
-        name ->
-            defInitializer.bind(
-                expression ->
-                    SEMI_COLON.map(_1 -> new Ast.GlobalVariableDefinition(name, expression))));
+    return cached(
+        Rule.GLOBAL_VARIABLE_DEFINITION,
+        () -> {
+          // example => global hoge = "aaaaa";
+          var defGlobal = GLOBAL.then(IDENT); // global 宣言が来たら, identifier が定義される
+          var defInitializer = EQ.then(expression()); // = より後ろは任意の expression()
+          return defGlobal.bind(
+              name ->
+                  defInitializer.bind(
+                      expression ->
+                          SEMI_COLON.map(
+                              _1 -> new Ast.GlobalVariableDefinition(name, expression))));
+        });
   }
 
   public static Parser<Character, Ast.FunctionDefinition> functionDefinition() {
-    var defName = DEFINE.then(IDENT);
-    var defArgs = IDENT.sepBy(COMMA).between(LPAREN, RPAREN);
-    return defName.bind(
-        name ->
-            defArgs.bind(
-                args ->
-                    blockExpression()
-                        .map(body -> new Ast.FunctionDefinition(name, args.toList(), body))));
+    return cached(
+        Rule.FUNCTION_DEFINITION,
+        () -> {
+          var defName = DEFINE.then(IDENT);
+          var defArgs = IDENT.sepBy(COMMA).between(LPAREN, RPAREN);
+          return defName.bind(
+              name ->
+                  defArgs.bind(
+                      args ->
+                          blockExpression()
+                              .map(body -> new Ast.FunctionDefinition(name, args.toList(), body))));
+        });
   }
 
   public static Parser<Character, Ast.BlockExpression> blockExpression() {
-    return LBRACE
-        .bind(__ -> line().many())
-        .bind(expressions -> RBRACE.map(__ -> new Ast.BlockExpression(expressions.toList())));
+    return cached(
+        Rule.BLOCK_EXPRESSION,
+        () ->
+            LBRACE
+                .bind(__ -> line().many())
+                .bind(
+                    expressions ->
+                        RBRACE.map(__ -> new Ast.BlockExpression(expressions.toList()))));
   }
 
   public static Parser<Character, Ast.Expression> line() {
-    return println()
-        .or(whileExpression())
-        .or(ifExpression())
-        .or(forInExpression())
-        .or(assignment())
-        .or(expressionLine())
-        .or(blockExpression());
+    return cached(
+        Rule.LINE,
+        () ->
+            println()
+                .or(whileExpression())
+                .or(ifExpression())
+                .or(forInExpression())
+                .or(assignment())
+                .or(expressionLine())
+                .or(blockExpression()));
   }
 
   public static Parser<Character, Ast.Expression> println() {
@@ -185,8 +341,40 @@ public class Parsers {
     throw new UnimplementedException("whileExpression");
   }
 
+  // forInExpression <- "for" "(" identifier "in" expression ("to" expression)? ")" body;
+  // body <- "{" (expression ";"?)* "}" / expression ";"?
+  // line はまだ println などが揃っておらず組み立てられないので, 本体は式か式を並べたブロックに限る
   public static Parser<Character, Ast.Expression> forInExpression() {
-    throw new UnimplementedException("forInExpression");
+    return cached(
+        Rule.FOR_IN_EXPRESSION,
+        () -> {
+          // "format = 1;" のような行を読み違えないよう, "for (" までは後戻りできるようにする
+          var header = FOR.then(LPAREN).attempt().then(IDENT);
+          var iterable =
+              IN.then(expression())
+                  .bind(
+                      from ->
+                          TO.then(expression())
+                              .optionalOpt()
+                              .map(
+                                  to ->
+                                      to.<Ast.Expression>map(t -> new Ast.RangeExpression(from, t))
+                                          .orElse(from)));
+          var statement = expression().bind(e -> SEMI_COLON.optionalOpt().map(__ -> e));
+          Parser<Character, Ast.Expression> block =
+              LBRACE
+                  .then(statement.many())
+                  .bind(elements -> RBRACE.map(__ -> new Ast.BlockExpression(elements.toList())));
+          var body = block.or(statement);
+          return header.bind(
+              name ->
+                  iterable.bind(
+                      source ->
+                          RPAREN.then(
+                              body.map(
+                                  b ->
+                                      (Ast.Expression) new Ast.ForInExpression(name, source, b)))));
+        });
   }
 
   public static Parser<Character, Ast.Expression> assignment() {
@@ -0,0 +1,324 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.LanguageException;
+import jp.classmethod.toys.interpreter.Operator;
+import jp.classmethod.toys.parser.Lexer.TokenKind;
+
+/**
+ * {@link Lexer} のトークン列を読む手書きの構文解析器. 二項演算子は優先順位法 (Pratt) で読む. {@link Parsers#program()} と同じ {@link
+ * Ast.Program} を作るが, 文字単位のコンビネータも後戻りも使わないので大きなスクリプトでも速い.
+ *
+ * <p>文法は PEG.md の通り. {@link Parsers} と同じく {@code -} の直後に数字が続く前置位置の {@code -} は負の整数リテラルとして読む.
+ */
+public final class PrattParser {
+
+  // 二項演算子の結合力. 大きいほど強く結びつく. どれも左結合
+  private static final int COMPARATIVE = 1;
+  private static final int ADDITIVE = 2;
+  private static final int MULTITIVE = 3;
+
+  private final Lexer lexer;
+
+  private PrattParser(Lexer lexer) {
+    this.lexer = lexer;
+    lexer.next();
+  }
+
+  public static Ast.Program parseProgram(CharSequence source) {
+    return new PrattParser(new Lexer(source)).program();
+  }
+
+  /**
+   * ファイルをメモリマップして読む.
+   *
+   * @param path ソースファイル (UTF-8)
+   * @return {@link Ast.Program}
+   */
+  public static Ast.Program parseProgram(Path path) throws IOException {
+    return new PrattParser(Lexer.mapped(path)).program();
+  }
+
+  /**
+   * トップレベル定義ごとに元のテキスト上の範囲を付けて読む. {@link IncrementalProgram} が編集箇所だけを読み直すのに使う.
+   *
+   * @param source 入力
+   * @param offset 範囲に足す位置. source が大きなテキストの一部ならその開始位置
+   * @return 出現順の {@link IncrementalProgram.Span}
+   */
+  static List<IncrementalProgram.Span> parseSpans(CharSequence source, int offset) {
+    var parser = new PrattParser(new Lexer(source));
+    var spans = new ArrayList<IncrementalProgram.Span>();
+    while (!parser.at(TokenKind.EOF)) {
+      var start = parser.lexer.start();
+      var definition = parser.topLevelDefinition();
+      spans.add(
+          new IncrementalProgram.Span(
+              offset + start, offset + parser.lexer.previousEnd(), definition));
+    }
+    return spans;
+  }
+
+  public static Ast.Expression parseExpression(CharSequence source) {
+    var parser = new PrattParser(new Lexer(source));
+    var expression = parser.expression(0);
+    parser.expect(TokenKind.EOF);
+    return expression;
+  }
+
+  //// 字句の扱い
+  private boolean at(TokenKind kind) {
+    return lexer.kind() == kind;
+  }
+
+  private boolean accept(TokenKind kind) {
+    if (at(kind)) {
+      lexer.next();
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(TokenKind kind) {
+    if (!accept(kind)) {
+      throw unexpected(kind.name());
+    }
+  }
+
+  private String identifier() {
+    if (!at(TokenKind.IDENT)) {
+      throw unexpected("identifier");
+    }
+    var name = lexer.text();
+    lexer.next();
+    return name;
+  }
+
+  private LanguageException unexpected(String expected) {
+    return lexer.error("expected " + expected + " but got " + lexer.kind());
+  }
+
+  //// TopLevel
+  // program <- topLevelDefinition*;
+  private Ast.Program program() {
+    var definitions = new ArrayList<Ast.TopLevel>();
+    while (!at(TokenKind.EOF)) {
+      definitions.add(topLevelDefinition());
+    }
+    return new Ast.Program(definitions);
+  }
+
+  private Ast.TopLevel topLevelDefinition() {
+    if (accept(TokenKind.GLOBAL)) {
+      // globalVariableDefinition <- "global" identifier "=" expression ";";
+      var name = identifier();
+      expect(TokenKind.EQ);
+      var expression = expression(0);
+      expect(TokenKind.SEMI_COLON);
+      return new Ast.GlobalVariableDefinition(name, expression);
+    }
+    if (accept(TokenKind.DEFINE)) {
+      // functionDefinition <- "define" identifier "(" (identifier ("," identifier)*)? ")" block;
+      var name = identifier();
+      expect(TokenKind.LPAREN);
+      var args = new ArrayList<String>();
+      if (!at(TokenKind.RPAREN)) {
+        do {
+          args.add(identifier());
+        } while (accept(TokenKind.COMMA));
+      }
+      expect(TokenKind.RPAREN);
+      return new Ast.FunctionDefinition(name, args, blockExpression());
+    }
+    throw unexpected("global or define");
+  }
+
+  //// line
+  private Ast.Expression line() {
+    switch (lexer.kind()) {
+      case IF -> {
+        // ifExpression <- "if" "(" expression ")" line ("else" line)?;
+        lexer.next();
+        var condition = condition();
+        var thenClause = line();
+        var elseClause =
+            accept(TokenKind.ELSE) ? Optional.of(line()) : Optional.<Ast.Expression>empty();
+        return new Ast.IfExpression(condition, thenClause, elseClause);
+      }
+      case WHILE -> {
+        // whileExpression <- "while" "(" expression ")" line;
+        lexer.next();
+        var condition = condition();
+        return new Ast.WhileExpression(condition, line());
+      }
+      case FOR -> {
+        // forInExpression <- "for" "(" identifier "in" expression ("to" expression)? ")" line;
+        lexer.next();
+        expect(TokenKind.LPAREN);
+        var name = identifier();
+        expect(TokenKind.IN);
+        var iterable = expression(0);
+        // "to" は予約語ではないので識別子として届く
+        if (at(TokenKind.IDENT) && lexer.text().equals("to")) {
+          lexer.next();
+          iterable = new Ast.RangeExpression(iterable, expression(0));
+        }
+        expect(TokenKind.RPAREN);
+        return new Ast.ForInExpression(name, iterable, line());
+      }
+      case LBRACE -> {
+        return blockExpression();
+      }
+      default -> {
+        // assignment <- identifier "=" expression ";"; / expressionLine <- expression ";";
+        // 先に式として読み, 単独の識別子の後に "=" が来たら代入とみなす
+        var expression = expression(0);
+        if (expression instanceof Ast.Identifier id && accept(TokenKind.EQ)) {
+          expression = new Ast.Assignment(id.name(), expression(0));
+        }
+        expect(TokenKind.SEMI_COLON);
+        return expression;
+      }
+    }
+  }
+
+  private Ast.Expression condition() {
+    expect(TokenKind.LPAREN);
+    var condition = expression(0);
+    expect(TokenKind.RPAREN);
+    return condition;
+  }
+
+  private Ast.BlockExpression blockExpression() {
+    expect(TokenKind.LBRACE);
+    var lines = new ArrayList<Ast.Expression>();
+    while (!accept(TokenKind.RBRACE)) {
+      lines.add(line());
+    }
+    return new Ast.BlockExpression(lines);
+  }
+
+  //// expression
+  /**
+   * 結合力が minPower より強い二項演算子を左結合で読み進める.
+   *
+   * @param minPower この値以下の結合力の演算子に出会ったら止まる
+   * @return 読んだ式
+   */
+  private Ast.Expression expression(int minPower) {
+    var lhs = primary();
+    while (true) {
+      var operator = operator(lexer.kind());
+      if (operator == null || power(operator) <= minPower) {
+        return lhs;
+      }
+      lexer.next();
+      lhs = new Ast.BinaryExpression(operator, lhs, expression(power(operator)));
+    }
+  }
+
+  private static Operator operator(TokenKind kind) {
+    return switch (kind) {
+      case PLUS -> Operator.ADD;
+      case MINUS -> Operator.SUBTRACT;
+      case ASTER -> Operator.MULTIPLY;
+      case SLASH -> Operator.DIVIDE;
+      case LT -> Operator.LESS_THAN;
+      case LT_EQ -> Operator.LESS_OR_EQUAL;
+      case GT -> Operator.GREATER_THAN;
+      case GT_EQ -> Operator.GREATER_OR_EQUAL;
+      case EQ_EQ -> Operator.EQUAL_EQUAL;
+      case NOT_EQ -> Operator.NOT_EQUAL;
+      default -> null;
+    };
+  }
+
+  private static int power(Operator operator) {
+    return switch (operator) {
+      case MULTIPLY, DIVIDE -> MULTITIVE;
+      case ADD, SUBTRACT -> ADDITIVE;
+      default -> COMPARATIVE;
+    };
+  }
+
+  // primary <- "(" expression ")" / integer / functionCall / labelledCall / arrayLiteral
+  //            / boolLiteral / identifier;
+  private Ast.Expression primary() {
+    switch (lexer.kind()) {
+      case LPAREN -> {
+        lexer.next();
+        var expression = expression(0);
+        expect(TokenKind.RPAREN);
+        return expression;
+      }
+      case INTEGER -> {
+        var value = lexer.intValue();
+        lexer.next();
+        return Ast.integer(value);
+      }
+      case MINUS -> {
+        if (!lexer.negativeInteger()) {
+          throw unexpected("expression");
+        }
+        var value = lexer.intValue();
+        lexer.next();
+        return Ast.integer(value);
+      }
+      case TRUE -> {
+        lexer.next();
+        return new Ast.BoolLiteral(true);
+      }
+      case FALSE -> {
+        lexer.next();
+        return new Ast.BoolLiteral(false);
+      }
+      case LBRACKET -> {
+        lexer.next();
+        return new Ast.ArrayLiteral(expressions(TokenKind.RBRACKET));
+      }
+      case IDENT -> {
+        var name = identifier();
+        if (accept(TokenKind.LPAREN)) {
+          return new Ast.FunctionCall(name, expressions(TokenKind.RPAREN));
+        }
+        if (accept(TokenKind.LBRACKET)) {
+          return new Ast.LabelledCall(name, labelledArguments());
+        }
+        return new Ast.Identifier(name);
+      }
+      default -> throw unexpected("expression");
+    }
+  }
+
+  // 開き括弧の後から読む. (expression ("," expression)*)? close
+  private List<Ast.Expression> expressions(TokenKind close) {
+    var items = new ArrayList<Ast.Expression>();
+    if (!accept(close)) {
+      do {
+        items.add(expression(0));
+      } while (accept(TokenKind.COMMA));
+      expect(close);
+    }
+    return items;
+  }
+
+  // "[" の後から読む. (label "=" expression ("," label "=" expression)*)? "]"
+  private List<Ast.LabelledParameter> labelledArguments() {
+    var params = new ArrayList<Ast.LabelledParameter>();
+    if (!accept(TokenKind.RBRACKET)) {
+      do {
+        var label = identifier();
+        expect(TokenKind.EQ);
+        params.add(new Ast.LabelledParameter(label, expression(0)));
+      } while (accept(TokenKind.COMMA));
+      expect(TokenKind.RBRACKET);
+    }
+    return params;
+  }
+}
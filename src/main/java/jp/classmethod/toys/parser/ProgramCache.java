@@ -0,0 +1,110 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import jp.classmethod.toys.interpreter.Ast;
+
+/**
+ * 構文解析の結果をディレクトリに保存しておき, 同じソースなら解析せずに読み込む.
+ *
+ * <p>ファイル名はソースの SHA-256 なので, ソースが変われば別のファイルになる. 保存したファイルは {@link FileChannel#map} で読み込み,
+ * トップレベル定義は取り出したときに初めて組み立てる. 形式が違う (古い版で書いた, 壊れている) ファイルは解析し直して上書きする.
+ */
+public final class ProgramCache {
+
+  private static final String SUFFIX = ".toysc";
+
+  private final Path directory;
+
+  /**
+   * @param directory 保存先. なければ作る
+   */
+  public ProgramCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * ファイルのソースを読み込む.
+   *
+   * @param source ソースファイル (UTF-8)
+   * @return プログラム
+   */
+  public Ast.Program load(Path source) throws IOException {
+    return load(Files.readString(source));
+  }
+
+  /**
+   * ソースを読み込む. 保存済みならそれを使い, なければ {@link PrattParser} で解析して保存する.
+   *
+   * @param source ソース
+   * @return プログラム
+   * @throws jp.classmethod.toys.interpreter.LanguageException 構文エラー
+   */
+  public Ast.Program load(String source) throws IOException {
+    var file = pathFor(source);
+    if (Files.exists(file)) {
+      try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        // 閉じても対応付けは残るので, 定義は後から読める
+        return AstCodec.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      } catch (IllegalArgumentException | BufferUnderflowException e) {
+        // 形式が違うので作り直す
+      }
+    }
+    var program = PrattParser.parseProgram(source);
+    store(file, program);
+    return program;
+  }
+
+  /** ソースに対応する保存先のファイル */
+  public Path pathFor(String source) {
+    return directory.resolve(key(source) + SUFFIX);
+  }
+
+  private void store(Path file, Ast.Program program) throws IOException {
+    Files.createDirectories(directory);
+    var buffer = AstCodec.encode(program);
+    // 書きかけのファイルを他のプロセスが読まないよう, 別名で書いてから置き換える
+    var temporary = Files.createTempFile(directory, "toys", ".tmp");
+    try {
+      try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      try {
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * ソースの SHA-256 を 16 進で表した文字列. 保存先のファイル名に使う
+   *
+   * @param source ソース
+   * @return ソースを表すキー
+   */
+  public static String key(String source) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-256 はどの JDK にもある
+      throw new IllegalStateException(e);
+    }
+  }
+}
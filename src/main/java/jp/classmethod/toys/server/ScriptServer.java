@@ -0,0 +1,272 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import jp.classmethod.toys.interpreter.LanguageException;
+import jp.classmethod.toys.interpreter.Meter;
+import jp.classmethod.toys.interpreter.ProgramImage;
+import jp.classmethod.toys.interpreter.Values;
+import jp.classmethod.toys.parser.PrattParser;
+import jp.classmethod.toys.parser.ProgramCache;
+
+/**
+ * Unix ドメインソケットでスクリプトを受け取って実行し続けるサーバ. JVM を起動し直さないので, 二回目からはクラスの読み込みも JIT コンパイルも済んでいる.
+ *
+ * <p>一つの接続で一つのスクリプトを扱う. クライアントはソース (UTF-8) を書いて送信側を閉じ, サーバは次の三行を返して接続を閉じる.
+ *
+ * <pre>
+ * ok 55            (エラーなら error と理由)
+ * parse 0.012 ms warm
+ * execute 1.234 ms
+ * </pre>
+ *
+ * <p>構文解析とリンクを済ませた {@link ProgramImage} をソースの SHA-256 ごとに覚えておき, 同じソースなら解析せずに実行する (warm).
+ * 覚えておく数には上限があり, 超えたら最も長く使われていないものから捨てる. 実行は毎回 {@link ProgramImage#newContext(Meter)} で作った文脈で行うので,
+ * 前の実行のグローバル変数は残らない.
+ *
+ * <p>スクリプトは信頼できないものとして扱い, グローバル変数の初期化式と main の実行はそれぞれ fuel の予算の中で行う. 止まらないスクリプトも予算を使い切ればエラーを返し,
+ * ワーカーを解放する.
+ */
+public final class ScriptServer implements Closeable {
+
+  /** 覚えておくプログラムの数. システムプロパティ {@code toys.server.programs} で変えられる */
+  public static final int DEFAULT_CAPACITY = Integer.getInteger("toys.server.programs", 64);
+
+  /** 一つのスクリプトで評価してよいノードの数. システムプロパティ {@code toys.server.fuel} で変えられる */
+  public static final long DEFAULT_FUEL = Long.getLong("toys.server.fuel", 100_000_000L);
+
+  /**
+   * 一つのスクリプトの実行結果
+   *
+   * @param ok エラーなく実行できた
+   * @param output ok なら main の値, そうでなければエラーの理由
+   * @param parseNanos 構文解析とリンクにかかった時間. warm なら覚えたイメージを探した時間
+   * @param executeNanos main の実行にかかった時間
+   * @param warm 解析済みのイメージを使った
+   */
+  public static final record Response(
+      boolean ok, String output, long parseNanos, long executeNanos, boolean warm) {
+
+    /** ソケットに返す形式 */
+    public String format() {
+      return (ok ? "ok " : "error ")
+          + output
+          + "\nparse "
+          + millis(parseNanos)
+          + " ms"
+          + (warm ? " warm" : " cold")
+          + "\nexecute "
+          + millis(executeNanos)
+          + " ms\n";
+    }
+
+    private static String millis(long nanos) {
+      return String.format("%.3f", nanos / 1_000_000.0);
+    }
+  }
+
+  private final Path socket;
+
+  private final Map<String, ProgramImage> programs;
+
+  private final ExecutorService workers;
+
+  private final long fuel;
+
+  private ServerSocketChannel channel;
+
+  /**
+   * @param socket 待ち受けるソケットのパス
+   * @param capacity 覚えておくプログラムの数
+   */
+  public ScriptServer(Path socket, int capacity) {
+    this(socket, capacity, DEFAULT_FUEL);
+  }
+
+  /**
+   * @param socket 待ち受けるソケットのパス
+   * @param capacity 覚えておくプログラムの数
+   * @param fuel グローバル変数の初期化と main の実行で, それぞれ評価してよいノードの数
+   */
+  public ScriptServer(Path socket, int capacity, long fuel) {
+    this.socket = socket;
+    this.fuel = fuel;
+    // アクセス順に並べ, 先頭が最も長く使われていないイメージになる
+    this.programs =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, ProgramImage> eldest) {
+            return size() > capacity;
+          }
+        };
+    this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * ソケットを作って待ち受けを始める. 前に残ったソケットファイルは消す.
+   *
+   * @return this
+   */
+  public ScriptServer bind() throws IOException {
+    Files.deleteIfExists(socket);
+    channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    channel.bind(UnixDomainSocketAddress.of(socket));
+    return this;
+  }
+
+  /** {@link #close()} されるまで接続を受け付ける. 接続ごとに別のスレッドで実行する */
+  public void serve() throws IOException {
+    while (true) {
+      SocketChannel client;
+      try {
+        client = channel.accept();
+      } catch (ClosedChannelException e) {
+        return;
+      }
+      workers.execute(() -> handle(client));
+    }
+  }
+
+  private void handle(SocketChannel client) {
+    try (client) {
+      var source =
+          new String(Channels.newInputStream(client).readAllBytes(), StandardCharsets.UTF_8);
+      client.write(ByteBuffer.wrap(evaluate(source).format().getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      // クライアントが先に切断した. 他の接続には関係ない
+    }
+  }
+
+  /**
+   * スクリプトを実行する. 解析済みのイメージがあればそれを使う.
+   *
+   * @param source ソース
+   * @return 実行結果
+   */
+  public Response evaluate(String source) {
+    var start = System.nanoTime();
+    var key = ProgramCache.key(source);
+    ProgramImage image;
+    synchronized (programs) {
+      image = programs.get(key);
+    }
+    var warm = image != null;
+    try {
+      if (image == null) {
+        // 同じソースが同時に届けば両方で解析するが, どちらのイメージも同じ
+        image = ProgramImage.link(PrattParser.parseProgram(source), budget());
+        synchronized (programs) {
+          programs.put(key, image);
+        }
+      }
+    } catch (RuntimeException | StackOverflowError e) {
+      // グローバル変数の初期化式もここで評価する
+      return new Response(false, describe(e), System.nanoTime() - start, 0, false);
+    }
+    var parsed = System.nanoTime();
+    try {
+      var value = image.newContext(budget()).callMain();
+      return new Response(true, show(value), parsed - start, System.nanoTime() - parsed, warm);
+    } catch (RuntimeException | StackOverflowError e) {
+      // スクリプトの誤りで接続とワーカーを落とさない
+      return new Response(false, describe(e), parsed - start, System.nanoTime() - parsed, warm);
+    }
+  }
+
+  private Meter budget() {
+    return new Meter(fuel, Long.MAX_VALUE);
+  }
+
+  /**
+   * スクリプトの実行中に起きたエラーの一行の説明. メッセージがなければ例外の型の名前
+   *
+   * @param e 例外
+   * @return 説明
+   */
+  public static String describe(Throwable e) {
+    if (e instanceof StackOverflowError) {
+      return "Stack overflow";
+    }
+    var message = e.getMessage();
+    // 応答は一行ずつ読むので, 改行は空白にする
+    return message == null ? e.getClass().getSimpleName() : message.replace('\n', ' ');
+  }
+
+  /** 覚えているプログラムの数 */
+  public int size() {
+    synchronized (programs) {
+      return programs.size();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+    workers.shutdown();
+    Files.deleteIfExists(socket);
+  }
+
+  /**
+   * ソケットにスクリプトを送り, 返ってきた結果をそのまま返す.
+   *
+   * @param socket サーバのソケット
+   * @param source ソース
+   * @return {@link Response#format()} の形式の結果
+   */
+  public static String send(Path socket, String source) throws IOException {
+    try (var client = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      client.write(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+      client.shutdownOutput();
+      var output = new ByteArrayOutputStream();
+      Channels.newInputStream(client).transferTo(output);
+      return output.toString(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * 値を toys の書き方で表す.
+   *
+   * @param value 表す値
+   * @return toys のリテラルとして読める文字列
+   * @throws LanguageException タスク, 辞書, 列のように toys に書き方のない値
+   */
+  public static String show(Values.Value value) {
+    if (value instanceof Values.Int v) {
+      return Integer.toString(v.value());
+    } else if (value instanceof Values.Bool v) {
+      return Boolean.toString(v.value());
+    } else if (value instanceof Values.Array v) {
+      return v.values().stream()
+          .map(ScriptServer::show)
+          .collect(Collectors.joining(", ", "[", "]"));
+    } else if (value instanceof Values.Task) {
+      throw new LanguageException("Cannot show a task");
+    } else if (value instanceof Values.Dictionary) {
+      throw new LanguageException("Cannot show a dictionary");
+    } else if (value instanceof Values.Sequence) {
+      // 終わりのない列もあるので, 要素を並べない
+      throw new LanguageException("Cannot show a sequence");
+    }
+    // main が値を返さなかった (null)
+    return String.valueOf(value);
+  }
+}
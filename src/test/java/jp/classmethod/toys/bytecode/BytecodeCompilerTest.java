@@ -0,0 +1,99 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.bytecode;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Interpreter;
+import jp.classmethod.toys.interpreter.Operator;
+import jp.classmethod.toys.interpreter.Programs;
+import jp.classmethod.toys.interpreter.Values;
+import org.junit.jupiter.api.Test;
+
+class BytecodeCompilerTest {
+
+  // global limit = 30;
+  // define main() { count = 0; i = 0; while (i < limit) { if (isEven(i)) { count = count + 1; } i =
+  // i + 1; } count; }
+  // define isEven(n) { (n / 2) * 2 == n; }
+  private static Ast.Program evens() {
+    return new Ast.Program(
+        List.of(
+            new GlobalVariableDefinition("limit", integer(30)),
+            DefineFunction(
+                "main",
+                List.of(),
+                Block(
+                    new Assignment("count", integer(0)),
+                    new Assignment("i", integer(0)),
+                    While(
+                        lessThan(symbol("i"), symbol("limit")),
+                        Block(
+                            If(
+                                call("isEven", symbol("i")),
+                                new Assignment("count", add(symbol("count"), integer(1)))),
+                            new Assignment("i", add(symbol("i"), integer(1))))),
+                    symbol("count"))),
+            DefineFunction(
+                "isEven",
+                List.of("n"),
+                Block(
+                    new BinaryExpression(
+                        Operator.EQUAL_EQUAL,
+                        multiply(divide(symbol("n"), integer(2)), integer(2)),
+                        symbol("n"))))));
+  }
+
+  // define main() { if (false) { 1; } }  -- else のない if の値はバイトコードにできない
+  private static Ast.Program ifWithoutElse() {
+    return new Ast.Program(
+        List.of(
+            DefineFunction(
+                "main",
+                List.of(),
+                Block(If(new BoolLiteral(false), integer(1), Optional.empty())))));
+  }
+
+  @Test
+  public void testCompiledProgramsMatchInterpreter() {
+    var programs = new java.util.ArrayList<>(Programs.all());
+    programs.add(evens());
+    for (var program : programs) {
+      var compiled = BytecodeCompiler.compile(program);
+      assertTrue(compiled.isPresent());
+      assertEquals(new Interpreter().callMain(program), compiled.get().run());
+    }
+  }
+
+  @Test
+  public void testConcurrentRunsDoNotShareGlobals() throws Exception {
+    // main はグローバル変数 total に足していくので, 実行が重なると結果が混ざる
+    var compiled = BytecodeCompiler.compile(Programs.sum(10_000)).orElseThrow();
+    var pool = Executors.newFixedThreadPool(4);
+    try {
+      var runs = new ArrayList<Future<Values.Value>>();
+      for (int i = 0; i < 200; i++) {
+        runs.add(pool.submit(compiled::run));
+      }
+      for (var run : runs) {
+        assertEquals(Values.of(50_005_000), run.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testFallsBackToInterpreter() {
+    var program = ifWithoutElse();
+    assertTrue(BytecodeCompiler.compile(program).isEmpty());
+    assertEquals(new Interpreter().callMain(program), new BytecodeEngine().callMain(program));
+  }
+}
@@ -0,0 +1,89 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class BatchEvaluatorTest {
+
+  // define price(qty, unit) {
+  //   total = qty * unit;
+  //   if (total > 1000) { total - total / 10; } else { total; }
+  // }
+  // 除算は if の外で計算しておく
+  private static final Ast.FunctionDefinition PRICE =
+      DefineFunction(
+          "price",
+          List.of("qty", "unit"),
+          Block(
+              new Assignment("total", multiply(symbol("qty"), symbol("unit"))),
+              new Assignment("discount", divide(symbol("total"), integer(10))),
+              If(
+                  new BinaryExpression(Operator.GREATER_THAN, symbol("total"), integer(1000)),
+                  Block(subtract(symbol("total"), symbol("discount"))),
+                  Optional.of(Block(symbol("total"))))));
+
+  private static Values.Array scalar(Ast.FunctionDefinition function, int[]... columns) {
+    var interpreter = new Interpreter();
+    interpreter.load(new Ast.Program(List.of(function)));
+    var builder = new Values.ArrayBuilder(columns[0].length);
+    for (int row = 0; row < columns[0].length; row++) {
+      var args = new Values.Value[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        args[i] = Values.of(columns[i][row]);
+      }
+      builder.add(interpreter.call(function.name(), args));
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testVectorizedMatchesScalar() {
+    var random = new Random(7);
+    var qty = random.ints(1000, 0, 100).toArray();
+    var unit = random.ints(1000, -50, 50).toArray();
+    var batch = new BatchEvaluator(PRICE);
+    assertTrue(batch.isVectorized());
+    assertEquals(scalar(PRICE, qty, unit), batch.apply(qty, unit));
+  }
+
+  @Test
+  public void testComparisonResultIsBoolColumn() {
+    var positive =
+        DefineFunction(
+            "positive",
+            List.of("x"),
+            Block(new BinaryExpression(Operator.GREATER_THAN, symbol("x"), integer(0))));
+    var result = new BatchEvaluator(positive).apply(new int[] {-1, 0, 3});
+    assertEquals(new Values.Array(List.of(Values.FALSE, Values.FALSE, Values.TRUE)), result);
+  }
+
+  @Test
+  public void testUnsupportedBodyFallsBackToInterpreter() {
+    var factorial = Programs.factorial(1).definitions().get(1);
+    var batch = new BatchEvaluator(new Ast.Program(List.of(factorial)), "fact");
+    assertFalse(batch.isVectorized());
+    assertEquals(
+        new Values.Array(List.of(Values.of(1), Values.of(6), Values.of(120))),
+        batch.apply(new int[] {1, 3, 5}));
+  }
+
+  @Test
+  public void testErrors() {
+    var batch = new BatchEvaluator(PRICE);
+    assertThrows(IllegalArgumentException.class, () -> batch.apply(new int[] {1}));
+    assertThrows(
+        IllegalArgumentException.class, () -> batch.apply(new int[] {1}, new int[] {1, 2}));
+    var inverse = DefineFunction("inverse", List.of("x"), Block(divide(integer(100), symbol("x"))));
+    assertThrows(
+        ArithmeticException.class, () -> new BatchEvaluator(inverse).apply(new int[] {5, 0}));
+  }
+}
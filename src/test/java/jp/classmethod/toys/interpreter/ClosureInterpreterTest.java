@@ -0,0 +1,54 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ClosureInterpreterTest {
+
+  @Test
+  public void test10Plus20ShouldWork() {
+    var interpreter = new ClosureInterpreter();
+    assertEquals(30, interpreter.interpret(add(integer(10), integer(20))).asInt().value());
+  }
+
+  @Test
+  public void testSameResultAsInterpreter() {
+    for (var program : Programs.all()) {
+      var expected = Engine.Kind.TREE_WALKING.create().callMain(program);
+      var actual = Engine.Kind.CLOSURE.create().callMain(program);
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testGlobalInitializerCallsLaterFunction() {
+    // global g = f(1); define f(x) { x; } define main() { g; }
+    // global h = k(); define k() { 1; } define main() { h; }
+    var programs =
+        List.of(
+            new Ast.Program(
+                List.of(
+                    new GlobalVariableDefinition("g", call("f", integer(1))),
+                    DefineFunction("f", List.of("x"), Block(symbol("x"))),
+                    DefineFunction("main", List.of(), Block(symbol("g"))))),
+            new Ast.Program(
+                List.of(
+                    new GlobalVariableDefinition("h", call("k")),
+                    DefineFunction("k", List.of(), Block(integer(1))),
+                    DefineFunction("main", List.of(), Block(symbol("h"))))));
+    for (var program : programs) {
+      for (var kind : Engine.Kind.values()) {
+        var e = assertThrows(RuntimeException.class, () -> kind.create().callMain(program));
+        assertEquals(
+            "Function " + (program == programs.get(0) ? "f" : "k") + " is not found",
+            e.getMessage(),
+            kind.name());
+      }
+    }
+  }
+}
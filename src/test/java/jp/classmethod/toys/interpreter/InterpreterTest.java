@@ -3,9 +3,17 @@ package jp.classmethod.toys.interpreter;
 
 import static jp.classmethod.toys.interpreter.Ast.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 
 class InterpreterTest {
@@ -46,4 +54,368 @@ class InterpreterTest {
     var result = interpreter.callMain(new Ast.Program(topLevels));
     assertEquals(120, result.asInt().value());
   }
+
+  @Test
+  public void testLocalAndGlobalVariables() {
+    List<Ast.TopLevel> topLevels =
+        List.of(
+            // global total = 0;
+            new Ast.GlobalVariableDefinition("total", integer(0)),
+            // define main() {
+            //   sum(10);
+            //   total;
+            // }
+            DefineFunction("main", List.of(), Block(call("sum", integer(10)), symbol("total"))),
+            // define sum(n) {
+            //   i = 0;
+            //   while (i < n) {
+            //     i = i + 1;
+            //     total = total + i;
+            //   }
+            // }
+            DefineFunction(
+                "sum",
+                List.of("n"),
+                Block(
+                    new Ast.Assignment("i", integer(0)),
+                    While(
+                        lessThan(symbol("i"), symbol("n")),
+                        Block(
+                            new Ast.Assignment("i", add(symbol("i"), integer(1))),
+                            new Ast.Assignment("total", add(symbol("total"), symbol("i"))))))));
+    var result = interpreter.callMain(new Ast.Program(topLevels));
+    assertEquals(55, result.asInt().value());
+  }
+
+  @Test
+  public void testUndefinedVariableIsRejected() {
+    List<Ast.TopLevel> topLevels =
+        List.of(DefineFunction("main", List.of(), Block(add(symbol("x"), integer(1)))));
+    assertThrows(LanguageException.class, () -> interpreter.callMain(new Ast.Program(topLevels)));
+  }
+
+  @Test
+  public void testArityIsCheckedAtLinkTime() {
+    // if (false) { f(1, 2); } は実行されないが, 解決の時点でエラーになる
+    List<Ast.TopLevel> topLevels =
+        List.of(
+            DefineFunction(
+                "main",
+                List.of(),
+                Block(If(new BoolLiteral(false), call("f", integer(1), integer(2))), integer(0))),
+            DefineFunction("f", List.of("x"), Block(symbol("x"))));
+    var e =
+        assertThrows(
+            LanguageException.class, () -> interpreter.callMain(new Ast.Program(topLevels)));
+    assertEquals("Function f expects 1 arguments but got 2", e.getMessage());
+  }
+
+  @Test
+  public void testLabelledCallIsLinkedToParameters() {
+    // define main() { sub[rhs = 1, lhs = 10]; }
+    // define sub(lhs, rhs) { lhs - rhs; }
+    var sub =
+        DefineFunction("sub", List.of("lhs", "rhs"), Block(subtract(symbol("lhs"), symbol("rhs"))));
+    var call =
+        new LabelledCall(
+            "sub",
+            List.of(
+                new LabelledParameter("rhs", integer(1)),
+                new LabelledParameter("lhs", integer(10))));
+    var program = new Ast.Program(List.of(DefineFunction("main", List.of(), Block(call)), sub));
+    assertEquals(9, interpreter.callMain(program).asInt().value());
+
+    var missing =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "main",
+                    List.of(),
+                    Block(
+                        new LabelledCall(
+                            "sub", List.of(new LabelledParameter("lhs", integer(1)))))),
+                sub));
+    var e = assertThrows(LanguageException.class, () -> new Interpreter().callMain(missing));
+    assertEquals("Parameter rhs of sub is missing", e.getMessage());
+  }
+
+  @Test
+  public void testRunawayLoopStopsWhenFuelRunsOut() {
+    // define main() { while (true) { i = 1; } }
+    var program =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "main",
+                    List.of(),
+                    Block(While(new BoolLiteral(true), Block(new Assignment("i", integer(1))))))));
+    var meter = new Meter(10_000, Long.MAX_VALUE);
+    var e = assertThrows(LanguageException.class, () -> new Interpreter(meter).callMain(program));
+    assertEquals("Fuel budget exhausted", e.getMessage());
+  }
+
+  @Test
+  public void testDeepRecursionStopsAtCallDepth() {
+    // define f(n) { if (n < 1) 0; else 1 + f(n - 1); }
+    var program =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "f",
+                    List.of("n"),
+                    Block(
+                        If(
+                            lessThan(symbol("n"), integer(1)),
+                            integer(0),
+                            Optional.of(
+                                add(integer(1), call("f", subtract(symbol("n"), integer(1))))))))));
+    var limited = new Interpreter(new Meter(Long.MAX_VALUE, Long.MAX_VALUE, 100));
+    limited.load(program);
+    var e =
+        assertThrows(LanguageException.class, () -> limited.interpret(call("f", integer(100))));
+    assertEquals("Call depth exceeds 100", e.getMessage());
+    // 止まった後も深さは正しく数えている
+    assertEquals(Values.of(99), limited.interpret(call("f", integer(99))));
+
+    // 既定の上限より先にスタックが溢れても, スクリプトのエラーとして止まる
+    var metered = new Interpreter(new Meter(Long.MAX_VALUE, Long.MAX_VALUE));
+    metered.load(program);
+    assertThrows(LanguageException.class, () -> metered.interpret(call("f", integer(100_000))));
+
+    // define count(n) { if (n < 1) 0; else count(n - 1); }
+    var tail =
+        DefineFunction(
+            "count",
+            List.of("n"),
+            Block(
+                If(
+                    lessThan(symbol("n"), integer(1)),
+                    integer(0),
+                    Optional.of(call("count", subtract(symbol("n"), integer(1)))))));
+    var shallow = new Interpreter(new Meter(Long.MAX_VALUE, Long.MAX_VALUE, 10));
+    shallow.load(new Ast.Program(List.of(tail)));
+    // 末尾呼び出しは深さを使わない
+    assertEquals(Values.of(0), shallow.interpret(call("count", integer(100_000))));
+  }
+
+  @Test
+  public void testAllocationBudget() {
+    var meter = new Meter(Long.MAX_VALUE, 1000);
+    var e =
+        assertThrows(
+            LanguageException.class,
+            () -> new Interpreter(meter).callMain(Programs.factorial(1000)));
+    assertEquals("Allocation budget exhausted", e.getMessage());
+
+    var enough = new Meter(Long.MAX_VALUE, 1000);
+    assertEquals(120, new Interpreter(enough).callMain(Programs.factorial(5)).asInt().value());
+    // フレームごとに slot 数 + 1. main は 0 + 1, fact は 1 + 1 を 5 回
+    assertEquals(1000 - 1 - 5 * 2, enough.remainingAllocations());
+  }
+
+  // define sq(n) { n * n; }
+  private static final Ast.FunctionDefinition SQUARE =
+      DefineFunction("sq", List.of("n"), Block(multiply(symbol("n"), symbol("n"))));
+
+  @Test
+  public void testParallelGlobalsMatchSequential() {
+    var table = new ArrayList<Ast.Expression>();
+    for (int i = 0; i < 40; i++) {
+      table.add(call("sq", integer(i)));
+    }
+    var program =
+        new Ast.Program(
+            List.of(
+                SQUARE,
+                new GlobalVariableDefinition("a", call("sq", integer(3))),
+                new GlobalVariableDefinition("b", call("sq", integer(4))),
+                // a と b が決まってから評価する
+                new GlobalVariableDefinition("c", call("sq", add(symbol("a"), symbol("b")))),
+                new GlobalVariableDefinition("d", call("sq", symbol("c"))),
+                new GlobalVariableDefinition("table", new ArrayLiteral(table)),
+                DefineFunction(
+                    "main",
+                    List.of(),
+                    Block(new ArrayLiteral(List.of(symbol("d"), symbol("table")))))));
+    var pool = new ForkJoinPool(4);
+    try {
+      var expected = new Interpreter(Meter.unlimited(), null).callMain(program);
+      assertEquals(expected, new Interpreter(Meter.unlimited(), pool).callMain(program));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelGlobalsThrowTheFirstError() {
+    // define div(n) { 10 / n; }
+    // define late() { z; }
+    var program =
+        new Ast.Program(
+            List.of(
+                DefineFunction("div", List.of("n"), Block(divide(integer(10), symbol("n")))),
+                DefineFunction("late", List.of(), Block(symbol("z"))),
+                new GlobalVariableDefinition("x", call("div", integer(2))),
+                new GlobalVariableDefinition("y", call("div", integer(0))),
+                new GlobalVariableDefinition("w", call("late")),
+                new GlobalVariableDefinition("z", integer(1))));
+    var pool = new ForkJoinPool(4);
+    try {
+      var parallel = new Interpreter(Meter.unlimited(), pool);
+      assertThrows(ArithmeticException.class, () -> parallel.load(program));
+      assertEquals(Values.of(5), parallel.interpret(symbol("x")));
+      var e = assertThrows(LanguageException.class, () -> parallel.interpret(symbol("w")));
+      assertEquals("Variable w is not initialized", e.getMessage());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelGlobalsStopAfterTheFirstError() {
+    // define boom(n) { 10 / (n - 1); }
+    // define spin(n) { while (true) n; }
+    var program =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "boom",
+                    List.of("n"),
+                    Block(divide(integer(10), subtract(symbol("n"), integer(1))))),
+                DefineFunction(
+                    "spin", List.of("n"), Block(While(new BoolLiteral(true), symbol("n")))),
+                new GlobalVariableDefinition("g1", call("boom", integer(1))),
+                new GlobalVariableDefinition("g2", call("spin", integer(1)))));
+    var pool = new ForkJoinPool(4);
+    try {
+      // 逐次実行と同じく g1 の例外を投げ, 止まらない g2 を待たない
+      var e =
+          assertTimeoutPreemptively(
+              Duration.ofSeconds(10),
+              () ->
+                  assertThrows(
+                      ArithmeticException.class,
+                      () -> new Interpreter(Meter.unlimited(), pool).load(program)));
+      // ワーカーで起きた例外のメッセージを失わない
+      assertEquals("/ by zero", e.getMessage());
+      // g2 を評価していたワーカーも止まる
+      assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testForInStreamsLongRanges() {
+    // 配列にまとめるなら 1000 万要素分の割り当てが要る
+    var program = Programs.forIn(10_000_000);
+    var meter = new Meter(Long.MAX_VALUE, 100);
+    assertEquals(
+        Values.of((int) (10_000_000L * 10_000_001L / 2) + 6),
+        new Interpreter(meter).callMain(program));
+    // 割り当てたのは main のフレームと [1, 2, 3] だけ
+    assertEquals(100 - 1 - 4, meter.remainingAllocations());
+  }
+
+  @Test
+  public void testForInOnEveryEngine() {
+    var program = Programs.forIn(100);
+    for (var kind : Engine.Kind.values()) {
+      assertEquals(Values.of(5056), kind.create().callMain(program), kind.name());
+    }
+  }
+
+  @Test
+  public void testForInRejectsNonIterables() {
+    var e =
+        assertThrows(
+            LanguageException.class,
+            () -> interpreter.interpret(ForIn("x", integer(1), symbol("x"))));
+    assertEquals("Cannot iterate over Int[value=1]", e.getMessage());
+  }
+
+  @Test
+  public void testSpawnOverlapsBlockingHostCalls() throws Exception {
+    // 8 つの呼び出しが同時に待たなければ揃わない. スレッド 1 つのプールでも代わりのスレッドを足して進める
+    var barrier = new CyclicBarrier(8);
+    var pool = new ForkJoinPool(1);
+    try {
+      var spawning = new Interpreter(Meter.unlimited(), pool);
+      spawning.defineHostFunction(
+          "meet",
+          List.of("n"),
+          HostFunction.blocking(
+              args -> {
+                try {
+                  barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+                return args.get(0);
+              }));
+      var body = new ArrayList<Ast.Expression>();
+      Ast.Expression sum = call("join", call("spawn", call("sq", integer(5))));
+      for (int i = 0; i < 8; i++) {
+        body.add(new Assignment("t" + i, call("spawn", call("meet", integer(i)))));
+        sum = add(sum, call("join", symbol("t" + i)));
+      }
+      body.add(sum);
+      var program =
+          new Ast.Program(
+              List.of(
+                  SQUARE,
+                  DefineFunction("main", List.of(), Block(body.toArray(Ast.Expression[]::new)))));
+      assertEquals(Values.of(25 + 28), spawning.callMain(program));
+
+      spawning.load(
+          new Ast.Program(
+              List.of(
+                  DefineFunction("div", List.of("n"), Block(divide(integer(10), symbol("n")))))));
+      var e =
+          assertThrows(
+              ArithmeticException.class,
+              () -> spawning.interpret(call("join", call("spawn", call("div", integer(0))))));
+      assertEquals("/ by zero", e.getMessage());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testSpawnWithBudgetRunsInPlace() {
+    var limited = new Interpreter(new Meter(1000, 1000));
+    limited.load(
+        new Ast.Program(
+            List.of(DefineFunction("div", List.of("n"), Block(divide(integer(10), symbol("n")))))));
+    // 例外は spawn ではなく join で投げる
+    limited.interpret(new Assignment("t", call("spawn", call("div", integer(0)))));
+    assertThrows(ArithmeticException.class, () -> limited.interpret(call("join", symbol("t"))));
+    assertEquals(
+        Values.of(5), limited.interpret(call("join", call("spawn", call("div", integer(2))))));
+
+    var e =
+        assertThrows(LanguageException.class, () -> limited.interpret(call("join", integer(1))));
+    assertEquals("join expects a task but got Int[value=1]", e.getMessage());
+    e = assertThrows(LanguageException.class, () -> limited.interpret(call("spawn", integer(1))));
+    assertEquals("spawn expects a function call", e.getMessage());
+  }
+
+  @Test
+  public void testHostFunctions() {
+    interpreter.defineHostFunction(
+        "twice", List.of("n"), args -> Values.of(args.get(0).asInt().value() * 2));
+    assertEquals(Values.of(42), interpreter.interpret(call("twice", integer(21))));
+    var labelled = new LabelledCall("twice", List.of(new LabelledParameter("n", integer(4))));
+    assertEquals(Values.of(8), interpreter.interpret(labelled));
+    var e =
+        assertThrows(
+            LanguageException.class,
+            () -> interpreter.interpret(call("twice", integer(1), integer(2))));
+    assertEquals("Function twice expects 1 arguments but got 2", e.getMessage());
+
+    // スクリプトで定義した関数が優先される
+    interpreter.load(
+        new Ast.Program(List.of(DefineFunction("twice", List.of("n"), Block(symbol("n"))))));
+    assertEquals(Values.of(21), interpreter.interpret(call("twice", integer(21))));
+  }
 }
@@ -0,0 +1,72 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MemoCacheTest {
+
+  @Test
+  public void testMemoizesPureFunctions() {
+    var interpreter = new Interpreter();
+    var cache = new MemoCache(1000);
+    interpreter.memoize(cache);
+    // 覚えなければ fib は 3 億回ほど呼ばれる
+    assertEquals(Values.of(102334155), interpreter.callMain(Programs.fibonacci(40)));
+    // main と fib(0) から fib(39) までを一度ずつ評価し, fib(n - 2) は覚えた値を返す.
+    // main の末尾の fib(40) は main の評価の中でループになるので, main の結果として覚える
+    assertEquals(new MemoCache.Stats(38, 41, 0, 41), cache.stats());
+
+    // グローバル変数に書き込む関数は覚えない
+    cache.clear();
+    assertEquals(Values.of(55), interpreter.callMain(Programs.sum(10)));
+    assertEquals(new MemoCache.Stats(0, 0, 0, 0), cache.stats());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    var interpreter = new Interpreter();
+    var cache = new MemoCache(2);
+    interpreter.memoize(cache);
+    assertEquals(Values.of(6765), interpreter.callMain(Programs.fibonacci(20)));
+    var stats = cache.stats();
+    assertEquals(2, stats.size());
+    assertEquals(stats.misses() - 2, stats.evictions());
+    // 直前の二つは覚えているので fib(n - 2) は当たる
+    assertTrue(stats.hits() > 0);
+
+    // 予算に上限があれば覚えない
+    var limited = new Interpreter(new Meter(Long.MAX_VALUE, Long.MAX_VALUE));
+    limited.memoize(cache);
+    cache.clear();
+    assertEquals(Values.of(6765), limited.callMain(Programs.fibonacci(20)));
+    assertEquals(new MemoCache.Stats(0, 0, 0, 0), cache.stats());
+  }
+
+  @Test
+  public void testForgetsResultsOfCallersAfterUpdate() {
+    // define f(x) { x + 1; }
+    // define g(x) { f(x) * 2; }
+    // define main() { g(5); }
+    var f = DefineFunction("f", List.of("x"), Block(add(symbol("x"), integer(1))));
+    var program =
+        new Ast.Program(
+            List.of(
+                f,
+                DefineFunction(
+                    "g", List.of("x"), Block(multiply(call("f", symbol("x")), integer(2)))),
+                DefineFunction("main", List.of(), Block(call("g", integer(5))))));
+    var interpreter = new Interpreter();
+    interpreter.memoize(new MemoCache(100));
+    assertEquals(Values.of(12), interpreter.callMain(program));
+
+    // g は定義し直していないが, 呼び出し先の f が変わったので前の結果は使わない
+    var replaced = DefineFunction("f", List.of("x"), Block(add(symbol("x"), integer(100))));
+    interpreter.update(List.of(f), List.of(replaced));
+    assertEquals(Values.of(210), interpreter.callMain());
+  }
+}
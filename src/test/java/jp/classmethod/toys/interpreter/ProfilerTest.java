@@ -0,0 +1,50 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ProfilerTest {
+
+  @Test
+  public void testCountsCallsAndLoops() {
+    var profiler = new Profiler();
+    var result = new ClosureInterpreter(profiler).callMain(Programs.sum(10));
+    assertEquals(Values.of(55), result);
+
+    var calls = profiler.functions().stream().map(f -> f.name() + "=" + f.calls()).toList();
+    assertEquals(List.of("main=1", "sum=1"), calls);
+    assertEquals(List.of(new Profiler.LoopProfile("sum", 0, 10)), profiler.loops());
+  }
+
+  @Test
+  public void testRecursionIsNotCountedTwice() {
+    var profiler = new Profiler();
+    new ClosureInterpreter(profiler).callMain(Programs.fibonacci(15));
+
+    var main = profiler.functions().get(0);
+    var fib = profiler.functions().get(1);
+    assertEquals(1973, fib.calls());
+    // fib の時間は main の時間に収まり, 自身の時間の合計は全体の時間と一致する
+    assertTrue(fib.inclusiveNanos() <= main.inclusiveNanos());
+    assertEquals(main.inclusiveNanos(), main.exclusiveNanos() + fib.exclusiveNanos());
+  }
+
+  @Test
+  public void testCollapsedStacks() throws Exception {
+    var profiler = new Profiler();
+    new ClosureInterpreter(profiler).callMain(Programs.fibonacci(3));
+
+    var out = new StringWriter();
+    profiler.writeCollapsedStacks(out);
+    var paths = out.toString().lines().map(line -> line.substring(0, line.indexOf(' '))).toList();
+    assertEquals(List.of("main", "main;fib", "main;fib;fib", "main;fib;fib;fib"), paths);
+    assertEquals(
+        profiler.collapsedStacks().values().stream().mapToLong(Long::longValue).sum(),
+        profiler.functions().get(0).inclusiveNanos());
+  }
+}
@@ -0,0 +1,45 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+
+class ProgramImageTest {
+
+  @Test
+  public void testContextsDoNotShareGlobals() {
+    // sum は global total に足し込むので, 文脈ごとに初期値から始まらなければ結果がずれる
+    var image = ProgramImage.link(Programs.sum(10));
+    assertEquals(Values.of(55), image.callMain());
+    assertEquals(Values.of(55), image.callMain());
+  }
+
+  @Test
+  public void testConcurrentCallMain() throws Exception {
+    var image = ProgramImage.link(Programs.sum(1000));
+    var executor = Executors.newFixedThreadPool(8);
+    try {
+      var tasks = new ArrayList<Callable<Values.Value>>();
+      for (int i = 0; i < 64; i++) {
+        tasks.add(image::callMain);
+      }
+      for (var future : executor.invokeAll(tasks)) {
+        assertEquals(Values.of(500500), future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testContextCannotRelink() {
+    var context = ProgramImage.link(Programs.factorial(5)).newContext();
+    assertEquals(Values.of(120), context.callMain());
+    assertThrows(IllegalStateException.class, () -> context.load(Programs.factorial(6)));
+  }
+}
@@ -0,0 +1,104 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+
+import java.util.List;
+import java.util.Optional;
+
+/** 複数のエンジンで同じ結果になることを確かめるためのサンプルプログラム */
+public final class Programs {
+
+  private Programs() {}
+
+  // define main() { fact(n); }
+  // define fact(n) { if (n < 2) { 1; } else { n * fact(n - 1); } }
+  public static Ast.Program factorial(int n) {
+    return new Ast.Program(
+        List.of(
+            DefineFunction("main", List.of(), Block(call("fact", integer(n)))),
+            DefineFunction(
+                "fact",
+                List.of("n"),
+                Block(
+                    If(
+                        lessThan(symbol("n"), integer(2)),
+                        integer(1),
+                        Optional.of(
+                            multiply(
+                                symbol("n"), call("fact", subtract(symbol("n"), integer(1))))))))));
+  }
+
+  // define main() { fib(n); }
+  // define fib(n) { if (n < 2) { n; } else { fib(n - 1) + fib(n - 2); } }
+  public static Ast.Program fibonacci(int n) {
+    return new Ast.Program(
+        List.of(
+            DefineFunction("main", List.of(), Block(call("fib", integer(n)))),
+            DefineFunction(
+                "fib",
+                List.of("n"),
+                Block(
+                    If(
+                        lessThan(symbol("n"), integer(2)),
+                        symbol("n"),
+                        Optional.of(
+                            add(
+                                call("fib", subtract(symbol("n"), integer(1))),
+                                call("fib", subtract(symbol("n"), integer(2))))))))));
+  }
+
+  // global total = 0;
+  // define main() { sum(n); total; }
+  // define sum(n) { i = 0; while (i < n) { i = i + 1; total = total + i; } }
+  public static Ast.Program sum(int n) {
+    return new Ast.Program(
+        List.of(
+            new GlobalVariableDefinition("total", integer(0)),
+            DefineFunction("main", List.of(), Block(call("sum", integer(n)), symbol("total"))),
+            DefineFunction(
+                "sum",
+                List.of("n"),
+                Block(
+                    new Assignment("i", integer(0)),
+                    While(
+                        lessThan(symbol("i"), symbol("n")),
+                        Block(
+                            new Assignment("i", add(symbol("i"), integer(1))),
+                            new Assignment("total", add(symbol("total"), symbol("i")))))))));
+  }
+
+  // define main() { total = 0; for (i in 1 to n) total = total + i; for (x in [1, 2, 3]) total =
+  // total + x; total; }
+  public static Ast.Program forIn(int n) {
+    return new Ast.Program(
+        List.of(
+            DefineFunction(
+                "main",
+                List.of(),
+                Block(
+                    new Assignment("total", integer(0)),
+                    ForIn(
+                        "i",
+                        new RangeExpression(integer(1), integer(n)),
+                        new Assignment("total", add(symbol("total"), symbol("i")))),
+                    ForIn(
+                        "x",
+                        new ArrayLiteral(List.of(integer(1), integer(2), integer(3))),
+                        new Assignment("total", add(symbol("total"), symbol("x")))),
+                    symbol("total")))));
+  }
+
+  // global a = (b = 5);
+  // define main() { a + b; }
+  public static Ast.Program globalAssignment() {
+    return new Ast.Program(
+        List.of(
+            new GlobalVariableDefinition("a", new Assignment("b", integer(5))),
+            DefineFunction("main", List.of(), Block(add(symbol("a"), symbol("b"))))));
+  }
+
+  public static List<Ast.Program> all() {
+    return List.of(factorial(10), fibonacci(15), sum(100), globalAssignment());
+  }
+}
@@ -0,0 +1,106 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class RegisterMachineTest {
+
+  @Test
+  public void testSameResultAsInterpreter() {
+    for (var program : Programs.all()) {
+      var expected = Engine.Kind.TREE_WALKING.create().callMain(program);
+      var actual = Engine.Kind.REGISTER.create().callMain(program);
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testSuperinstructions() {
+    var resolver = new Resolver();
+    var fib = Programs.fibonacci(10).definitions().get(1);
+    resolver.declareGlobals(Programs.fibonacci(10));
+    var code =
+        RegisterCode.disassemble(
+            RegisterCompiler.compileFunction(
+                resolver.resolveFunction((Ast.FunctionDefinition) fib)));
+    // if (n < 2) は比較と分岐を一命令に, n - 1 は引数のレジスタに直接書く
+    assertTrue(code.contains("BR_GEI 0 2 "), code);
+    assertTrue(code.contains("ADDI 3 0 -1"), code);
+    assertTrue(code.contains("ADDI 4 0 -2"), code);
+
+    var sum = Programs.sum(10);
+    resolver.declareGlobals(sum);
+    var loop =
+        RegisterCode.disassemble(
+            RegisterCompiler.compileFunction(
+                resolver.resolveFunction((Ast.FunctionDefinition) sum.definitions().get(2))));
+    // while の条件は末尾で比較して後方へ分岐する
+    assertTrue(loop.contains("BR_LT 1 0 "), loop);
+  }
+
+  @Test
+  public void testTailCallsAndDepth() {
+    // define loop(n) { if (n < 1) 0; else loop(n - 1); }
+    // define depth(n) { if (n < 1) 0; else 1 + depth(n - 1); }
+    var program =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "loop",
+                    List.of("n"),
+                    Block(
+                        If(
+                            lessThan(symbol("n"), integer(1)),
+                            integer(0),
+                            Optional.of(call("loop", subtract(symbol("n"), integer(1))))))),
+                DefineFunction(
+                    "depth",
+                    List.of("n"),
+                    Block(
+                        If(
+                            lessThan(symbol("n"), integer(1)),
+                            integer(0),
+                            Optional.of(
+                                add(
+                                    integer(1),
+                                    call("depth", subtract(symbol("n"), integer(1)))))))),
+                DefineFunction(
+                    "main",
+                    List.of(),
+                    Block(add(call("loop", integer(100_000)), call("depth", integer(500)))))));
+    assertEquals(Values.of(500), new RegisterMachine(1000).callMain(program));
+    var e = assertThrows(LanguageException.class, () -> new RegisterMachine(100).callMain(program));
+    assertEquals("Call depth exceeds 100", e.getMessage());
+  }
+
+  @Test
+  public void testErrors() {
+    var machine = new RegisterMachine();
+    // define f(n) { if (n > 0) { x = 1; } x; }
+    machine.callMain(
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "f",
+                    List.of("n"),
+                    Block(
+                        If(
+                            new BinaryExpression(Operator.GREATER_THAN, symbol("n"), integer(0)),
+                            Block(new Assignment("x", integer(1)))),
+                        symbol("x"))),
+                DefineFunction("main", List.of(), Block(call("f", integer(1)))))));
+    var e = assertThrows(LanguageException.class, () -> machine.interpret(call("f", integer(0))));
+    assertEquals("Variable x is not initialized", e.getMessage());
+    e = assertThrows(LanguageException.class, () -> machine.interpret(call("f")));
+    assertEquals("Function f expects 1 arguments but got 0", e.getMessage());
+    assertThrows(
+        ArithmeticException.class, () -> machine.interpret(divide(integer(1), integer(0))));
+  }
+}
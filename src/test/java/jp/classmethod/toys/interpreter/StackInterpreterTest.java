@@ -0,0 +1,80 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class StackInterpreterTest {
+
+  // define main() { depth(n); }
+  // define depth(n) { if (n < 1) 0; else 1 + depth(n - 1); }
+  private static Ast.Program depth(int n) {
+    return new Ast.Program(
+        List.of(
+            DefineFunction("main", List.of(), Block(call("depth", integer(n)))),
+            DefineFunction(
+                "depth",
+                List.of("n"),
+                Block(
+                    If(
+                        lessThan(symbol("n"), integer(1)),
+                        integer(0),
+                        Optional.of(
+                            add(integer(1), call("depth", subtract(symbol("n"), integer(1))))))))));
+  }
+
+  // define main() { loop(n, 0); }
+  // define loop(n, acc) { if (n < 1) acc; else { loop(n - 1, acc + 1); } }
+  private static Ast.Program tailLoop(int n) {
+    return new Ast.Program(
+        List.of(
+            DefineFunction("main", List.of(), Block(call("loop", integer(n), integer(0)))),
+            DefineFunction(
+                "loop",
+                List.of("n", "acc"),
+                Block(
+                    If(
+                        lessThan(symbol("n"), integer(1)),
+                        symbol("acc"),
+                        Optional.of(
+                            Block(
+                                call(
+                                    "loop",
+                                    subtract(symbol("n"), integer(1)),
+                                    add(symbol("acc"), integer(1))))))))));
+  }
+
+  @Test
+  public void testSameResultAsInterpreter() {
+    for (var program : Programs.all()) {
+      var expected = Engine.Kind.TREE_WALKING.create().callMain(program);
+      var actual = Engine.Kind.STACK.create().callMain(program);
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testDeepRecursionDoesNotUseJavaStack() {
+    assertEquals(Values.of(200_000), new StackInterpreter().callMain(depth(200_000)));
+  }
+
+  @Test
+  public void testCallDepthBudget() {
+    var e =
+        assertThrows(
+            LanguageException.class, () -> new StackInterpreter(1000).callMain(depth(5000)));
+    assertEquals("Call depth exceeds 1000", e.getMessage());
+  }
+
+  @Test
+  public void testTailCallsDoNotConsumeDepth() {
+    assertEquals(Values.of(100_000), new StackInterpreter(10).callMain(tailLoop(100_000)));
+    // 木を辿る Interpreter も末尾呼び出しをループにするので Java のスタックがあふれない
+    assertEquals(Values.of(100_000), new Interpreter().callMain(tailLoop(100_000)));
+  }
+}
@@ -0,0 +1,90 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class TypeInferenceTest {
+
+  private static Resolver.ResolvedFunction resolve(Ast.Program program, String name) {
+    var resolver = new Resolver();
+    resolver.declareGlobals(program);
+    Resolver.ResolvedFunction found = null;
+    for (var topLevel : program.definitions()) {
+      if (topLevel instanceof Ast.FunctionDefinition definition) {
+        var function = resolver.resolveFunction(definition);
+        resolver.target(definition.name()).function = function;
+        if (definition.name().equals(name)) {
+          found = function;
+        }
+      }
+    }
+    return found;
+  }
+
+  // define count(n, acc) { if (n < 1) acc; else count(n - 1, acc + 1); }
+  private static final Ast.Program COUNT =
+      new Ast.Program(
+          List.of(
+              DefineFunction(
+                  "count",
+                  List.of("n", "acc"),
+                  Block(
+                      If(
+                          lessThan(symbol("n"), integer(1)),
+                          symbol("acc"),
+                          Optional.of(
+                              call(
+                                  "count",
+                                  subtract(symbol("n"), integer(1)),
+                                  add(symbol("acc"), integer(1))))))),
+              DefineFunction(
+                  "main", List.of(), Block(call("count", integer(100_000), integer(0))))));
+
+  @Test
+  public void testInfersIntegerFunctions() {
+    var fib = resolve(Programs.fibonacci(10), "fib");
+    var signature = TypeInference.analyze(fib).get(fib);
+    assertArrayEquals(new TypeInference.Type[] {TypeInference.Type.INT}, signature.slots());
+    assertEquals(TypeInference.Type.INT, signature.result());
+
+    // acc は戻り値と同じ型になる
+    var count = resolve(COUNT, "count");
+    assertEquals(
+        List.of(TypeInference.Type.INT, TypeInference.Type.INT),
+        List.of(TypeInference.analyze(count).get(count).slots()));
+
+    // グローバル変数を使う関数は型を決めない
+    var sum = resolve(Programs.sum(10), "sum");
+    assertFalse(TypeInference.analyze(sum).containsKey(sum));
+  }
+
+  @Test
+  public void testUnboxedMatchesBoxed() {
+    for (var program : Programs.all()) {
+      var limited = new Interpreter(new Meter(Long.MAX_VALUE, Long.MAX_VALUE));
+      assertEquals(limited.callMain(program), new Interpreter().callMain(program));
+    }
+  }
+
+  @Test
+  public void testGuardFallsBackToBoxedEvaluation() {
+    var interpreter = new Interpreter();
+    // 自分自身の末尾呼び出しはループになるので, 値を包まなくてもスタックがあふれない
+    assertEquals(Values.of(100_000), interpreter.callMain(COUNT));
+    // Bool を渡すと推論した型と合わないので普通に評価し, n < 1 で ClassCastException になる
+    assertThrows(
+        ClassCastException.class,
+        () -> interpreter.interpret(call("count", new BoolLiteral(true), integer(0))));
+    // acc は使われ方では決まらないが, 戻り値と同じく Int. Bool を渡せば普通に評価して Bool を返す
+    assertEquals(
+        Values.of(true), interpreter.interpret(call("count", integer(0), new BoolLiteral(true))));
+  }
+}
@@ -0,0 +1,101 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.interpreter;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ValuesTest {
+
+  // define main() {
+  //   n = 0;
+  //   while (n < 1000) { i = 0; while (i < 1000) { i = i + 1; } n = n + 1; }
+  // }
+  private static final Ast.Program NESTED_LOOP =
+      new Ast.Program(
+          List.of(
+              DefineFunction(
+                  "main",
+                  List.of(),
+                  Block(
+                      new Assignment("n", integer(0)),
+                      While(
+                          lessThan(symbol("n"), integer(1000)),
+                          Block(
+                              new Assignment("i", integer(0)),
+                              While(
+                                  lessThan(symbol("i"), integer(1000)),
+                                  new Assignment("i", add(symbol("i"), integer(1)))),
+                              new Assignment("n", add(symbol("n"), integer(1)))))))));
+
+  @Test
+  public void testCachedValuesAreShared() {
+    assertSame(Values.of(42), Values.of(42));
+    assertSame(Values.of(-128), Values.wrap(-128));
+    assertSame(Values.TRUE, Values.of(1 < 2));
+    assertSame(Values.FALSE, Values.wrap(false));
+  }
+
+  @Test
+  public void testArrayLiteralUsesPrimitiveRepresentation() {
+    var interpreter = new Interpreter();
+    var ints =
+        interpreter.interpret(new ArrayLiteral(List.of(integer(1), add(integer(2), integer(3)))));
+    assertInstanceOf(Values.IntArray.class, ints.asArray().values());
+    assertEquals(5, ((Values.IntArray) ints.asArray().values()).getInt(1));
+    assertEquals(new Values.Array(List.of(Values.of(1), Values.of(5))), ints);
+
+    var bools =
+        interpreter.interpret(
+            new ArrayLiteral(List.of(new BoolLiteral(true), new BoolLiteral(false))));
+    assertInstanceOf(Values.BoolArray.class, bools.asArray().values());
+    assertEquals(List.of(Values.TRUE, Values.FALSE), bools.asArray().values());
+
+    var mixed = interpreter.interpret(new ArrayLiteral(List.of(integer(1), new BoolLiteral(true))));
+    assertEquals(List.of(Values.of(1), Values.TRUE), mixed.asArray().values());
+  }
+
+  @Test
+  public void testValueMapBehavesLikeHashMap() {
+    var expected = new java.util.HashMap<Values.Value, Values.Value>();
+    var actual = new ValueMap(4);
+    var random = new java.util.Random(42);
+    for (int i = 0; i < 20_000; i++) {
+      Values.Value key = Values.of(random.nextInt(2_000));
+      if (i == 10_000) {
+        // 途中から int 以外のキーを混ぜて汎用モードへ切り替える
+        key = Values.TRUE;
+      }
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), actual.remove(key));
+      } else {
+        assertEquals(expected.put(key, Values.of(i)), actual.put(key, Values.of(i)));
+      }
+    }
+    assertEquals(expected, actual);
+    assertEquals(expected.get(Values.of(7)), actual.getInt(7));
+  }
+
+  @Test
+  public void testIntegerLoopDoesNotAllocatePerIteration() {
+    for (var kind : List.of(Engine.Kind.TREE_WALKING, Engine.Kind.CLOSURE)) {
+      // 100 万回のループで 1 回あたり 1 バイト未満. ボクシングしていれば数十 MB になる
+      var allocated = allocatedBytes(() -> kind.create().callMain(NESTED_LOOP));
+      assertTrue(allocated < 1_000_000, kind + " allocated " + allocated + " bytes");
+    }
+  }
+
+  private static long allocatedBytes(Runnable runnable) {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    var id = Thread.currentThread().getId();
+    var before = threads.getThreadAllocatedBytes(id);
+    runnable.run();
+    return threads.getThreadAllocatedBytes(id) - before;
+  }
+}
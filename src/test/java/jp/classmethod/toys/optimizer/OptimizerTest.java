@@ -0,0 +1,140 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.optimizer;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Interpreter;
+import jp.classmethod.toys.interpreter.Operator;
+import jp.classmethod.toys.interpreter.Programs;
+import jp.classmethod.toys.interpreter.Values;
+import org.junit.jupiter.api.Test;
+
+class OptimizerTest {
+
+  private static Ast.Program main(Ast.Expression body, Ast.TopLevel... rest) {
+    var definitions = new ArrayList<Ast.TopLevel>();
+    definitions.add(DefineFunction("main", List.of(), Block(body)));
+    definitions.addAll(List.of(rest));
+    return new Ast.Program(definitions);
+  }
+
+  private static Ast.Expression mainBody(Ast.Program program) {
+    return ((Ast.FunctionDefinition) program.definitions().get(0)).body();
+  }
+
+  @Test
+  public void testFoldsConstantsAndDeadBranches() {
+    // if (1 < 2) { 3 * 4; } else { 0; }
+    var program =
+        main(
+            If(
+                new BinaryExpression(Operator.LESS_THAN, integer(1), integer(2)),
+                Block(multiply(integer(3), integer(4))),
+                Optional.of(Block(integer(0)))));
+    var result = Optimizer.standard().optimize(program);
+
+    assertEquals(integer(12), mainBody(result.program()));
+    var stats = result.statistics();
+    assertEquals(
+        List.of("inlining", "constant-folding", "dead-branch-elimination", "block-flattening"),
+        stats.stream().map(Statistics::pass).toList());
+    assertEquals(2, stats.get(1).get("folded"));
+    assertEquals(1, stats.get(2).get("if"));
+  }
+
+  @Test
+  public void testKeepsDivisionByZero() {
+    var division = divide(integer(1), integer(0));
+    assertEquals(division, mainBody(Optimizer.standard().optimize(main(division)).program()));
+  }
+
+  @Test
+  public void testFlattensNestedBlocksButKeepsTrailingEmptyBlock() {
+    var program = main(Block(integer(1), Block(integer(2), integer(3)), Block()));
+    var optimized = Optimizer.standard().optimize(program).program();
+    assertEquals(Block(integer(1), integer(2), integer(3), Block()), mainBody(optimized));
+  }
+
+  @Test
+  public void testInlinesSmallNonRecursiveFunctions() {
+    // define twice(x) { x + x; }  main: twice(21) + fact(3)
+    var program =
+        main(
+            add(call("twice", integer(21)), call("fact", integer(3))),
+            DefineFunction("twice", List.of("x"), Block(add(symbol("x"), symbol("x")))),
+            Programs.factorial(3).definitions().get(1));
+    var result = Optimizer.standard().optimize(program);
+
+    // fact は再帰なので残る
+    assertEquals(add(integer(42), call("fact", integer(3))), mainBody(result.program()));
+    assertEquals(1, result.statistics().get(0).get("inlined"));
+    assertEquals(new Interpreter().callMain(program), new Interpreter().callMain(result.program()));
+  }
+
+  @Test
+  public void testSameResultAsUnoptimized() {
+    for (var program : Programs.all()) {
+      var optimized = Optimizer.standard().optimize(program).program();
+      assertEquals(new Interpreter().callMain(program), new Interpreter().callMain(optimized));
+    }
+  }
+
+  @Test
+  public void testInliningKeepsEvaluationOrder() {
+    // global c = 0; define bump() { c = c + 1; } define f(x) { bump() + x; } define main() { f(c);
+    // }
+    var program =
+        new Ast.Program(
+            List.of(
+                new GlobalVariableDefinition("c", integer(0)),
+                DefineFunction(
+                    "bump", List.of(), Block(new Assignment("c", add(symbol("c"), integer(1))))),
+                DefineFunction("f", List.of("x"), Block(add(call("bump"), symbol("x")))),
+                DefineFunction("main", List.of(), Block(call("f", symbol("c"))))));
+    var optimized = Optimizer.standard().optimize(program).program();
+    assertEquals(Values.of(1), new Interpreter().callMain(program));
+    assertEquals(Values.of(1), new Interpreter().callMain(optimized));
+  }
+
+  @Test
+  public void testInliningKeepsDefinitionOrder() {
+    // global g = twice(1); define twice(x) { x + x; } define main() { g + twice(2); }
+    var program =
+        new Ast.Program(
+            List.of(
+                new GlobalVariableDefinition("g", call("twice", integer(1))),
+                DefineFunction("twice", List.of("x"), Block(add(symbol("x"), symbol("x")))),
+                DefineFunction(
+                    "main", List.of(), Block(add(symbol("g"), call("twice", integer(2)))))));
+    var result = Optimizer.standard().optimize(program);
+    // main の中は定義済みなので展開し, g の初期化式は呼び出しのまま残す
+    assertEquals(1, result.statistics().get(0).get("inlined"));
+    var e =
+        assertThrows(RuntimeException.class, () -> new Interpreter().callMain(result.program()));
+    assertEquals("Function twice is not found", e.getMessage());
+  }
+
+  @Test
+  public void testKeepsCallInsideSpawn() {
+    // define main() { t = spawn(one(one(7))); join(t); } define one(x) { x; }
+    var spawn = call("spawn", call("one", call("one", integer(7))));
+    var program =
+        main(
+            Block(new Assignment("t", spawn), call("join", symbol("t"))),
+            DefineFunction("one", List.of("x"), Block(symbol("x"))));
+    var optimized = Optimizer.standard().optimize(program).program();
+    // spawn に渡す呼び出しは展開しないが, その引数の呼び出しは展開する
+    assertEquals(
+        Block(
+            new Assignment("t", call("spawn", call("one", integer(7)))),
+            call("join", symbol("t"))),
+        mainBody(optimized));
+    assertEquals(Values.of(7), new Interpreter().callMain(optimized));
+  }
+}
@@ -0,0 +1,119 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.Interpreter;
+import jp.classmethod.toys.interpreter.LanguageException;
+import jp.classmethod.toys.interpreter.Values;
+import org.junit.jupiter.api.Test;
+
+class IncrementalProgramTest {
+
+  private static final String SOURCE =
+      """
+      global base = 10;
+      define twice(x) { x * 2; }
+      define main() { twice(base) + 1; }
+      """;
+
+  private static Ast.TopLevel definitionNamed(Ast.Program program, String name) {
+    return program.definitions().stream()
+        .filter(
+            d ->
+                d instanceof Ast.FunctionDefinition f
+                    ? f.name().equals(name)
+                    : ((Ast.GlobalVariableDefinition) d).name().equals(name))
+        .findFirst()
+        .orElseThrow();
+  }
+
+  @Test
+  public void testEditReparsesOnlyTheTouchedDefinition() {
+    var program = IncrementalProgram.parse(SOURCE);
+    var interpreter = new Interpreter();
+    assertEquals(Values.of(21), interpreter.callMain(program.program()));
+
+    var offset = SOURCE.indexOf("x * 2") + 4;
+    var change = program.edit(offset, 1, "3");
+
+    var expected = PrattParser.parseProgram(program.source());
+    assertEquals(expected, program.program());
+    assertEquals(List.of(definitionNamed(expected, "twice")), change.added());
+    assertEquals(1, change.removed().size());
+
+    change.applyTo(interpreter);
+    assertEquals(Values.of(31), interpreter.callMain());
+  }
+
+  @Test
+  public void testLabelledCallRejectsReorderedParameters() {
+    var source =
+        """
+        define f(a, b) { a - b; }
+        define main() { f[a = 10, b = 1]; }
+        """;
+    var program = IncrementalProgram.parse(source);
+    var interpreter = new Interpreter();
+    assertEquals(Values.of(9), interpreter.callMain(program.program()));
+
+    // 引数の順だけを入れ替える. main は解析し直さないので, 並べ替え済みの実引数は古い順のまま
+    program.edit(source.indexOf("a, b"), 4, "b, a").applyTo(interpreter);
+    var e = assertThrows(LanguageException.class, interpreter::callMain);
+    assertEquals(
+        "Parameters of function f changed from [a, b] to [b, a] after the labelled call was linked",
+        e.getMessage());
+
+    // main も定義し直せば新しい順で並べ替える
+    program.edit(source.indexOf("10"), 2, "20").applyTo(interpreter);
+    assertEquals(Values.of(19), interpreter.callMain());
+  }
+
+  @Test
+  public void testSpansFollowTheEdit() {
+    var program = IncrementalProgram.parse(SOURCE);
+    program.edit(0, 0, "global pad = 0;\n");
+    for (var span : program.spans()) {
+      var text = program.source().substring(span.start(), span.end());
+      assertEquals(
+          new Ast.Program(List.of(span.definition())), PrattParser.parseProgram(text), text);
+    }
+  }
+
+  @Test
+  public void testWhitespaceEditChangesNothing() {
+    var program = IncrementalProgram.parse(SOURCE);
+    assertTrue(program.edit(SOURCE.indexOf("define"), 0, "\n\n// note\n").isEmpty());
+  }
+
+  @Test
+  public void testGlobalEditIsReevaluated() {
+    var program = IncrementalProgram.parse(SOURCE);
+    var interpreter = new Interpreter();
+    interpreter.callMain(program.program());
+
+    program.edit(SOURCE.indexOf("10"), 2, "20").applyTo(interpreter);
+    assertEquals(Values.of(41), interpreter.callMain());
+  }
+
+  @Test
+  public void testCommentSwallowingFollowingDefinitionFallsBackToFullParse() {
+    var source = "global a = 1; global b = 2;";
+    var program = IncrementalProgram.parse(source);
+    var change = program.edit(source.indexOf("global b") - 1, 0, "//");
+    assertEquals(PrattParser.parseProgram(program.source()), program.program());
+    assertEquals(1, change.removed().size());
+    assertTrue(change.added().isEmpty());
+  }
+
+  @Test
+  public void testSyntaxErrorKeepsPreviousState() {
+    var program = IncrementalProgram.parse(SOURCE);
+    assertThrows(LanguageException.class, () -> program.edit(SOURCE.indexOf("x * 2"), 1, "+"));
+    assertEquals(SOURCE, program.source());
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import jp.classmethod.toys.interpreter.Ast;
+import org.javafp.parsecj.input.Input;
+import org.junit.jupiter.api.Test;
+
+class ParsersTest {
+
+  private static final String SOURCE =
+      "// lookup table\n"
+          + "global a = 1 + 2 * 3;\n"
+          + "global b = f(a, g(2)) - (a / 2);\n"
+          + "global c = h[x = 1, y = [true, false]];\n";
+
+  @Test
+  public void testParsersAreBuiltOnce() {
+    assertSame(Parsers.expression(), Parsers.expression());
+    assertSame(Parsers.program(), Parsers.program());
+  }
+
+  @Test
+  public void testPackratModeGivesSameProgram() throws Exception {
+    var expected =
+        new Ast.Program(
+            List.of(
+                new GlobalVariableDefinition(
+                    "a", add(integer(1), multiply(integer(2), integer(3)))),
+                new GlobalVariableDefinition(
+                    "b",
+                    subtract(
+                        call("f", symbol("a"), call("g", integer(2))),
+                        divide(symbol("a"), integer(2)))),
+                new GlobalVariableDefinition(
+                    "c",
+                    new LabelledCall(
+                        "h",
+                        List.of(
+                            new LabelledParameter("x", integer(1)),
+                            new LabelledParameter(
+                                "y",
+                                new ArrayLiteral(
+                                    List.of(new BoolLiteral(true), new BoolLiteral(false)))))))));
+    assertEquals(expected, Parsers.program().parse(Input.of(SOURCE)).getResult());
+    assertEquals(expected, Parsers.parsePackrat(Parsers.program(), SOURCE).getResult());
+  }
+
+  @Test
+  public void testForInExpression() throws Exception {
+    var parser = Parsers.forInExpression();
+    assertEquals(
+        new ForInExpression("x", new RangeExpression(integer(1), integer(3)), symbol("x")),
+        parser.parse(Input.of("for (x in 1 to 3) x")).getResult());
+    assertEquals(
+        new ForInExpression("x", new ArrayLiteral(List.of(integer(1), integer(2))), Block()),
+        parser.parse(Input.of("for (x in [1, 2]) {}")).getResult());
+    assertEquals(
+        new ForInExpression(
+            "x", symbol("xs"), Block(call("g", symbol("x")), add(symbol("x"), integer(1)))),
+        parser.parse(Input.of("for (x in xs) { g(x); x + 1 }")).getResult());
+  }
+}
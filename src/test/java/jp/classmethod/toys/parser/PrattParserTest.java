@@ -0,0 +1,165 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import static jp.classmethod.toys.interpreter.Ast.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import jp.classmethod.toys.interpreter.Ast;
+import jp.classmethod.toys.interpreter.LanguageException;
+import jp.classmethod.toys.interpreter.Operator;
+import org.javafp.parsecj.input.Input;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PrattParserTest {
+
+  // Parsers はまだ関数本体 (line) を読めないので, 突き合わせるのは式と global 定義だけ
+  private static final List<String> EXPRESSIONS =
+      List.of(
+          "1",
+          "-5",
+          "1 -2",
+          "1 - -2",
+          "1 + 2 * 3 - 4 / 5",
+          "(1 + 2) * (3 - 4)",
+          "a - b - c",
+          "a / b * c",
+          "f()",
+          "f(1, g(x, 2), [])",
+          "h[x = 1, y = [true, false]]",
+          "h[]",
+          "[1, [2, 3], a + b]",
+          "f (1) + g [a = 2]",
+          "x1 * // comment\n (y_2 + 3)");
+
+  @Test
+  public void testExpressionCorpus() throws Exception {
+    for (var source : EXPRESSIONS) {
+      var expected = Parsers.expression().parse(Input.of(source)).getResult();
+      assertEquals(expected, PrattParser.parseExpression(source), source);
+    }
+  }
+
+  @Test
+  public void testGeneratedProgramsMatchParsers() throws Exception {
+    var random = new Random(42);
+    for (int n = 0; n < 50; n++) {
+      var source = new StringBuilder("// generated\n");
+      for (int i = 0; i < 20; i++) {
+        source.append("global v").append(i).append(" = ");
+        generate(random, 4, source);
+        source.append(";\n");
+      }
+      var text = source.toString();
+      var expected = Parsers.program().parse(Input.of(text)).getResult();
+      assertEquals(expected, PrattParser.parseProgram(text), text);
+    }
+  }
+
+  private static void generate(Random random, int depth, StringBuilder out) {
+    var choice = depth == 0 ? random.nextInt(3) : random.nextInt(8);
+    switch (choice) {
+      case 0 -> out.append(random.nextInt(2000) - 1000);
+      case 1 -> out.append("v").append(random.nextInt(10));
+      case 2 -> out.append(random.nextBoolean() ? "true" : "false");
+      case 3 -> {
+        out.append("(");
+        generate(random, depth - 1, out);
+        out.append(")");
+      }
+      case 4 -> {
+        out.append("f").append(random.nextInt(3)).append("(");
+        generate(random, depth - 1, out);
+        out.append(", ");
+        generate(random, depth - 1, out);
+        out.append(")");
+      }
+      case 5 -> {
+        out.append("[");
+        generate(random, depth - 1, out);
+        out.append("]");
+      }
+      default -> {
+        generate(random, depth - 1, out);
+        out.append(" ").append("+-*/".charAt(random.nextInt(4))).append(" ");
+        generate(random, depth - 1, out);
+      }
+    }
+  }
+
+  @Test
+  public void testFunctionDefinitionFromMappedFile(@TempDir Path dir) throws Exception {
+    var file = dir.resolve("fact.toys");
+    Files.writeString(
+        file,
+        """
+        define fact(n) {
+          if (n < 2) 1; else { r = n * fact(n - 1); r; }
+          while (n != 0) n = n - 1;
+        }
+        """);
+    var expected =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "fact",
+                    List.of("n"),
+                    Block(
+                        If(
+                            new BinaryExpression(Operator.LESS_THAN, symbol("n"), integer(2)),
+                            integer(1),
+                            Optional.of(
+                                Block(
+                                    new Assignment(
+                                        "r",
+                                        multiply(
+                                            symbol("n"),
+                                            call("fact", subtract(symbol("n"), integer(1))))),
+                                    symbol("r")))),
+                        While(
+                            new BinaryExpression(Operator.NOT_EQUAL, symbol("n"), integer(0)),
+                            new Assignment("n", subtract(symbol("n"), integer(1))))))));
+    assertEquals(expected, PrattParser.parseProgram(file));
+  }
+
+  @Test
+  public void testForIn() {
+    var program =
+        PrattParser.parseProgram(
+            """
+            define main() {
+              for (i in 1 to n + 1) { to = i; }
+              for (x in [1, 2]) x;
+            }
+            """);
+    var expected =
+        new Ast.Program(
+            List.of(
+                DefineFunction(
+                    "main",
+                    List.of(),
+                    Block(
+                        ForIn(
+                            "i",
+                            new RangeExpression(integer(1), add(symbol("n"), integer(1))),
+                            Block(new Assignment("to", symbol("i")))),
+                        ForIn(
+                            "x",
+                            new ArrayLiteral(List.of(integer(1), integer(2))),
+                            symbol("x"))))));
+    assertEquals(expected, program);
+  }
+
+  @Test
+  public void testSyntaxErrorReportsPosition() {
+    var e =
+        assertThrows(LanguageException.class, () -> PrattParser.parseProgram("global a = 1\n+;"));
+    assertEquals("expected expression but got SEMI_COLON at 2:2", e.getMessage());
+  }
+}
@@ -0,0 +1,82 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.parser;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import jp.classmethod.toys.interpreter.Interpreter;
+import jp.classmethod.toys.interpreter.Values;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProgramCacheTest {
+
+  private static final String SOURCE =
+      """
+      global base = -3;
+      define fact(n) {
+        if (n < 2) 1; else { r = n * fact(n - 1); r; }
+      }
+      define pick(x, y) { [x, y, true, false]; y; }
+      define main() {
+        i = 0;
+        while (i != 3) i = i + 1;
+        fact(5) + pick[y = base, x = i];
+      }
+      """;
+
+  @Test
+  public void testCachedProgramEqualsParsedProgram(@TempDir Path dir) throws Exception {
+    var cache = new ProgramCache(dir);
+    var first = cache.load(SOURCE);
+    assertTrue(Files.exists(cache.pathFor(SOURCE)));
+
+    var second = new ProgramCache(dir).load(SOURCE);
+    assertEquals(PrattParser.parseProgram(SOURCE), first);
+    assertEquals(first, second);
+    assertEquals(Values.of(117), new Interpreter().callMain(second));
+  }
+
+  @Test
+  public void testDefinitionsAreDecodedOnDemand() {
+    var program = AstCodec.decode(AstCodec.encode(PrattParser.parseProgram(SOURCE)));
+    var definitions = program.definitions();
+    assertEquals(4, definitions.size());
+    // 同じ要素は一度だけ組み立てる
+    assertTrue(definitions.get(2) == definitions.get(2));
+  }
+
+  @Test
+  public void testBrokenCacheIsRebuilt(@TempDir Path dir) throws Exception {
+    var cache = new ProgramCache(dir);
+    Files.writeString(cache.pathFor(SOURCE), "garbage");
+    assertEquals(PrattParser.parseProgram(SOURCE), cache.load(SOURCE));
+    assertEquals(PrattParser.parseProgram(SOURCE), new ProgramCache(dir).load(SOURCE));
+  }
+
+  @Test
+  public void testTruncatedCacheIsRebuilt(@TempDir Path dir) throws Exception {
+    var cache = new ProgramCache(dir);
+    cache.load(SOURCE);
+    var file = cache.pathFor(SOURCE);
+    var bytes = Files.readAllBytes(file);
+    for (var length : new int[] {bytes.length - 4, bytes.length / 2, 10}) {
+      Files.write(file, Arrays.copyOf(bytes, length));
+      var program = new ProgramCache(dir).load(SOURCE);
+      assertEquals(Values.of(117), new Interpreter().callMain(program));
+      assertArrayEquals(bytes, Files.readAllBytes(file));
+    }
+
+    // 識別子の長さが負
+    var broken = bytes.clone();
+    ByteBuffer.wrap(broken).putInt(12, -1);
+    Files.write(file, broken);
+    assertEquals(PrattParser.parseProgram(SOURCE), new ProgramCache(dir).load(SOURCE));
+    assertArrayEquals(bytes, Files.readAllBytes(file));
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright (C) 2023 komuro-hiraku */
+package jp.classmethod.toys.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ScriptServerTest {
+
+  private static final String SOURCE =
+      """
+      global base = 3;
+      define main() { base = base + 1; [base, true]; }
+      """;
+
+  @Test
+  public void testKeepsProgramsWarm(@TempDir Path dir) {
+    var server = new ScriptServer(dir.resolve("toys.sock"), 1);
+    var first = server.evaluate(SOURCE);
+    assertTrue(first.ok());
+    assertFalse(first.warm());
+    assertEquals("[4, true]", first.output());
+
+    // 解析済みのイメージを使い, グローバル変数は前の実行の値を引き継がない
+    var second = server.evaluate(SOURCE);
+    assertTrue(second.warm());
+    assertEquals("[4, true]", second.output());
+
+    // 上限を超えたら古いものから捨てる
+    assertEquals("1", server.evaluate("define main() { 1; }").output());
+    assertEquals(1, server.size());
+    assertFalse(server.evaluate(SOURCE).warm());
+
+    var syntaxError = server.evaluate("define main( { 1; }");
+    assertFalse(syntaxError.ok());
+    assertEquals(1, server.size());
+    var divideByZero = server.evaluate("define main() { 1 / 0; }");
+    assertFalse(divideByZero.ok());
+    assertTrue(divideByZero.format().startsWith("error / by zero\nparse "));
+  }
+
+  @Test
+  public void testStopsRunawayScripts(@TempDir Path dir) {
+    var server = new ScriptServer(dir.resolve("toys.sock"), 4, 100_000);
+    var loop = server.evaluate("define main() { while (true) 1; }");
+    assertFalse(loop.ok());
+    assertEquals("Fuel budget exhausted", loop.output());
+    // グローバル変数の初期化式も予算の中で評価する
+    var initializer =
+        server.evaluate(
+            "define spin() { while (true) 1; }\nglobal g = spin();\ndefine main() { g; }");
+    assertFalse(initializer.ok());
+    assertEquals("Fuel budget exhausted", initializer.output());
+    assertEquals("[4, true]", server.evaluate(SOURCE).output());
+  }
+
+  @Test
+  public void testRejectsValuesWithoutToysSyntax(@TempDir Path dir) {
+    var server = new ScriptServer(dir.resolve("toys.sock"), 4);
+    var task = server.evaluate("define one() { 1; }\ndefine main() { [spawn(one()), 2]; }");
+    assertFalse(task.ok());
+    assertEquals("Cannot show a task", task.output());
+    assertEquals("[1, [2, 3]]", server.evaluate("define main() { [1, [2, 3]]; }").output());
+  }
+
+  @Test
+  public void testServesOverUnixDomainSocket(@TempDir Path dir) throws Exception {
+    var socket = dir.resolve("toys.sock");
+    var server = new ScriptServer(socket, ScriptServer.DEFAULT_CAPACITY).bind();
+    var serving =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                server.serve();
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            });
+    try {
+      var cold = ScriptServer.send(socket, SOURCE).split("\n");
+      assertEquals("ok [4, true]", cold[0]);
+      assertTrue(cold[1].matches("parse \\d+\\.\\d{3} ms cold"), cold[1]);
+      assertTrue(cold[2].matches("execute \\d+\\.\\d{3} ms"), cold[2]);
+      assertTrue(ScriptServer.send(socket, SOURCE).contains(" ms warm\n"));
+
+      // スクリプトの誤りはどれもエラーとして返し, サーバは動き続ける
+      assertTrue(
+          ScriptServer.send(socket, "define main() { g(1); }")
+              .startsWith("error Function g is not found\nparse "));
+      assertTrue(
+          ScriptServer.send(socket, "define main() { if (1) 2; else 3; }").startsWith("error "));
+      assertTrue(
+          ScriptServer.send(socket, "define d(n) { 1 + d(n + 1); }\ndefine main() { d(0); }")
+              .matches("(?s)error (Call depth exceeds \\d+|Stack overflow)\nparse .*"));
+      assertTrue(
+          ScriptServer.send(socket, "global g = h();\ndefine h() { 1; }\ndefine main() { g; }")
+              .startsWith("error Function h is not found\nparse "));
+      assertTrue(ScriptServer.send(socket, SOURCE).startsWith("ok [4, true]\n"));
+    } finally {
+      server.close();
+    }
+    serving.get();
+  }
+}